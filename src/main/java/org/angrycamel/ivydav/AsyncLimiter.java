@@ -0,0 +1,115 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of asynchronous operations in flight. Operations beyond
+ * the limit are queued and started as earlier ones complete; no thread waits
+ * for a slot, so a limiter can safely be used from within the completion of
+ * another limited operation. Operations are started by whichever thread is
+ * already starting them, one after another, so a long queue of operations
+ * completing at once does not nest each start inside the last.
+ */
+final class AsyncLimiter {
+
+	private final int limit;
+	private int running;
+	private final Deque<Runnable> waiting = new ArrayDeque<Runnable>();
+	// given a slot, to be started
+	private final Deque<Runnable> ready = new ArrayDeque<Runnable>();
+	private boolean starting;
+
+	AsyncLimiter(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be at least 1");
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * Start the operation now, or once a slot is free, within the caller's
+	 * {@link Deadline}.
+	 */
+	<T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> submitted) {
+		final Supplier<CompletableFuture<T>> operation = Deadline.bind(submitted);
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		Runnable start = () -> {
+			CompletableFuture<T> f;
+			try {
+				f = operation.get();
+			} catch (Throwable t) {
+				f = DavRepository.failed(t);
+			}
+			f.whenComplete((v, t) -> {
+				release();
+				if (t != null) {
+					result.completeExceptionally(DavRepository.unwrap(t));
+				} else {
+					result.complete(v);
+				}
+			});
+		};
+		synchronized (this) {
+			if (running < limit) {
+				running++;
+				ready.add(start);
+			} else {
+				waiting.add(start);
+			}
+		}
+		startReady();
+		return result;
+	}
+
+	private void release() {
+		synchronized (this) {
+			Runnable next = waiting.poll();
+			if (next == null) {
+				running--;
+			} else {
+				ready.add(next);
+			}
+		}
+		startReady();
+	}
+
+	// a start completing at once releases, and so queues, the next; it is
+	// started by the loop below rather than from within that completion
+	private void startReady() {
+		synchronized (this) {
+			if (starting) {
+				return;
+			}
+			starting = true;
+		}
+		while (true) {
+			Runnable next;
+			synchronized (this) {
+				next = ready.poll();
+				if (next == null) {
+					starting = false;
+					return;
+				}
+			}
+			next.run();
+		}
+	}
+}
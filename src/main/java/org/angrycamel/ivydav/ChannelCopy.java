@@ -0,0 +1,184 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ivy.util.CopyProgressEvent;
+import org.apache.ivy.util.CopyProgressListener;
+
+/**
+ * Copies downloads into local files through a <code>FileChannel</code>.
+ * Content read from a local file (a mirror hit) is transferred file to file
+ * without passing through the JVM at all. Anything else arrives in a heap
+ * array, all an <code>InputStream</code> can fill, and is copied once into a
+ * direct buffer to be written: the copy the channel would otherwise make into
+ * a temporary buffer of its own. Direct buffers are borrowed from a pool as
+ * large as the number of transfers in flight by default, so a large download
+ * allocates nothing per chunk, yet idle threads hold none. Copies beyond that
+ * use a heap buffer of their own rather than allocate native memory only the
+ * garbage collector would free.
+ */
+final class ChannelCopy {
+
+	static final int CHUNK = 256 * 1024;
+	// transferred at once between files, between progress reports
+	static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+	// direct buffers kept between copies, one per transfer in flight
+	static final int POOLED = TransferScheduler.DEFAULT_MAX_CONCURRENT;
+
+	private static final byte[] EMPTY = new byte[0];
+	private static final BlockingQueue<Buffers> POOL = new ArrayBlockingQueue<Buffers>(POOLED);
+	private static final AtomicInteger ALLOCATED = new AtomicInteger();
+
+	/**
+	 * Implemented by streams passing a local file's content through
+	 * untouched, so it can be transferred file to file instead of read.
+	 */
+	interface FileBacked {
+		/**
+		 * @return the channel of the file being read, positioned at what is
+		 *         to be read next, or null if the content must be read
+		 */
+		FileChannel getFileChannel();
+	}
+
+	// a chunk read into the array, and written from the direct buffer if pooled
+	private static final class Buffers {
+		final byte[] chunk = new byte[CHUNK];
+		final ByteBuffer direct;
+
+		Buffers(boolean pooled) {
+			direct = pooled ? ByteBuffer.allocateDirect(CHUNK) : null;
+		}
+	}
+
+	private static Buffers borrow() {
+		Buffers buffers = POOL.poll();
+		if (buffers != null) {
+			return buffers;
+		}
+		for (int n = ALLOCATED.get(); n < POOLED; n = ALLOCATED.get()) {
+			if (ALLOCATED.compareAndSet(n, n + 1)) {
+				return new Buffers(true);
+			}
+		}
+		return new Buffers(false);
+	}
+
+	// CopyProgressEvent is only updatable by subclasses
+	private static final class Progress extends CopyProgressEvent {
+		Progress set(byte[] buffer, int read, long total) {
+			update(buffer, read, total);
+			return this;
+		}
+	}
+
+	private ChannelCopy() {
+	}
+
+	/**
+	 * Copy the rest of the stream into the destination, creating its
+	 * directory if need be, like <code>FileUtil.copy</code>. The listener may
+	 * be null; the stream is left open.
+	 *
+	 * @return the number of bytes copied
+	 */
+	static long copy(InputStream in, File destination, CopyProgressListener listener) throws IOException {
+		File dir = destination.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		Progress progress = listener == null ? null : new Progress();
+		if (listener != null) {
+			listener.start(progress);
+		}
+		long total;
+		FileChannel out = FileChannel.open(destination.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			FileChannel file = in instanceof FileInputStream ? ((FileInputStream) in).getChannel()
+					: in instanceof FileBacked ? ((FileBacked) in).getFileChannel() : null;
+			total = file != null ? transfer(file, out, listener, progress) : write(in, out, listener, progress);
+		} finally {
+			out.close();
+		}
+		if (listener != null) {
+			listener.end(progress.set(EMPTY, 0, total));
+		}
+		return total;
+	}
+
+	private static long transfer(FileChannel in, FileChannel out, CopyProgressListener listener, Progress progress)
+			throws IOException {
+		long start = in.position();
+		long total = 0;
+		for (long size = in.size(); start + total < size;) {
+			long n = in.transferTo(start + total, Math.min(TRANSFER_CHUNK, size - start - total), out);
+			if (n <= 0) {
+				break;
+			}
+			total += n;
+			if (listener != null) {
+				listener.progress(progress.set(EMPTY, (int) n, total));
+			}
+		}
+		in.position(start + total);
+		return total;
+	}
+
+	private static long write(InputStream in, FileChannel out, CopyProgressListener listener, Progress progress)
+			throws IOException {
+		Buffers buffers = borrow();
+		try {
+			byte[] chunk = buffers.chunk;
+			long total = 0;
+			for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+				if (n == 0) {
+					continue;
+				}
+				ByteBuffer buffer = buffers.direct;
+				if (buffer == null) {
+					buffer = ByteBuffer.wrap(chunk, 0, n);
+				} else {
+					buffer.clear();
+					buffer.put(chunk, 0, n).flip();
+				}
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				total += n;
+				if (listener != null) {
+					listener.progress(progress.set(chunk, n, total));
+				}
+			}
+			return total;
+		} finally {
+			if (buffers.direct != null) {
+				POOL.offer(buffers);
+			}
+		}
+	}
+}
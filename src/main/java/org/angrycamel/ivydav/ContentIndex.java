@@ -0,0 +1,194 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.Message;
+
+/**
+ * Where content already published to the repository can be found, by SHA-1,
+ * so that publishing the same bytes again is a server-side COPY rather than
+ * an upload. Each entry is kept on the server, as
+ * <code>.ivydav-content/ab/abcdef...</code> (hidden from listings), and in
+ * memory once seen. An entry records the size and etag or last-modified date
+ * the resource had, and is only used while the resource still has them.
+ */
+final class ContentIndex {
+
+	static final String ROOT = ".ivydav-content";
+	static final long DEFAULT_MIN_BYTES = 1024 * 1024;
+
+	private final DavRepository davRepo;
+	private final long minBytes;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// a published resource as it was when recorded
+	static final class Entry {
+		final String path;
+		final long length;
+		final long modifiedAt;
+		final String etag;
+
+		Entry(String path, long length, long modifiedAt, String etag) {
+			this.path = path;
+			this.length = length;
+			this.modifiedAt = modifiedAt;
+			this.etag = etag;
+		}
+
+		boolean matches(WebserverData data) {
+			return data != null && data.getContentLength() == length
+					&& (etag != null ? etag.equals(data.getEtag()) : modifiedAt == data.getModifiedAt());
+		}
+
+		// path, length, last modified and etag, tab separated
+		String format() {
+			return path + "\t" + length + "\t" + modifiedAt + (etag == null ? "" : "\t" + etag);
+		}
+
+		static Entry parse(String line) throws IOException {
+			String[] fields = line.trim().split("\t");
+			if (fields.length < 3) {
+				throw new IOException("Malformed content index entry: " + line);
+			}
+			try {
+				return new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+						fields.length > 3 ? fields[3] : null);
+			} catch (NumberFormatException ex) {
+				throw new IOException("Malformed content index entry: " + line, ex);
+			}
+		}
+	}
+
+	/**
+	 * @param minBytes
+	 *            smaller files are always uploaded, a COPY saving them little
+	 */
+	ContentIndex(DavRepository davRepo, long minBytes) {
+		this.davRepo = davRepo;
+		this.minBytes = minBytes;
+	}
+
+	boolean applies(File source) {
+		return source.length() >= minBytes;
+	}
+
+	static String digest(File source) throws IOException {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException("SHA-1 not available", ex);
+		}
+		InputStream is = new FileInputStream(source);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+				sha1.update(buffer, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : sha1.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	static String entryPath(String digest) {
+		return ROOT + "/" + digest.substring(0, 2) + "/" + digest;
+	}
+
+	/**
+	 * @return the path of a resource with the given content, unchanged since
+	 *         it was recorded, or null if there is none
+	 */
+	String find(String digest) {
+		Entry entry = entries.get(digest);
+		try {
+			if (entry == null) {
+				entry = load(digest);
+				if (entry == null) {
+					return null;
+				}
+			}
+			if (entry.matches(davRepo.getResourceMetadata(entry.path))) {
+				entries.put(digest, entry);
+				return entry.path;
+			}
+		} catch (IOException ex) {
+			Message.verbose("ivydav: cannot look up content " + digest + ": " + ex.getMessage());
+		}
+		entries.remove(digest);
+		return null;
+	}
+
+	private Entry load(String digest) throws IOException {
+		InputStream is;
+		try {
+			is = davRepo.getResourceStream(entryPath(digest));
+		} catch (IOException ex) {
+			if (DavRepository.isStatus(ex, 404)) {
+				return null;
+			}
+			throw ex;
+		}
+		try {
+			return Entry.parse(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Note that the resource at the given path, just published, has the given
+	 * content. Failing to do so only costs a later upload, so is just logged.
+	 */
+	void record(String digest, String path) {
+		try {
+			WebserverData data = davRepo.getResourceMetadata(path);
+			if (data == null) {
+				return;
+			}
+			Entry entry = new Entry(path, data.getContentLength(), data.getModifiedAt(), data.getEtag());
+			davRepo.putResource(entryPath(digest),
+					new ByteArrayInputStream(entry.format().getBytes(StandardCharsets.UTF_8)));
+			entries.put(digest, entry);
+		} catch (IOException ex) {
+			Message.verbose("ivydav: cannot record content of " + path + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Forget the content recorded for the given digest, e.g. once a COPY of
+	 * it has failed.
+	 */
+	void forget(String digest) {
+		entries.remove(digest);
+	}
+}
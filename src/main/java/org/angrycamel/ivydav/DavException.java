@@ -0,0 +1,49 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.IOException;
+
+/**
+ * A WebDAV request that the server answered with an unexpected status.
+ */
+public class DavException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String url;
+	private final int statusCode;
+
+	public DavException(String url, int statusCode, String message) {
+		super(message);
+		this.url = url;
+		this.statusCode = statusCode;
+	}
+
+	public DavException(String url, int statusCode, String message, Throwable cause) {
+		super(message, cause);
+		this.url = url;
+		this.statusCode = statusCode;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
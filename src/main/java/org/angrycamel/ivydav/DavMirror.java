@@ -0,0 +1,396 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.Message;
+
+/**
+ * Incrementally mirrors one DAV repository onto another, e.g. to keep a
+ * disaster recovery copy on a second server.
+ *
+ * Both trees are walked together in sorted pre-order, and a resource is
+ * copied only if it is missing from the target or differs according to the
+ * listing metadata: see {@link #isUnchanged}. Listings and copies share the
+ * same limit of requests in flight, so several collections are listed at
+ * once. Copies stream straight from the source GET into the target PUT,
+ * without temporary files. Only the collections still to be visited and a
+ * bounded number in flight are held in memory, so trees of any size can be
+ * mirrored.
+ *
+ * Progress is saved to a checkpoint file as the last collection (in walk
+ * order) whose resources, and those of every collection before it, have been
+ * mirrored. A run that fails or is killed resumes from there, skipping whole
+ * subtrees that precede the checkpoint without listing them. The checkpoint
+ * is removed once a run completes.
+ */
+public class DavMirror {
+
+	static final int DEFAULT_PARALLELISM = 8;
+	// how often the checkpoint file is rewritten at most
+	private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+
+	private final DavRepository source;
+	private final DavRepository target;
+	private final File checkpoint;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private boolean deleteExtraneous;
+
+	/**
+	 * @param checkpoint
+	 *            file recording progress, for resuming an interrupted run
+	 */
+	public DavMirror(IvyRepository source, IvyRepository target, File checkpoint) {
+		this(source.davRepo, target.davRepo, checkpoint);
+	}
+
+	DavMirror(DavRepository source, DavRepository target, File checkpoint) {
+		this.source = source;
+		this.target = target;
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Number of requests (listings, copies, deletions) in flight at once.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Whether to delete resources from the target that are not in the source.
+	 */
+	public void setDeleteExtraneous(boolean deleteExtraneous) {
+		this.deleteExtraneous = deleteExtraneous;
+	}
+
+	// what happened to a collection: listed, with the subcollections found,
+	// mirrored, or failed
+	private static final class Event {
+		final String directory;
+		final List<String> subdirectories;
+		final Throwable failure;
+
+		Event(String directory, List<String> subdirectories, Throwable failure) {
+			this.directory = directory;
+			this.subdirectories = subdirectories;
+			this.failure = failure;
+		}
+	}
+
+	private static final Comparator<String> PRE_ORDER = (a, b) -> comparePreOrder(a, b);
+
+	/**
+	 * Bring the target up to date with the source.
+	 *
+	 * @return resources copied, left unchanged (as skipped) and bytes copied
+	 */
+	public TransferStats run() throws IOException {
+		final long start = System.currentTimeMillis();
+		final String resumeAfter = readCheckpoint();
+		if (resumeAfter != null) {
+			Message.info("ivydav: resuming mirror after '" + resumeAfter + "'");
+		}
+		final AsyncLimiter limiter = new AsyncLimiter(parallelism);
+		final AtomicLong copied = new AtomicLong();
+		final AtomicLong unchanged = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final int window = parallelism * 4;
+		final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+
+		// collections are listed and mirrored concurrently, so finish in any
+		// order; the checkpoint is the last one in walk order before the first
+		// still outstanding, whatever order they were started or finished in
+		NavigableSet<String> outstanding = new TreeSet<String>(PRE_ORDER);
+		NavigableSet<String> finished = new TreeSet<String>(PRE_ORDER);
+		Deque<String> toVisit = new ArrayDeque<String>();
+		toVisit.push("");
+		outstanding.add("");
+		int inFlight = 0;
+		String saved = resumeAfter;
+		long lastSaved = System.currentTimeMillis();
+		while (!toVisit.isEmpty() || inFlight > 0) {
+			while (!toVisit.isEmpty() && inFlight < window) {
+				String dir = toVisit.pop();
+				// mirrored by an earlier run; visited only to reach what follows
+				boolean done = resumeAfter != null && comparePreOrder(dir, resumeAfter) <= 0;
+				visit(dir, done, limiter, events, copied, unchanged, bytes);
+				inFlight++;
+			}
+			Event event = take(events);
+			if (event.failure != null) {
+				throw failure(event.failure);
+			} else if (event.subdirectories != null) {
+				// reverse order on the stack so they are visited in sorted order
+				for (int i = event.subdirectories.size() - 1; i >= 0; i--) {
+					String child = join(event.directory, event.subdirectories.get(i));
+					if (resumeAfter != null && comparePreOrder(child, resumeAfter) < 0
+							&& !isAncestor(child, resumeAfter)) {
+						// whole subtree precedes the checkpoint
+						continue;
+					}
+					toVisit.push(child);
+					outstanding.add(child);
+				}
+				continue;
+			}
+			inFlight--;
+			outstanding.remove(event.directory);
+			finished.add(event.directory);
+			String mirrored = outstanding.isEmpty() ? finished.last() : finished.lower(outstanding.first());
+			if (mirrored == null) {
+				continue;
+			}
+			finished.headSet(mirrored, false).clear();
+			if (System.currentTimeMillis() - lastSaved > CHECKPOINT_INTERVAL_MILLIS
+					&& (saved == null || comparePreOrder(mirrored, saved) > 0)) {
+				writeCheckpoint(mirrored);
+				saved = mirrored;
+				lastSaved = System.currentTimeMillis();
+			}
+		}
+		checkpoint.delete();
+
+		TransferStats stats = new TransferStats(copied.get(), unchanged.get(), bytes.get(),
+				System.currentTimeMillis() - start);
+		Message.info("ivydav: mirrored " + source.getRoot() + " to " + target.getRoot() + ": " + stats);
+		return stats;
+	}
+
+	// list a collection on both sides, through the limiter like the copies,
+	// then mirror its resources, reporting each step as an event
+	private void visit(final String dir, final boolean done, final AsyncLimiter limiter,
+			final BlockingQueue<Event> events, final AtomicLong copied, final AtomicLong unchanged,
+			final AtomicLong bytes) {
+		CompletableFuture<Map<String, WebserverData>> sourceListing =
+				limiter.submit(() -> source.getDirectoryEntriesAsync(dir)).thenApply(entries -> byName(entries));
+		CompletableFuture<Map<String, WebserverData>> targetListing = done
+				? CompletableFuture.<Map<String, WebserverData>>completedFuture(null)
+				: limiter.submit(() -> target.getDirectoryEntriesAsync(dir)).handle((entries, t) -> {
+					if (t == null) {
+						return CompletableFuture.completedFuture(byName(entries));
+					} else if (DavRepository.isStatus(t, 404)) {
+						// created before any of its children are visited
+						return limiter.submit(() -> target.createDirectoryAsync(dir))
+								.thenApply(v -> (Map<String, WebserverData>) new TreeMap<String, WebserverData>());
+					}
+					return DavRepository.<Map<String, WebserverData>>failed(DavRepository.unwrap(t));
+				}).thenCompose(x -> x);
+		sourceListing.thenCombine(targetListing, (sourceEntries, targetEntries) -> {
+			events.add(new Event(dir, subdirectories(sourceEntries), null));
+			return done ? CompletableFuture.<Void>completedFuture(null)
+					: mirrorDirectory(dir, sourceEntries, targetEntries, limiter, copied, unchanged, bytes);
+		}).thenCompose(x -> x).whenComplete((v, t) -> events.add(new Event(dir, null, t)));
+	}
+
+	// sorted, the same order as comparePreOrder
+	private static List<String> subdirectories(Map<String, WebserverData> entries) {
+		List<String> subdirectories = new ArrayList<String>();
+		for (Map.Entry<String, WebserverData> entry : entries.entrySet()) {
+			if (isDirectory(entry.getKey(), entry.getValue())) {
+				subdirectories.add(DavRepository.trimTrailingSlash(entry.getKey()));
+			}
+		}
+		Collections.sort(subdirectories);
+		return subdirectories;
+	}
+
+	private static Event take(BlockingQueue<Event> events) throws IOException {
+		try {
+			return events.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted mirroring");
+		}
+	}
+
+	private static IOException failure(Throwable t) {
+		Throwable cause = DavRepository.unwrap(t);
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new IOException(cause);
+	}
+
+	private CompletableFuture<Void> mirrorDirectory(String dir, Map<String, WebserverData> sourceEntries,
+			Map<String, WebserverData> targetEntries, AsyncLimiter limiter,
+			final AtomicLong copied, AtomicLong unchanged, final AtomicLong bytes) {
+		List<CompletableFuture<Void>> operations = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<String, WebserverData> entry : sourceEntries.entrySet()) {
+			String name = entry.getKey();
+			final WebserverData data = entry.getValue();
+			if (isDirectory(name, data)) {
+				continue;
+			}
+			WebserverData existing = targetEntries.get(name);
+			if (existing != null && isUnchanged(data, existing)) {
+				unchanged.incrementAndGet();
+				continue;
+			}
+			final String uri = join(dir, name);
+			Message.verbose("ivydav: mirroring " + uri);
+			operations.add(limiter.submit(() -> copy(uri)).thenRun(() -> {
+				copied.incrementAndGet();
+				bytes.addAndGet(data.getContentLength());
+			}));
+		}
+		if (deleteExtraneous) {
+			for (Map.Entry<String, WebserverData> entry : targetEntries.entrySet()) {
+				if (!sourceEntries.containsKey(entry.getKey())) {
+					final String uri = join(dir, entry.getKey());
+					Message.verbose("ivydav: deleting " + uri + " from mirror");
+					operations.add(isDirectory(entry.getKey(), entry.getValue())
+							? target.deleteTreeAsync(uri, limiter)
+							: limiter.submit(() -> target.deleteFileAsync(uri)));
+				}
+			}
+		}
+		return CompletableFuture.allOf(operations.toArray(new CompletableFuture<?>[operations.size()]));
+	}
+
+	private CompletableFuture<Void> copy(final String uri) {
+		return source.getResourceStreamAsync(uri).thenCompose(is ->
+			target.putIntoExistingAsync(uri, is).whenComplete((v, t) -> {
+				try {
+					is.close();
+				} catch (IOException ex) {
+				}
+			}));
+	}
+
+	/**
+	 * Whether a target resource is already a copy of the source one. Equal
+	 * ETags settle it (servers sharing storage or an ETag scheme); otherwise
+	 * the lengths must match and the target must not be older, which holds
+	 * for anything this class has copied since a PUT stamps the time of the
+	 * copy.
+	 */
+	static boolean isUnchanged(WebserverData source, WebserverData target) {
+		if (source.getEtag() != null && source.getEtag().equals(target.getEtag())) {
+			return true;
+		}
+		return source.getContentLength() == target.getContentLength()
+				&& source.getModifiedAt() <= target.getModifiedAt();
+	}
+
+	// listing keyed by plain child name, sorted, without staging areas
+	private static Map<String, WebserverData> byName(Map<String, WebserverData> entries) {
+		Map<String, WebserverData> named = new TreeMap<String, WebserverData>();
+		for (Map.Entry<String, WebserverData> entry : entries.entrySet()) {
+			String path = entry.getKey();
+			String name = DavRepository.trimTrailingSlash(path);
+			name = name.substring(name.lastIndexOf('/') + 1);
+			if (IvyRepository.STAGING_ROOT.equals(name)) {
+				continue;
+			}
+			named.put(path.endsWith("/") ? name + "/" : name, entry.getValue());
+		}
+		return named;
+	}
+
+	private static boolean isDirectory(String name, WebserverData data) {
+		return DavRepository.isDirectory(name, data);
+	}
+
+	private static String join(String dir, String name) {
+		String child = DavRepository.trimTrailingSlash(name);
+		return dir.length() == 0 ? child : dir + "/" + child;
+	}
+
+	/**
+	 * Order of two collections (paths relative to the root, "" being the
+	 * root) in a pre-order walk visiting children in sorted order.
+	 */
+	static int comparePreOrder(String a, String b) {
+		String[] as = a.length() == 0 ? new String[0] : a.split("/");
+		String[] bs = b.length() == 0 ? new String[0] : b.split("/");
+		for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+			int c = as[i].compareTo(bs[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return as.length - bs.length;
+	}
+
+	static boolean isAncestor(String dir, String of) {
+		return dir.length() == 0 || of.startsWith(dir + "/");
+	}
+
+	private String readCheckpoint() throws IOException {
+		if (!checkpoint.exists()) {
+			return null;
+		}
+		Properties props = new Properties();
+		InputStream is = new FileInputStream(checkpoint);
+		try {
+			props.load(is);
+		} finally {
+			is.close();
+		}
+		if (!source.getRoot().equals(props.getProperty("source"))
+				|| !target.getRoot().equals(props.getProperty("target"))) {
+			Message.warn("ivydav: ignoring checkpoint " + checkpoint + " written for a different mirror");
+			return null;
+		}
+		return props.getProperty("directory");
+	}
+
+	private void writeCheckpoint(String directory) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("source", source.getRoot());
+		props.setProperty("target", target.getRoot());
+		props.setProperty("directory", directory);
+		File tmp = new File(checkpoint.getPath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			props.store(os, "ivydav mirror checkpoint");
+		} finally {
+			os.close();
+		}
+		Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
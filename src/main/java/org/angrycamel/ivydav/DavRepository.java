@@ -15,25 +15,67 @@
 */
 package org.angrycamel.ivydav;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
-import org.apache.ivy.util.Message;
+import javax.net.ssl.SSLContext;
 
-import com.googlecode.sardine.Sardine;
-import com.googlecode.sardine.SardineFactory;
-import com.googlecode.sardine.util.SardineException;
+import org.apache.ivy.util.CopyProgressListener;
+import org.apache.ivy.util.Message;
 
 /**
- * Wrapper around Sardine to facilitate the needs of DavResource
- *
+ * Wrapper around a {@link DavTransport} to facilitate the needs of DavResource
+ * 
+ * Every operation is available as a <code>CompletableFuture</code> returning
+ * variant; the blocking methods simply wait on those. Whether outstanding
+ * requests tie up threads depends on the transport: Sardine needs one pooled
+ * thread per in-flight request, the JDK HTTP/2 client none.
  */
 public class DavRepository {
 
+	static final String TRANSPORT_SARDINE = "sardine";
+	static final String TRANSPORT_HTTP2 = "http2";
+
+	static final int LOCAL_IO_THREADS = 8;
+	static final int DEFAULT_DELETE_PARALLELISM = 8;
+
 	private final String urlRoot;
-	Sardine sardine;
+	final DavTransport transport;
+	// blocking local work (copying response bodies to disk)
+	private final ExecutorService executor;
+	private volatile MetadataCache metadataCache;
+	private volatile MetadataIndex metadataIndex;
+	private volatile List<Pattern> immutablePatterns = Collections.emptyList();
+	private volatile TransferScheduler scheduler;
+	private volatile TracingTransport tracing;
+	// shared by every resolver using the repository, so all see each change
+	private final ResourceTable resources = new ResourceTable(this);
 	
 	static final String DIRECTORY_CONTENT_TYPE="httpd/unix-directory";
 
@@ -42,6 +84,7 @@ public class DavRepository {
 		long createdAt;
 		long contentLength;
 		String contentType;
+		String etag;
 
 		public long getModifiedAt() {
 			return modifiedAt;
@@ -55,6 +98,9 @@ public class DavRepository {
 		public String getContentType() {
 			return contentType;
 		}
+		public String getEtag() {
+			return etag;
+		}
 		public boolean equals(Object o) {
 			if (o == this) return true;
 			else if (o == null || getClass() != o.getClass()) return false;
@@ -62,24 +108,66 @@ public class DavRepository {
 			return contentType.equals(wd.contentType) &&
 			  contentLength == wd.contentLength &&
 			  createdAt == wd.createdAt &&
-			  modifiedAt == wd.modifiedAt;
+			  modifiedAt == wd.modifiedAt &&
+			  (etag == null ? wd.etag == null : etag.equals(wd.etag));
 		}
 	}
 
+	/**
+	 * A blocking piece of local work to be run on the repository's executor.
+	 */
+	interface IOCallable<T> {
+		T call() throws IOException;
+	}
+
 	DavRepository(String root, String user, String pass) {
+		this(root, createTransport(TRANSPORT_SARDINE, user, pass, null));
+	}
+
+	DavRepository(String root, DavTransport transport) {
 		this.urlRoot = root.endsWith("/") ? root : root + "/";
-		this.sardine = createSardine(user, pass);
+		this.transport = transport;
+		this.executor = createExecutor(LOCAL_IO_THREADS);
 	}
-	private Sardine createSardine(String user, String pass) {
-		try {
-			if (user == null) {
-				return SardineFactory.begin();
-			} else {
-				return SardineFactory.begin(user, pass);
-			}
-		} catch (SardineException ex) {
-			throw new RuntimeException("Exception creating WebDAV connector",
-					ex);
+
+	/**
+	 * Create the named transport: <code>sardine</code> (the default) or
+	 * <code>http2</code>. The SSLContext is used for webdavs:// roots and may
+	 * be null for the JVM default.
+	 */
+	static DavTransport createTransport(String name, String user, String pass, SSLContext sslContext) {
+		return createTransport(name, user, pass, sslContext, 0, 0);
+	}
+
+	/**
+	 * Create the named transport with the given connect timeout and, for
+	 * Sardine, socket read timeout; zero for none.
+	 */
+	static DavTransport createTransport(String name, String user, String pass, SSLContext sslContext,
+			int connectMillis, int readMillis) {
+		if (name == null || TRANSPORT_SARDINE.equals(name)) {
+			return new SardineTransport(user, pass, sslContext, connectMillis, readMillis);
+		} else if (TRANSPORT_HTTP2.equals(name)) {
+			return new JdkHttpTransport(user, pass, sslContext, connectMillis);
+		}
+		throw new IllegalArgumentException("Unknown WebDAV transport: " + name);
+	}
+
+	private static ExecutorService createExecutor(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ivydav-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	void close() {
+		transport.close();
+		executor.shutdown();
+		MetadataIndex index = metadataIndex;
+		if (index != null) {
+			index.close();
 		}
 	}
 	
@@ -94,6 +182,10 @@ public class DavRepository {
 		return combined;
 	}
 
+	String getRoot() {
+		return urlRoot;
+	}
+
 	String getDavURIAsItem(String uri) {
 		return combine(urlRoot, uri, false);
 	}
@@ -123,6 +215,9 @@ public class DavRepository {
 		if (davURI.startsWith(IvyRepository.PROTOCOL + "://")) {
 			davURI = davURI.replaceFirst(IvyRepository.PROTOCOL, "http");
 		}
+		else if (davURI.startsWith(IvyRepository.SECURE_PROTOCOL + "://")) {
+			davURI = "https" + davURI.substring(IvyRepository.SECURE_PROTOCOL.length());
+		}
 
 		return davURI;
 	}
@@ -135,116 +230,453 @@ public class DavRepository {
 		if (httpURI.startsWith("http://")) {
 			httpURI = httpURI.replaceFirst("http", IvyRepository.PROTOCOL);
 		}
+		else if (httpURI.startsWith("https://")) {
+			httpURI = IvyRepository.SECURE_PROTOCOL + httpURI.substring("https".length());
+		}
 
 		return httpURI;
 	}
 
-	private List<com.googlecode.sardine.DavResource> getSardineDirectoryResources(
-			String uri) throws IOException {
-		String httpURI = httpize(getDavURIAsPath(uri));
-		return sardine.getResources(httpURI);
+	<T> CompletableFuture<T> submit(final IOCallable<T> work) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		executor.execute(() -> {
+			if (future.isDone()) {
+				// cancelled while queued
+				return;
+			}
+			try {
+				future.complete(work.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		return future;
 	}
 
-	List<String> getDirectoryResources(String uri) throws IOException {
-		ArrayList<String> items = new ArrayList<String>();
-		List<com.googlecode.sardine.DavResource> sardineResources = getSardineDirectoryResources(uri);
-        for (com.googlecode.sardine.DavResource resource : sardineResources) {
-        	if (!resource.isCurrentDirectory()) {
-        		items.add(stripRoot(unhttpize(resource.getAbsoluteUrl())));
-        	}
-        }
-		return items;
+	/**
+	 * Wait for the given operation, rethrowing its failure as the original
+	 * <code>IOException</code> (or <code>RuntimeException</code>) where possible.
+	 * Within a {@link Deadline} the operation is cancelled once it has passed.
+	 */
+	static <T> T await(CompletableFuture<T> future) throws IOException {
+		Deadline deadline = Deadline.current();
+		try {
+			if (deadline == null) {
+				return future.get();
+			}
+			return future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			// shared answers are handed out as copies, so this is the caller's own
+			future.cancel(true);
+			throw deadline.exceeded();
+		} catch (CancellationException ex) {
+			if (deadline != null) {
+				throw deadline.exceeded();
+			}
+			throw new InterruptedIOException("WebDAV operation cancelled");
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for WebDAV operation");
+		} catch (ExecutionException ex) {
+			Throwable cause = unwrap(ex.getCause());
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("WebDAV operation failed", cause);
+		}
 	}
-	
-	private com.googlecode.sardine.DavResource getSardineResource(String uri)
-			throws IOException, SardineException {
-		String httpURI = httpize(getDavURIAsItem(uri));
-		List<com.googlecode.sardine.DavResource> resources = sardine.getResources(httpURI);
-		if (resources == null || resources.isEmpty()) {
-			return null;
-		} else if (resources.size() > 1) {
-			throw new IOException(uri + " cannot be accessed as a single item");
-		} else {
-			return resources.get(1);
+
+	static Throwable unwrap(Throwable t) {
+		while (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
 		}
+		return t;
+	}
+
+	static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		f.completeExceptionally(t);
+		return f;
+	}
+
+	static boolean isStatus(Throwable t, int status) {
+		Throwable cause = unwrap(t);
+		return cause instanceof DavException && ((DavException) cause).getStatusCode() == status;
+	}
+
+	// drop cached metadata of what the operation changes, once it is over
+	private <T> CompletableFuture<T> changing(CompletableFuture<T> change, final String... uris) {
+		final MetadataCache cache = metadataCache;
+		final MetadataIndex index = metadataIndex;
+		return change.whenComplete((v, t) -> {
+			for (String uri : uris) {
+				resources.invalidate(uri);
+				if (cache != null) {
+					cache.invalidate(uri);
+				}
+				if (index != null) {
+					index.remove(getDavURIAsItem(uri));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replace a failure of the given operation with the given IOException
+	 * wrapping it, as the blocking API has always reported put/delete failures.
+	 */
+	private static <T> CompletableFuture<T> describeFailure(CompletableFuture<T> f, final String message) {
+		return f.handle((v, t) -> t == null
+				? CompletableFuture.completedFuture(v)
+				: DavRepository.<T>failed(new IOException(message, unwrap(t))))
+			.thenCompose(x -> x);
+	}
+
+	List<String> getDirectoryResources(String uri) throws IOException {
+		return await(getDirectoryResourcesAsync(uri));
+	}
+
+	CompletableFuture<List<String>> getDirectoryResourcesAsync(final String uri) {
+		return getDirectoryEntriesAsync(uri).thenApply(entries -> new ArrayList<String>(entries.keySet()));
+	}
+
+	Map<String, WebserverData> getDirectoryEntries(String uri) throws IOException {
+		return await(getDirectoryEntriesAsync(uri));
+	}
+
+	/**
+	 * List a collection along with the metadata the server returned for each
+	 * child, keyed by the child's URI relative to the root, in listing order.
+	 */
+	CompletableFuture<Map<String, WebserverData>> getDirectoryEntriesAsync(final String uri) {
+		String httpURI = httpize(getDavURIAsPath(uri));
+		return propfind(httpURI, 1).thenApply(entries -> {
+			Map<String, WebserverData> items = new LinkedHashMap<String, WebserverData>();
+			MetadataIndex index = metadataIndex;
+			for (DavTransport.Entry entry : entries) {
+				if (!entry.currentDirectory) {
+					String child = stripRoot(unhttpize(entry.url));
+					items.put(child, entry.data);
+					if (index != null && entry.data != null && isImmutable(child)) {
+						index.put(getDavURIAsItem(child), entry.data);
+					}
+				}
+			}
+			return items;
+		});
+	}
+
+	static boolean isDirectory(String uri, WebserverData data) {
+		return uri.endsWith("/") || (data != null && DIRECTORY_CONTENT_TYPE.equals(data.contentType));
+	}
+
+	private CompletableFuture<List<DavTransport.Entry>> propfind(final String httpUri, final int depth) {
+		TransferScheduler s = scheduler;
+		return s == null ? transport.propfind(httpUri, depth)
+				: s.submit(TransferScheduler.Priority.METADATA, () -> transport.propfind(httpUri, depth));
+	}
+
+	// a change to the server, queued behind everything resolution waits on
+	private <T> CompletableFuture<T> write(Supplier<CompletableFuture<T>> request) {
+		TransferScheduler s = scheduler;
+		return s == null ? request.get() : s.submit(TransferScheduler.Priority.WRITE, request);
+	}
+
+	/**
+	 * The resource at the given URI: one instance per URI for as long as
+	 * anything holds on to it, so its metadata is fetched once for all users.
+	 */
+	DavResource getResource(String uri) {
+		return resources.get(uri);
 	}
 
 	WebserverData getResourceMetadata(String uri) throws IOException {
-		String httpUri = httpize(getDavURIAsItem(uri));
-		WebserverData data = null;
-		try {
-			List<com.googlecode.sardine.DavResource> resources = sardine.getResources(httpUri);
-			com.googlecode.sardine.DavResource resource = resources.get(0);
-			data = createWebserverContent(resource);
+		return await(getResourceMetadataAsync(uri));
+	}
+
+	/**
+	 * Queue PROPFINDs, downloads and changes by priority, and limit downloads
+	 * and changes, through the given scheduler; null to issue every request
+	 * at once.
+	 */
+	void setTransferScheduler(TransferScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * The tracing transport through which this repository's requests to the
+	 * server go, possibly wrapped in another, for listeners to be added to.
+	 */
+	void setTracingTransport(TracingTransport tracing) {
+		this.tracing = tracing;
+	}
+
+	void addTraceListener(TransferTraceListener listener) {
+		TracingTransport t = tracing;
+		if (t == null) {
+			throw new IllegalStateException("Requests to " + urlRoot + " are not traced");
+		}
+		t.addListener(listener);
+	}
+
+	void removeTraceListener(TransferTraceListener listener) {
+		TracingTransport t = tracing;
+		if (t != null) {
+			t.removeListener(listener);
+		}
+	}
+
+	/**
+	 * Cache metadata of resources matching the cache's patterns; null to turn
+	 * caching off.
+	 */
+	void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
+	/**
+	 * Persist metadata of resources matching the given comma separated
+	 * patterns (see {@link MetadataCache#parse}) in the index, and answer
+	 * lookups of them from it without asking the server: such resources, e.g.
+	 * released artifacts, are taken never to change once published. The
+	 * repository releases the index when closed.
+	 */
+	void setMetadataIndex(MetadataIndex index, String immutable) {
+		this.immutablePatterns = MetadataCache.globsToPatterns(immutable);
+		this.metadataIndex = index;
+	}
+
+	private boolean isImmutable(String uri) {
+		String path = uri.startsWith("/") ? uri.substring(1) : uri;
+		for (Pattern pattern : immutablePatterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
 		}
-		catch (SardineException ex) {
-			if (ex.getStatusCode() == 404) {
-				return null;
+		return false;
+	}
+
+	CompletableFuture<WebserverData> getResourceMetadataAsync(final String uri) {
+		return getResourceMetadataAsync(uri, false);
+	}
+
+	private CompletableFuture<WebserverData> getResourceMetadataAsync(final String uri, boolean prefetch) {
+		final MetadataIndex index = metadataIndex;
+		if (index != null && isImmutable(uri)) {
+			final String key = getDavURIAsItem(uri);
+			WebserverData known = index.get(key);
+			if (known != null) {
+				return CompletableFuture.completedFuture(known);
 			}
-			else {
-				throw ex;
+			return lookupResourceMetadataAsync(uri, prefetch).thenApply(data -> {
+				if (data != null) {
+					index.put(key, data);
+				}
+				return data;
+			});
+		}
+		return lookupResourceMetadataAsync(uri, prefetch);
+	}
+
+	private CompletableFuture<WebserverData> lookupResourceMetadataAsync(final String uri, boolean prefetch) {
+		if (prefetch) {
+			return prefetchCache().prefetch(uri, this::fetchResourceMetadataAsync);
+		}
+		MetadataCache cache = metadataCache;
+		return cache == null ? fetchResourceMetadataAsync(uri) : cache.get(uri, this::fetchResourceMetadataAsync);
+	}
+
+	// prefetched answers need somewhere to live even if no caching is configured
+	private synchronized MetadataCache prefetchCache() {
+		if (metadataCache == null) {
+			metadataCache = new MetadataCache();
+		}
+		return metadataCache;
+	}
+
+	/**
+	 * Fetch the metadata of the given resources ahead of need, keeping it for
+	 * the lookups Ivy is about to make, and optionally their content too (of
+	 * use when the transport keeps it, i.e. with a local mirror). At most
+	 * <code>parallelism</code> requests are in flight; failures are only
+	 * logged, as the resolve will find out for itself.
+	 *
+	 * @return resources found (as files), absent (as skipped) and bytes read
+	 */
+	CompletableFuture<TransferStats> prefetchAsync(Collection<String> uris, final boolean content, int parallelism) {
+		final long start = System.currentTimeMillis();
+		final AsyncLimiter limiter = new AsyncLimiter(parallelism);
+		final AtomicLong found = new AtomicLong();
+		final AtomicLong absent = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		List<CompletableFuture<Void>> fetches = new ArrayList<CompletableFuture<Void>>();
+		for (final String uri : uris) {
+			fetches.add(limiter.submit(() -> getResourceMetadataAsync(uri, true))
+				.thenCompose(data -> {
+					if (data == null) {
+						absent.incrementAndGet();
+						return CompletableFuture.<Void>completedFuture(null);
+					}
+					found.incrementAndGet();
+					if (!content || DIRECTORY_CONTENT_TYPE.equals(data.contentType)) {
+						return CompletableFuture.<Void>completedFuture(null);
+					}
+					return limiter.submit(() -> getResourceStreamAsync(uri).thenCompose(is -> submit(() -> {
+						bytes.addAndGet(drain(is));
+						return null;
+					})));
+				})
+				.handle((v, t) -> {
+					if (t != null) {
+						Message.verbose("ivydav: prefetching " + uri + " failed: " + unwrap(t).getMessage());
+					}
+					return null;
+				}));
+		}
+		return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[fetches.size()]))
+			.thenApply(v -> new TransferStats(found.get(), absent.get(), bytes.get(),
+					System.currentTimeMillis() - start));
+	}
+
+	private static long drain(InputStream is) throws IOException {
+		try {
+			byte[] buf = new byte[8192];
+			long total = 0;
+			for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
+				total += n;
 			}
+			return total;
+		} finally {
+			is.close();
 		}
-		return data;
 	}
-	InputStream getResourceStream(String uri) throws IOException {
+
+	private CompletableFuture<WebserverData> fetchResourceMetadataAsync(final String uri) {
 		String httpUri = httpize(getDavURIAsItem(uri));
-		InputStream is = sardine.getInputStream(httpUri);
-		return is;
+		return propfind(httpUri, 0).handle((entries, t) -> {
+			if (t == null) {
+				return CompletableFuture.completedFuture(entries.isEmpty() ? null : entries.get(0).data);
+			}
+			if (isStatus(t, 404)) {
+				return CompletableFuture.<WebserverData>completedFuture(null);
+			}
+			return DavRepository.<WebserverData>failed(unwrap(t));
+		}).thenCompose(x -> x);
 	}
-	
-	WebserverData createWebserverContent(com.googlecode.sardine.DavResource resource) {
-		WebserverData r = new WebserverData();
-		r.modifiedAt = resource.getModified().getTime();
-		r.createdAt = resource.getCreation().getTime();
-		r.contentType = resource.getContentType();
-		r.contentLength = resource.getContentLength();
-		return r;
+
+	InputStream getResourceStream(String uri) throws IOException {
+		return await(getResourceStreamAsync(uri));
+	}
+
+	CompletableFuture<InputStream> getResourceStreamAsync(final String uri) {
+		final String httpUri = httpize(getDavURIAsItem(uri));
+		TransferScheduler s = scheduler;
+		return s == null ? transport.get(httpUri)
+				: s.download(TransferScheduler.classify(uri), () -> transport.get(httpUri));
+	}
+
+	void getResourceToFile(String uri, File destination, CopyProgressListener listener) throws IOException {
+		await(getResourceToFileAsync(uri, destination, listener));
+	}
+
+	/**
+	 * Download a resource into a local file. The listener may be null.
+	 */
+	CompletableFuture<Void> getResourceToFileAsync(final String uri, final File destination,
+			final CopyProgressListener listener) {
+		return getResourceStreamAsync(uri).thenCompose(is -> submit(() -> {
+			try {
+				ChannelCopy.copy(is, destination, listener);
+			} finally {
+				try {
+					is.close();
+				} catch (IOException ex) {
+				}
+			}
+			return null;
+		}));
 	}
 
 	boolean existsItem(String uri) throws IOException {
-		try {
-			return null != getSardineResource(uri);
-		} catch (SardineException ex) {
+		return await(existsItemAsync(uri));
+	}
+
+	CompletableFuture<Boolean> existsItemAsync(final String uri) {
+		String httpURI = httpize(getDavURIAsItem(uri));
+		return propfind(httpURI, 0).handle((entries, t) -> {
+			if (t == null) {
+				if (entries.size() > 1) {
+					return DavRepository.<Boolean>failed(new IOException(uri + " cannot be accessed as a single item"));
+				}
+				return CompletableFuture.completedFuture(!entries.isEmpty());
+			}
+			return existenceFromFailure(uri, t);
+		}).thenCompose(x -> x);
+	}
+
+	private static CompletableFuture<Boolean> existenceFromFailure(String uri, Throwable t) {
+		Throwable cause = unwrap(t);
+		if (cause instanceof DavException) {
+			DavException ex = (DavException) cause;
 			Message.debug("URI: " + uri + ", status: " + ex.getStatusCode()
-					+ "; response: " + ex.getResponsePhrase() + "; message: "
-					+ ex.getMessage());
-			int st = ex.getStatusCode();
-			return st != 404;
+					+ "; message: " + ex.getMessage());
+			return CompletableFuture.completedFuture(ex.getStatusCode() != 404);
 		}
+		return failed(cause);
 	}
 
 	boolean existsPath(String uri) throws IOException {
-		try {
-			List<com.googlecode.sardine.DavResource> resources = getSardineDirectoryResources(uri);
-			return resources != null;
-		}
-		catch (SardineException ex) {
-			Message.debug("URI: " + uri
-					+ ", status: " + ex.getStatusCode() + "; response: "
-					+ ex.getResponsePhrase() + "; message: " + ex.getMessage());
-			int st = ex.getStatusCode();
-			return st != 404;
-		}
+		return await(existsPathAsync(uri));
+	}
+
+	CompletableFuture<Boolean> existsPathAsync(final String uri) {
+		String httpURI = httpize(getDavURIAsPath(uri));
+		return propfind(httpURI, 0).handle((entries, t) -> t == null
+				? CompletableFuture.completedFuture(Boolean.TRUE)
+				: existenceFromFailure(uri, t))
+			.thenCompose(x -> x);
+	}
+
+	boolean ensurePathExists(String uri) throws IOException {
+		return await(ensurePathExistsAsync(uri));
 	}
-    boolean ensurePathExists(String uri) throws IOException {
-		if (!existsPath(uri)) {
+
+	CompletableFuture<Boolean> ensurePathExistsAsync(final String uri) {
+		return existsPathAsync(uri).thenCompose(exists -> {
+			if (exists) {
+				Message.debug(uri+" exists");
+				return CompletableFuture.completedFuture(Boolean.TRUE);
+			}
 			Message.debug(uri+" does not exist");
 			String parentURI = getParentOf(uri);
 			if (parentURI == null) {
 				// we are at the root level, we know the root level exists. 
-				sardine.createDirectory(httpize(combine(urlRoot,uri,true)));
-				return true;
+				return createDirectoryAsync(uri).thenApply(v -> Boolean.TRUE);
 			}
-			else if (ensurePathExists(parentURI)) {
-				sardine.createDirectory(httpize(combine(urlRoot,uri,true)));
-				return true;
+			return ensurePathExistsAsync(parentURI).thenCompose(parentExists -> parentExists
+					? createDirectoryAsync(uri).thenApply(v -> Boolean.TRUE)
+					: CompletableFuture.completedFuture(Boolean.FALSE));
+		});
+	}
+
+	/**
+	 * MKCOL a single collection; its parent must already exist. A collection
+	 * created concurrently by someone else (405) counts as success.
+	 */
+	CompletableFuture<Void> createDirectoryAsync(final String uri) {
+		return write(() -> transport.mkcol(httpize(combine(urlRoot,uri,true)))).handle((v, t) -> {
+			if (t == null || isStatus(t, 405)) {
+				return CompletableFuture.<Void>completedFuture(null);
 			}
-			return false;
-		}
-		Message.debug(uri+" exists");
-		return true;
+			return DavRepository.<Void>failed(unwrap(t));
+		}).thenCompose(x -> x);
 	}
+
 	String getParentOf(String uri) {
 		int idx = uri.lastIndexOf("/");
 		if (idx >= 0) {
@@ -257,46 +689,341 @@ public class DavRepository {
 	
 	void putResource(String uri, InputStream is) throws IOException {
 		try {
-			String parentURI = getParentOf(uri);
-			// create path if it doesn't exist
-			if (parentURI != null && ensurePathExists(parentURI)) {
-				putSardineResource(uri, is);
-			}
-			else {
-				throw new IOException("Could not create container for "+uri);
-			}
+			await(putResourceAsync(uri, is));
 		}
-		catch (SardineException ex) {
+		catch (DavException ex) {
 			throw new IOException("Failed to put", ex);
 		}
 	}
-	
-	private void putSardineResource(String uri, InputStream is) throws IOException {
-		String httpUri = httpize(getDavURIAsItem(uri));
-		try {
-			sardine.put(httpUri, is);
+
+	CompletableFuture<Void> putResourceAsync(final String uri, final InputStream is) {
+		final String httpUri = httpize(getDavURIAsItem(uri));
+		return changing(ensureParentExistsAsync(uri).thenCompose(v ->
+				describeFailure(write(() -> transport.put(httpUri, is)), "Failed to put to "+httpUri)), uri);
+	}
+
+	/**
+	 * PUT a stream to a resource whose parent collection is known to exist,
+	 * saving the existence check of {@link #putResourceAsync}.
+	 */
+	CompletableFuture<Void> putIntoExistingAsync(final String uri, final InputStream is) {
+		final String httpUri = httpize(getDavURIAsItem(uri));
+		return changing(describeFailure(write(() -> transport.put(httpUri, is)), "Failed to put to "+httpUri), uri);
+	}
+
+	/**
+	 * Upload a local file, creating any missing parent collections first.
+	 */
+	CompletableFuture<Void> putResourceAsync(final String uri, final File source) {
+		final String httpUri = httpize(getDavURIAsItem(uri));
+		return changing(ensureParentExistsAsync(uri).thenCompose(v ->
+				describeFailure(write(() -> transport.put(httpUri, source)), "Failed to put to "+httpUri)), uri);
+	}
+
+	private CompletableFuture<Void> ensureParentExistsAsync(final String uri) {
+		String parentURI = getParentOf(uri);
+		if (parentURI == null) {
+			return failed(new IOException("Could not create container for "+uri));
+		}
+		// create path if it doesn't exist
+		return ensurePathExistsAsync(parentURI).thenCompose(exists -> exists
+				? CompletableFuture.<Void>completedFuture(null)
+				: DavRepository.<Void>failed(new IOException("Could not create container for "+uri)));
+	}
+
+	TransferStats uploadTree(File localDir, String uri, boolean overwrite, int parallelism) throws IOException {
+		return await(uploadTreeAsync(localDir, uri, overwrite, parallelism));
+	}
+
+	/**
+	 * Upload everything below a local directory into the given collection.
+	 * Collections are created once, breadth-first with each level issued
+	 * concurrently, so no PUT needs an existence check of its parent; files
+	 * are then streamed with at most <code>parallelism</code> requests in
+	 * flight. Without overwrite, files already present with the same size in
+	 * a collection that existed beforehand are skipped, which makes an
+	 * interrupted upload cheap to resume. Directory links are followed, except
+	 * back into a directory being uploaded.
+	 */
+	CompletableFuture<TransferStats> uploadTreeAsync(final File localDir, final String uri,
+			final boolean overwrite, int parallelism) {
+		final long start = System.currentTimeMillis();
+		final AsyncLimiter limiter = new AsyncLimiter(parallelism);
+		final String base = trimTrailingSlash(uri);
+		final Set<String> existing = ConcurrentHashMap.newKeySet();
+		existing.add("");
+		return changing(submit(() -> LocalTree.scan(localDir))
+			.thenCompose(tree -> ensurePathExistsAsync(base)
+				.thenCompose(exists -> exists
+						? createLevelsAsync(tree.levels, 0, base, existing, limiter)
+						: DavRepository.<Void>failed(new IOException("Could not create container for "+uri)))
+				.thenCompose(v -> putTreeFilesAsync(tree, base, overwrite, existing, limiter)))
+			.thenApply(counts -> {
+				TransferStats stats = new TransferStats(counts[0], counts[1], counts[2],
+						System.currentTimeMillis() - start);
+				Message.verbose("ivydav: uploaded " + localDir + " to " + uri + ": " + stats);
+				return stats;
+			}), uri);
+	}
+
+	private CompletableFuture<Void> createLevelsAsync(final List<List<String>> levels, final int level,
+			final String base, final Set<String> existing, final AsyncLimiter limiter) {
+		if (level == levels.size()) {
+			return CompletableFuture.completedFuture(null);
 		}
-		catch (SardineException ex) {
-			throw new IOException("Failed to put to "+httpUri, ex);
+		List<CompletableFuture<Void>> created = new ArrayList<CompletableFuture<Void>>();
+		for (final String dir : levels.get(level)) {
+			final String httpUri = httpize(getDavURIAsPath(base + "/" + dir));
+			created.add(limiter.submit(() -> write(() -> transport.mkcol(httpUri))).handle((v, t) -> {
+				if (t == null) {
+					return CompletableFuture.<Void>completedFuture(null);
+				} else if (isStatus(t, 405)) {
+					existing.add(dir);
+					return CompletableFuture.<Void>completedFuture(null);
+				}
+				return DavRepository.<Void>failed(new IOException("Could not create container "+httpUri, unwrap(t)));
+			}).thenCompose(x -> x));
 		}
+		return CompletableFuture.allOf(created.toArray(new CompletableFuture<?>[created.size()]))
+			.thenCompose(v -> createLevelsAsync(levels, level + 1, base, existing, limiter));
 	}
-	
+
+	// returns {files put, files skipped, bytes put}
+	private CompletableFuture<long[]> putTreeFilesAsync(LocalTree tree, final String base, final boolean overwrite,
+			Set<String> existing, final AsyncLimiter limiter) {
+		final AtomicLong files = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+		for (Map.Entry<String, List<File>> dir : tree.files.entrySet()) {
+			final String dirUri = dir.getKey().length() == 0 ? base : base + "/" + dir.getKey();
+			final List<File> contents = dir.getValue();
+			CompletableFuture<Map<String, Long>> present = !overwrite && existing.contains(dir.getKey())
+					? limiter.submit(() -> getDirectoryEntriesAsync(dirUri)).thenApply(DavRepository::fileLengths)
+					: CompletableFuture.completedFuture(Collections.<String, Long>emptyMap());
+			puts.add(present.thenCompose(lengths -> {
+				List<CompletableFuture<Void>> dirPuts = new ArrayList<CompletableFuture<Void>>();
+				for (final File file : contents) {
+					final long length = file.length();
+					// a shorter one is what an interrupted upload left behind
+					if (Long.valueOf(length).equals(lengths.get(file.getName()))) {
+						skipped.incrementAndGet();
+						continue;
+					}
+					final String httpUri = httpize(getDavURIAsItem(dirUri + "/" + file.getName()));
+					dirPuts.add(describeFailure(limiter.submit(() -> write(() -> transport.put(httpUri, file))),
+							"Failed to put to "+httpUri)
+						.thenRun(() -> {
+							files.incrementAndGet();
+							bytes.addAndGet(length);
+						}));
+				}
+				return CompletableFuture.allOf(dirPuts.toArray(new CompletableFuture<?>[dirPuts.size()]));
+			}));
+		}
+		return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[puts.size()]))
+			.thenApply(v -> new long[] { files.get(), skipped.get(), bytes.get() });
+	}
+
+	// the sizes of the files (not collections) listed, by name
+	private static Map<String, Long> fileLengths(Map<String, WebserverData> entries) {
+		Map<String, Long> lengths = new HashMap<String, Long>();
+		for (Map.Entry<String, WebserverData> child : entries.entrySet()) {
+			if (child.getValue() != null && !isDirectory(child.getKey(), child.getValue())) {
+				String name = trimTrailingSlash(child.getKey());
+				lengths.put(name.substring(name.lastIndexOf('/') + 1), child.getValue().getContentLength());
+			}
+		}
+		return lengths;
+	}
+
+	/**
+	 * A local directory tree: its subdirectories grouped by depth and its
+	 * files grouped by directory, all as paths relative to the top.
+	 */
+	private static final class LocalTree {
+		final List<List<String>> levels = new ArrayList<List<String>>();
+		final Map<String, List<File>> files = new LinkedHashMap<String, List<File>>();
+
+		static LocalTree scan(File top) throws IOException {
+			if (!top.isDirectory()) {
+				throw new IOException(top + " is not a directory");
+			}
+			LocalTree tree = new LocalTree();
+			// real locations of the directories scanned, to tell links back up the tree
+			Map<String, Path> real = new HashMap<String, Path>();
+			real.put("", top.toPath().toRealPath());
+			List<String> current = Collections.singletonList("");
+			while (!current.isEmpty()) {
+				List<String> next = new ArrayList<String>();
+				for (String dir : current) {
+					File[] children = (dir.length() == 0 ? top : new File(top, dir)).listFiles();
+					if (children == null) {
+						throw new IOException("Could not list " + new File(top, dir));
+					}
+					Arrays.sort(children);
+					List<File> dirFiles = new ArrayList<File>();
+					for (File child : children) {
+						if (child.isDirectory()) {
+							Path childReal = child.toPath().toRealPath();
+							if (isLoop(real, dir, childReal)) {
+								Message.warn("ivydav: not uploading " + child + ", a link to " + childReal
+										+ " which contains it");
+								continue;
+							}
+							String path = dir.length() == 0 ? child.getName() : dir + "/" + child.getName();
+							real.put(path, childReal);
+							next.add(path);
+						} else {
+							dirFiles.add(child);
+						}
+					}
+					tree.files.put(dir, dirFiles);
+				}
+				if (!next.isEmpty()) {
+					tree.levels.add(next);
+				}
+				current = next;
+			}
+			return tree;
+		}
+
+		// whether the real directory is that of dir or of one of its ancestors
+		private static boolean isLoop(Map<String, Path> real, String dir, Path childReal) {
+			for (String d = dir;; d = d.substring(0, Math.max(d.lastIndexOf('/'), 0))) {
+				if (childReal.equals(real.get(d))) {
+					return true;
+				} else if (d.length() == 0) {
+					return false;
+				}
+			}
+		}
+	}
+
 	void deleteFile(String uri) throws IOException {
-		String processedUri = getDavURIAsItem(uri);
-		deleteResource(processedUri);
+		await(deleteFileAsync(uri));
 	}
 	void deleteDirectory(String uri) throws IOException {
-		String processedUri = getDavURIAsPath(uri);
-		deleteResource(processedUri);
+		await(deleteDirectoryAsync(uri));
 	}
-	void deleteResource(String processedUri) throws IOException {
-		String httpUri = httpize(processedUri);
-		try {
-			sardine.delete(httpUri);
+	CompletableFuture<Void> deleteFileAsync(String uri) {
+		return changing(deleteResourceAsync(getDavURIAsItem(uri)), uri);
+	}
+	CompletableFuture<Void> deleteDirectoryAsync(String uri) {
+		return deleteTreeAsync(uri, new AsyncLimiter(DEFAULT_DELETE_PARALLELISM));
+	}
+
+	/**
+	 * Delete a collection and everything below it. A single Depth: infinity
+	 * DELETE is tried first; if the server refuses it (or fails part way) the
+	 * tree is walked with listings, leaves are deleted concurrently and the
+	 * emptied collections removed bottom-up. Failures a walk would only
+	 * repeat, such as 401, 403 or 423, are not retried. Every request,
+	 * including the first DELETE, goes through the given limiter so several
+	 * trees can share one bound.
+	 */
+	CompletableFuture<Void> deleteTreeAsync(String uri, final AsyncLimiter limiter) {
+		final String davUri = getDavURIAsPath(uri);
+		final String httpUri = httpize(davUri);
+		CompletableFuture<Void> deleted = limiter.submit(() -> write(() -> transport.delete(httpUri)))
+			.handle((v, t) -> {
+				if (t == null || isStatus(t, 404)) {
+					return CompletableFuture.<Void>completedFuture(null);
+				} else if (!refusesRecursiveDelete(t)) {
+					return DavRepository.<Void>failed(unwrap(t));
+				}
+				Message.verbose("ivydav: DELETE of " + httpUri + " failed (" + unwrap(t).getMessage()
+						+ "), deleting its contents individually");
+				return deleteWalkAsync(stripRoot(davUri), limiter);
+			})
+			.thenCompose(x -> x);
+		return changing(describeFailure(deleted, "Failed to delete "+httpUri), uri);
+	}
+
+	// the statuses with which servers refuse, or fail part way through, a recursive DELETE
+	private static boolean refusesRecursiveDelete(Throwable t) {
+		Throwable cause = unwrap(t);
+		if (!(cause instanceof DavException)) {
+			return false;
 		}
-		catch (SardineException ex) {
-			throw new IOException("Failed to delete "+httpUri, ex);
+		switch (((DavException) cause).getStatusCode()) {
+		case 207: // Multi-Status: some members could not be deleted
+		case 400:
+		case 405:
+		case 409:
+		case 500:
+		case 501:
+		case 502:
+		case 504:
+		case 507:
+			return true;
+		default:
+			return false;
 		}
 	}
-}
 
+	private CompletableFuture<Void> deleteWalkAsync(final String uri, final AsyncLimiter limiter) {
+		return limiter.submit(() -> getDirectoryEntriesAsync(uri)).thenCompose(children -> {
+			List<CompletableFuture<Void>> deletions = new ArrayList<CompletableFuture<Void>>();
+			for (Map.Entry<String, WebserverData> child : children.entrySet()) {
+				if (isDirectory(child.getKey(), child.getValue())) {
+					deletions.add(deleteWalkAsync(child.getKey(), limiter));
+				} else {
+					deletions.add(deleteIgnoringMissing(getDavURIAsItem(child.getKey()), limiter));
+				}
+			}
+			return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[deletions.size()]))
+				.thenCompose(v -> deleteIgnoringMissing(getDavURIAsPath(uri), limiter));
+		});
+	}
+
+	private CompletableFuture<Void> deleteIgnoringMissing(String davUri, AsyncLimiter limiter) {
+		final String httpUri = httpize(davUri);
+		return limiter.submit(() -> write(() -> transport.delete(httpUri))).handle((v, t) -> {
+			if (t == null || isStatus(t, 404)) {
+				return CompletableFuture.<Void>completedFuture(null);
+			}
+			return DavRepository.<Void>failed(unwrap(t));
+		}).thenCompose(x -> x);
+	}
+	void deleteResource(String processedUri) throws IOException {
+		await(deleteResourceAsync(processedUri));
+	}
+	CompletableFuture<Void> deleteResourceAsync(String processedUri) {
+		String httpUri = httpize(processedUri);
+		return describeFailure(write(() -> transport.delete(httpUri)), "Failed to delete "+httpUri);
+	}
+
+	void copy(String fromUri, String toUri, boolean overwrite) throws IOException {
+		await(copyAsync(fromUri, toUri, overwrite));
+	}
+
+	/**
+	 * Server-side copy of a resource, or of a whole collection if the URIs end
+	 * in '/'. Missing parents of the destination are created first.
+	 */
+	CompletableFuture<Void> copyAsync(String fromUri, String toUri, boolean overwrite) {
+		final String from = httpize(getDavURI(fromUri, fromUri.endsWith("/")));
+		final String to = httpize(getDavURI(toUri, fromUri.endsWith("/")));
+		return changing(ensureParentExistsAsync(trimTrailingSlash(toUri)).thenCompose(v ->
+				write(() -> transport.copy(from, to, overwrite))), toUri);
+	}
+
+	void move(String fromUri, String toUri, boolean overwrite) throws IOException {
+		await(moveAsync(fromUri, toUri, overwrite));
+	}
+
+	/**
+	 * Server-side move, with the same conventions as {@link #copyAsync}.
+	 */
+	CompletableFuture<Void> moveAsync(String fromUri, String toUri, boolean overwrite) {
+		final String from = httpize(getDavURI(fromUri, fromUri.endsWith("/")));
+		final String to = httpize(getDavURI(toUri, fromUri.endsWith("/")));
+		return changing(ensureParentExistsAsync(trimTrailingSlash(toUri)).thenCompose(v ->
+				write(() -> transport.move(from, to, overwrite))), fromUri, toUri);
+	}
+
+	static String trimTrailingSlash(String uri) {
+		return uri.endsWith("/") ? uri.substring(0, uri.length() - 1) : uri;
+	}
+}
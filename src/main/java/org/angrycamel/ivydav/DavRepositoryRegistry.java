@@ -0,0 +1,126 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JVM-wide pool of DavRepository instances. Resolvers configured with the
+ * same root, credentials and connection settings share one repository, and
+ * with it one transport (connection pool, TLS sessions, auth) and whatever
+ * the repository caches. Repositories are reference counted and closed when
+ * the last user releases them.
+ */
+final class DavRepositoryRegistry {
+
+	/**
+	 * Creates the repository for a key that is not yet registered.
+	 */
+	interface Factory {
+		DavRepository create();
+	}
+
+	/**
+	 * Identifies repositories that may be shared: all settings that affect
+	 * how the server is reached must be part of the key.
+	 */
+	static final class Key {
+		private final List<String> parts;
+
+		Key(String root, String... settings) {
+			String canonicalRoot = root.endsWith("/") ? root : root + "/";
+			String[] all = new String[settings.length + 1];
+			all[0] = canonicalRoot;
+			System.arraycopy(settings, 0, all, 1, settings.length);
+			this.parts = Arrays.asList(all);
+		}
+
+		public boolean equals(Object o) {
+			if (o == this) return true;
+			else if (o == null || getClass() != o.getClass()) return false;
+			return parts.equals(((Key) o).parts);
+		}
+
+		public int hashCode() {
+			return parts.hashCode();
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		final DavRepository repository;
+		int references;
+
+		Entry(Key key, DavRepository repository) {
+			this.key = key;
+			this.repository = repository;
+		}
+	}
+
+	private static final Map<Key, Entry> BY_KEY = new HashMap<Key, Entry>();
+	private static final Map<DavRepository, Entry> BY_REPOSITORY = new IdentityHashMap<DavRepository, Entry>();
+
+	private DavRepositoryRegistry() {
+	}
+
+	/**
+	 * Get the shared repository for the key, creating it if necessary, and
+	 * take a reference to it.
+	 */
+	static synchronized DavRepository acquire(Key key, Factory factory) {
+		Entry entry = BY_KEY.get(key);
+		if (entry == null) {
+			entry = new Entry(key, factory.create());
+			BY_KEY.put(key, entry);
+			BY_REPOSITORY.put(entry.repository, entry);
+		}
+		entry.references++;
+		return entry.repository;
+	}
+
+	/**
+	 * Drop a reference; the repository is closed once nobody holds one.
+	 *
+	 * @return false if the repository was not obtained from the registry
+	 */
+	static boolean release(DavRepository repository) {
+		DavRepository toClose = null;
+		synchronized (DavRepositoryRegistry.class) {
+			Entry entry = BY_REPOSITORY.get(repository);
+			if (entry == null) {
+				return false;
+			}
+			if (--entry.references == 0) {
+				BY_KEY.remove(entry.key);
+				BY_REPOSITORY.remove(repository);
+				toClose = repository;
+			}
+		}
+		if (toClose != null) {
+			toClose.close();
+		}
+		return true;
+	}
+
+	static synchronized int references(DavRepository repository) {
+		Entry entry = BY_REPOSITORY.get(repository);
+		return entry == null ? 0 : entry.references;
+	}
+}
@@ -19,14 +19,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.angrycamel.ivydav.DavRepository.WebserverData;
-import org.apache.http.annotation.GuardedBy;
 import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.util.Message;
 
-import com.googlecode.sardine.util.SardineException;
-
 /**
  * Equivalent to File in a DAV context. Having an instance of DavResource is necessary 
  * to query and access the resource, but of course doesn't mean the resource exists!
@@ -44,9 +43,25 @@ public class DavResource implements org.apache.ivy.plugins.repository.Resource {
     DavRepository repository = null;
     String uri = null;
 
-    private final Object contentFetchLock = new Object();
-    @GuardedBy(value="contentFetchLock")
-    private transient WebserverData cachedContent = null;
+    // metadata being fetched, or just fetched; readers never wait on a lock,
+    // only on the one fetch under way. Whether an older answer still holds is
+    // for the repository's MetadataCache and its rules to say, so it is asked
+    // again, as are absent resources. A failed fetch is not shared: it may be
+    // down to the deadline of the resolve that made it.
+    private final AtomicReference<Fetch> metadata = new AtomicReference<Fetch>();
+
+    private static final class Fetch {
+    	final CompletableFuture<WebserverData> result = new CompletableFuture<WebserverData>();
+    	volatile long answeredAt;
+
+    	boolean isCurrent() {
+    		if (!result.isDone()) {
+    			return true;
+    		}
+    		return !result.isCompletedExceptionally()
+    				&& System.currentTimeMillis() - answeredAt < MetadataCache.REVALIDATE_AFTER_MILLIS;
+    	}
+    }
     
 	public DavResource() {
 	}
@@ -152,7 +167,7 @@ public class DavResource implements org.apache.ivy.plugins.repository.Resource {
 	        WebserverData metadata = fetchWebserverContent();
 	        return metadata == null ? Existence.ABSENT : (DavRepository.DIRECTORY_CONTENT_TYPE.equals(metadata.getContentType()) ? Existence.DIRECTORY : Existence.FILE);
         }
-        catch (SardineException ex) {
+        catch (DavException ex) {
         	if (ex.getStatusCode() == 301) {
         		return dirish ? Existence.FILE : Existence.DIRECTORY;
         	}
@@ -179,14 +194,54 @@ public class DavResource implements org.apache.ivy.plugins.repository.Resource {
     }
     
     private WebserverData fetchWebserverContent() throws IOException {
-    	synchronized(contentFetchLock) {
-	    	if (cachedContent == null) {
-	    		cachedContent = repository.getResourceMetadata(uri);
-	    	}
-	    	return cachedContent;
+    	while (true) {
+    		Fetch fetch = metadata.get();
+    		if (fetch != null && !fetch.isCurrent()) {
+    			metadata.compareAndSet(fetch, null);
+    		} else if (fetch != null) {
+    			try {
+    				// a waiter giving up cancels its own copy, not the fetch
+    				return DavRepository.await(fetch.result.copy());
+    			} catch (IOException | RuntimeException ex) {
+    				// the fetch failed for whoever made it, e.g. at the deadline
+    				// of its resolve, which need not be ours: ask for ourselves
+    				if (!fetch.result.isCompletedExceptionally()) {
+    					throw ex;
+    				}
+    			}
+    		} else {
+    			Fetch mine = new Fetch();
+    			if (metadata.compareAndSet(null, mine)) {
+    				return fetch(mine);
+    			}
+    		}
     	}
     }
 
+    private WebserverData fetch(Fetch slot) throws IOException {
+    	try {
+    		WebserverData data = repository.getResourceMetadata(uri);
+    		if (data == null) {
+    			metadata.compareAndSet(slot, null);
+    		}
+    		slot.answeredAt = System.currentTimeMillis();
+    		slot.result.complete(data);
+    		return data;
+    	} catch (Throwable ex) {
+    		// only answers are shared; waiters on a failure fetch again
+    		metadata.compareAndSet(slot, null);
+    		slot.result.completeExceptionally(ex);
+    		throw ex;
+    	}
+    }
+
+    /**
+     * Forget the metadata, after the resource has been changed.
+     */
+    void invalidate() {
+    	metadata.set(null);
+    }
+
 	@Override
 	public long getContentLength() {
     	init();
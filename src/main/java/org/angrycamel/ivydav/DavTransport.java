@@ -0,0 +1,80 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+
+/**
+ * The handful of HTTP/WebDAV requests DavRepository needs from a client
+ * library. All URLs are absolute http(s) URLs. Failures complete the returned
+ * future with an <code>IOException</code>; non-success responses use a
+ * {@link DavException} carrying the status code.
+ */
+interface DavTransport {
+
+	/**
+	 * One resource described by a PROPFIND response.
+	 */
+	static class Entry {
+		final String url;
+		final boolean currentDirectory;
+		final WebserverData data;
+
+		Entry(String url, boolean currentDirectory, WebserverData data) {
+			this.url = url;
+			this.currentDirectory = currentDirectory;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * PROPFIND the given URL. Depth 0 describes just the resource; depth 1
+	 * includes its children. Transports unable to honour depth 0 may return
+	 * more entries, the requested resource always being first.
+	 */
+	CompletableFuture<List<Entry>> propfind(String url, int depth);
+
+	CompletableFuture<InputStream> get(String url);
+
+	CompletableFuture<Void> put(String url, InputStream content);
+
+	CompletableFuture<Void> put(String url, File content);
+
+	CompletableFuture<Void> mkcol(String url);
+
+	CompletableFuture<Void> delete(String url);
+
+	/**
+	 * Server-side COPY. Collections are copied with Depth: infinity. Without
+	 * overwrite an existing destination fails with status 412.
+	 */
+	CompletableFuture<Void> copy(String url, String destination, boolean overwrite);
+
+	/**
+	 * Server-side MOVE, with the same semantics as {@link #copy}.
+	 */
+	CompletableFuture<Void> move(String url, String destination, boolean overwrite);
+
+	/**
+	 * Release connections and threads; the transport is unusable afterwards.
+	 */
+	void close();
+}
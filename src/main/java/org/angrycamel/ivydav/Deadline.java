@@ -0,0 +1,96 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.net.SocketTimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Time by which a resolve must be over. While a thread works within a
+ * deadline, every wait for the server ({@link DavRepository#await}) gives up
+ * once it has passed, and requests made from the thread, or queued by it and
+ * started later elsewhere (see {@link #bind}), are cancelled then (see
+ * {@link TimeoutTransport}).
+ */
+final class Deadline {
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+	private final long budgetMillis;
+	private final long expiresAt;
+
+	Deadline(long budgetMillis) {
+		this.budgetMillis = budgetMillis;
+		this.expiresAt = System.nanoTime() + budgetMillis * 1000000;
+	}
+
+	/**
+	 * @return the deadline the calling thread works within, or null
+	 */
+	static Deadline current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Have the calling thread work within the given deadline (null for none)
+	 * until {@link #exit}.
+	 *
+	 * @return the deadline replaced, to be handed to exit
+	 */
+	static Deadline enter(Deadline deadline) {
+		Deadline previous = CURRENT.get();
+		CURRENT.set(deadline);
+		return previous;
+	}
+
+	static void exit(Deadline previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+
+	/**
+	 * Have the operation work within the calling thread's deadline (or none)
+	 * whichever thread later runs it, as queued requests are started by the
+	 * thread that frees a slot for them.
+	 */
+	static <T> Supplier<T> bind(final Supplier<T> operation) {
+		final Deadline deadline = CURRENT.get();
+		return () -> {
+			Deadline previous = enter(deadline);
+			try {
+				return operation.get();
+			} finally {
+				exit(previous);
+			}
+		};
+	}
+
+	long remainingMillis() {
+		long remaining = expiresAt - System.nanoTime();
+		return remaining <= 0 ? 0 : (remaining + 999999) / 1000000;
+	}
+
+	boolean isExpired() {
+		return expiresAt - System.nanoTime() <= 0;
+	}
+
+	SocketTimeoutException exceeded() {
+		return new SocketTimeoutException("Resolve deadline of " + budgetMillis + "ms exceeded");
+	}
+}
@@ -20,41 +20,130 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
+import org.angrycamel.ivydav.DavRepository.WebserverData;
 import org.apache.ivy.core.module.descriptor.Artifact;
 import org.apache.ivy.plugins.repository.AbstractRepository;
 import org.apache.ivy.plugins.repository.RepositoryCopyProgressListener;
 import org.apache.ivy.plugins.repository.Resource;
 import org.apache.ivy.plugins.repository.TransferEvent;
-import org.apache.ivy.util.CopyProgressListener;
-import org.apache.ivy.util.FileUtil;
 import org.apache.ivy.util.Message;
 
 /**
  * Represents a remote webdav share at a particular HTTP URL requiring specific
  * credentials
  * 
- * NB HTTPS is not supported (yet)
+ * Roots using webdav:// are accessed over HTTP, webdavs:// over HTTPS.
  */
 public class IvyRepository extends AbstractRepository {
 
 	static final String PROTOCOL = "webdav";	
+	static final String SECURE_PROTOCOL = "webdavs";
+	// hidden from listings, as list() skips names starting with '.'
+	static final String STAGING_ROOT = ".ivydav-staging";
 	
 	DavRepository davRepo;
 
-	private final CopyProgressListener progress = new RepositoryCopyProgressListener(
-			this);
+	// Ivy publishes a module, from beginning its transaction to committing it, on one thread
+	private final ThreadLocal<Staging> staging = new ThreadLocal<Staging>();
+	private volatile ContentIndex contentIndex;
+	// listings for dynamic revisions, kept until the collection changes
+	private final RevisionIndex revisions = new RevisionIndex();
 
 	public IvyRepository(String root, String user, String pass) {
-		davRepo = new DavRepository(root, user, pass);
+		this(root, user, pass, DavRepository.TRANSPORT_SARDINE);
+	}
+
+	/**
+	 * @param transport
+	 *            name of the HTTP client to use: <code>sardine</code> or
+	 *            <code>http2</code>
+	 */
+	public IvyRepository(String root, String user, String pass, String transport) {
+		this(createTracedRepository(root, DavRepository.createTransport(transport, user, pass, null)));
+	}
+
+	private static DavRepository createTracedRepository(String root, DavTransport transport) {
+		TracingTransport tracing = new TracingTransport(transport, 0);
+		DavRepository davRepo = new DavRepository(root, tracing);
+		davRepo.setTracingTransport(tracing);
+		return davRepo;
+	}
+
+	// a staged publish in progress
+	private static final class Staging {
+		final String path = STAGING_ROOT + "/" + UUID.randomUUID();
+		final boolean overwrite;
+		// resources uploaded into the staging collection, by final path
+		final List<String> uris = new ArrayList<String>();
+		// content of staged resources, by path
+		final Map<String, String> digests = new HashMap<String, String>();
+		// whether anything, even a failed upload, was written into the collection
+		boolean touched;
+
+		Staging(boolean overwrite) {
+			this.overwrite = overwrite;
+		}
+	}
+
+	IvyRepository(DavRepository davRepo) {
+		this.davRepo = davRepo;
+	}
+
+	/**
+	 * Publish files of at least <code>minBytes</code> whose content is
+	 * already on the server by copying it there rather than uploading them;
+	 * zero or less to always upload.
+	 */
+	public void setDeduplication(long minBytes) {
+		this.contentIndex = minBytes > 0 ? new ContentIndex(davRepo, minBytes) : null;
+	}
+
+	// the resource at the path, and anything below, has been created or changed
+	private void added(String path) {
+		revisions.added(path);
+	}
+
+	private void removed(String path) {
+		revisions.removed(path);
+	}
+
+	/**
+	 * Have the listener told of the timing of every request to the server.
+	 * 
+	 * @throws IllegalStateException
+	 *             if requests are not traced, which they are unless the
+	 *             repository was set up programmatically
+	 */
+	public void addTraceListener(TransferTraceListener listener) {
+		davRepo.addTraceListener(listener);
+	}
+
+	public void removeTraceListener(TransferTraceListener listener) {
+		davRepo.removeTraceListener(listener);
+	}
+
+	/**
+	 * Release the connection to the server. A DavRepository shared with other
+	 * resolvers stays open until all of them have released it.
+	 */
+	public void close() {
+		if (!DavRepositoryRegistry.release(davRepo)) {
+			davRepo.close();
+		}
 	}
 
 	@Override
 	public Resource getResource(String davURI) throws IOException {
-		DavResource dr = new DavResource();
-		dr.setRepository(davRepo);
-		dr.setURI(davURI);
+		DavResource dr = davRepo.getResource(davURI);
 		return dr;
 	}
 
@@ -71,14 +160,17 @@ public class IvyRepository extends AbstractRepository {
 	 */
 	@Override
 	public void get(String srcDavURI, File destination) throws IOException {
-		DavResource src = new DavResource();
-		src.setRepository(davRepo);
-		src.setURI(srcDavURI);
+		DavResource src = davRepo.getResource(srcDavURI);
 		fireTransferInitiated(src, TransferEvent.REQUEST_GET);
 		InputStream is = null;
 		try {
 			is = src.openStream();
-			FileUtil.copy(is, destination, progress);
+			// known from the metadata openStream looked up
+			long length = src.getContentLength();
+			// one per download, as gets may run concurrently
+			RepositoryCopyProgressListener progress = new RepositoryCopyProgressListener(this);
+			progress.setTotalLength(length >= 0 ? Long.valueOf(length) : null);
+			ChannelCopy.copy(is, destination, progress);
 		} catch (IOException ex) {
 			fireTransferError(ex);
 			throw ex;
@@ -99,6 +191,10 @@ public class IvyRepository extends AbstractRepository {
 	 * Return a listing of the contents of a parent directory. Listing is a set
 	 * of strings representing webdav:// URIs.
 	 * 
+	 * A collection listed before is only checked for changes (by its ETag and
+	 * modification time) rather than listed again, so resolving dynamic
+	 * revisions of unchanged modules costs one small request per module.
+	 * 
 	 * @param davURI
 	 *            providing identifying a webdav provided resource
 	 * @throws IOException
@@ -108,11 +204,7 @@ public class IvyRepository extends AbstractRepository {
 	public List<String> list(String davURI) throws IOException {
 		ArrayList<String> list = new ArrayList<String>();
 		Message.debug("list called for URI" + davURI);
-		DavResource dr = new DavResource();
-		dr.setRepository(davRepo);
-		dr.setURI(davURI);
-		List<String> children = dr.getChildren();
-		for (String childURI : children) {
+		for (String childURI : listChildren(davURI)) {
 			Message.debug("child " + childURI);
 			if (!finalPartStartsWith(childURI, ".")) {
 				list.add(childURI);
@@ -121,6 +213,24 @@ public class IvyRepository extends AbstractRepository {
 		return list;
 	}
 
+	private List<String> listChildren(String davURI) throws IOException {
+		String collection = DavRepository.trimTrailingSlash(relativePath(davURI)) + "/";
+		WebserverData data = davRepo.getResourceMetadata(collection);
+		if (data == null) {
+			Message.error(davURI + " does not exist; cannot enumerate children!");
+			return Collections.emptyList();
+		} else if (!DavRepository.DIRECTORY_CONTENT_TYPE.equals(data.getContentType())) {
+			Message.error(davURI + " exists but is not a directory; cannot enumerate children");
+			return Collections.emptyList();
+		}
+		List<String> children = revisions.get(collection, data);
+		if (children == null) {
+			children = davRepo.getDirectoryResources(collection);
+			revisions.put(collection, data, children);
+		}
+		return children;
+	}
+
 	private boolean finalPartStartsWith(String uri, String prefix) {
 		String checkThis = uri.endsWith(getFileSeparator()) ? uri.substring(0,
 				uri.length() - getFileSeparator().length()) : uri;
@@ -147,37 +257,364 @@ public class IvyRepository extends AbstractRepository {
 	@Override
 	public void put(File source, String davURI, boolean overwrite)
 			throws IOException {
-		DavResource dest = new DavResource();
-		dest.setRepository(davRepo);
-		dest.setURI(davURI);
+		DavResource dest = davRepo.getResource(davURI);
 		fireTransferInitiated(dest, TransferEvent.REQUEST_PUT);
 		if (dest.exists() && !overwrite) {
 			throw new IOException("Cannot copy. Destination file: "
 					+ dest.getName() + " exists and overwrite not set.");
 		}
+		Staging staged = staging.get();
+		String path = relativePath(davURI);
+		DavResource target = dest;
+		if (staged != null) {
+			target = davRepo.getResource(staged.path + "/" + path);
+			staged.touched = true;
+		}
+		ContentIndex index = contentIndex;
+		String digest = index != null && index.applies(source) ? ContentIndex.digest(source) : null;
+		if (digest != null && copyPublished(index, digest, target)) {
+			published(index, digest, staged, path);
+			fireTransferCompleted();
+			return;
+		}
 		FileInputStream fis = new FileInputStream(source);
 		try {
-			dest.putFromStream(fis);
-			fireTransferCompleted();
-		} catch (Exception ex) {
+			target.putFromStream(fis);
+		} catch (IOException ex) {
 			fireTransferError(ex);
+			throw ex;
+		} catch (RuntimeException ex) {
+			fireTransferError(ex);
+			throw ex;
 		} finally {
-			if (fis != null) {
-				try {
-					fis.close();
-				} catch (Exception ex) {
+			try {
+				fis.close();
+			} catch (Exception ex) {
+			}
+		}
+		published(index, digest, staged, path);
+		fireTransferCompleted();
+	}
+
+	// satisfy a put with a server-side copy of the same content published before
+	private boolean copyPublished(ContentIndex index, String digest, DavResource target) {
+		String published = index.find(digest);
+		if (published == null || published.equals(relativePath(target.getName()))) {
+			return false;
+		}
+		try {
+			davRepo.copy(published, target.getName(), true);
+			Message.verbose("copied " + published + " to " + target.getName() + " instead of uploading it");
+			return true;
+		} catch (IOException ex) {
+			Message.verbose("could not copy " + published + ", uploading instead: " + ex.getMessage());
+			index.forget(digest);
+			return false;
+		}
+	}
+
+	private void published(ContentIndex index, String digest, Staging staged, String path) {
+		if (staged == null) {
+			added(path);
+			if (digest != null) {
+				index.record(digest, path);
+			}
+		} else {
+			staged.uris.add(path);
+			if (digest != null) {
+				// recorded once moved into place
+				staged.digests.put(path, digest);
+			}
+		}
+	}
+
+
+	/**
+	 * Push a whole local repository tree (e.g. a filesystem resolver's root)
+	 * into the given collection, for seeding a new DAV repository. Much faster
+	 * than {@link #put} per file: collections are created once up front and
+	 * files are uploaded <code>parallelism</code> at a time.
+	 *
+	 * @param overwrite
+	 *            whether to replace files already on the server; if false they
+	 *            are skipped, so an interrupted import can simply be rerun
+	 * @return counts and throughput of the import
+	 */
+	public TransferStats importTree(File localDir, String davURI, boolean overwrite, int parallelism)
+			throws IOException {
+		TransferStats stats = davRepo.uploadTree(localDir, davURI, overwrite, parallelism);
+		added(DavRepository.trimTrailingSlash(relativePath(davURI)) + "/");
+		Message.info("imported " + localDir + " into " + davURI + ": " + stats);
+		return stats;
+	}
+
+	/**
+	 * Start fetching the metadata, and optionally the content, of resources
+	 * about to be needed, <code>parallelism</code> requests at a time. The
+	 * returned future never fails; resources that could not be fetched are
+	 * simply fetched again when asked for.
+	 */
+	public CompletableFuture<TransferStats> prefetch(Collection<String> davURIs, boolean content, int parallelism) {
+		return davRepo.prefetchAsync(davURIs, content, parallelism);
+	}
+
+	static String relativePath(String davURI) {
+		return davURI.startsWith("/") ? davURI.substring(1) : davURI;
+	}
+
+	/**
+	 * Start a staged publish: until {@link #commitStaging()} or
+	 * {@link #abortStaging()}, {@link #put} uploads into a private staging
+	 * collection instead of the final location, so readers never see a
+	 * partially published revision. Staging is per thread, so modules may be
+	 * published concurrently, each on its own thread.
+	 * 
+	 * @param overwrite
+	 *            whether committing may replace existing resources
+	 */
+	public void beginStaging(boolean overwrite) throws IOException {
+		if (staging.get() != null) {
+			throw new IOException("A staged publish is already in progress");
+		}
+		Staging staged = new Staging(overwrite);
+		staging.set(staged);
+		Message.verbose("staging publish in " + staged.path);
+	}
+
+	/**
+	 * Move everything uploaded since {@link #beginStaging} into place. The
+	 * deepest collection containing all staged resources is moved with a
+	 * single MOVE if it does not exist yet (the usual case for a new
+	 * revision); otherwise its contents are moved piecewise, collections
+	 * before files so that descriptors appear after their artifacts.
+	 */
+	public void commitStaging() throws IOException {
+		Staging staged = staging.get();
+		if (staged == null) {
+			throw new IOException("No staged publish in progress");
+		}
+		staging.remove();
+		if (!staged.uris.isEmpty()) {
+			commitDirectory(staged.path, commonDirectory(staged.uris), staged.uris, staged.overwrite);
+			for (String uri : staged.uris) {
+				added(uri);
+			}
+			ContentIndex index = contentIndex;
+			for (Map.Entry<String, String> digest : staged.digests.entrySet()) {
+				if (index != null) {
+					index.record(digest.getValue(), digest.getKey());
+				}
+			}
+		}
+		try {
+			davRepo.deleteDirectory(staged.path);
+		} catch (IOException ex) {
+			Message.warn("could not remove staging collection " + staged.path + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Discard everything uploaded since {@link #beginStaging}.
+	 */
+	public void abortStaging() throws IOException {
+		Staging staged = staging.get();
+		if (staged == null) {
+			return;
+		}
+		staging.remove();
+		if (staged.touched) {
+			davRepo.deleteDirectory(staged.path);
+		}
+	}
+
+	private void commitDirectory(String staging, String dir, List<String> files, boolean overwrite)
+			throws IOException {
+		if (dir.length() > 0 && !davRepo.existsPath(dir)) {
+			davRepo.move(staging + "/" + dir, dir, overwrite);
+			return;
+		}
+		Map<String, List<String>> subdirectories = new TreeMap<String, List<String>>();
+		List<String> filesHere = new ArrayList<String>();
+		for (String file : files) {
+			String rest = file.substring(dir.length());
+			int idx = rest.indexOf('/');
+			if (idx < 0) {
+				filesHere.add(file);
+			} else {
+				String sub = dir + rest.substring(0, idx + 1);
+				List<String> subFiles = subdirectories.get(sub);
+				if (subFiles == null) {
+					subFiles = new ArrayList<String>();
+					subdirectories.put(sub, subFiles);
 				}
+				subFiles.add(file);
 			}
 		}
+		for (Map.Entry<String, List<String>> sub : subdirectories.entrySet()) {
+			commitDirectory(staging, sub.getKey(), sub.getValue(), overwrite);
+		}
+		for (String file : filesHere) {
+			davRepo.move(staging + "/" + file, file, overwrite);
+		}
 	}
 
+	// longest common directory (ending in '/', or "" for the root) of the paths
+	static String commonDirectory(List<String> paths) {
+		String common = null;
+		for (String path : paths) {
+			String dir = path.substring(0, path.lastIndexOf('/') + 1);
+			if (common == null) {
+				common = dir;
+			}
+			while (!dir.startsWith(common)) {
+				common = common.substring(0, common.lastIndexOf('/', common.length() - 2) + 1);
+			}
+		}
+		return common == null ? "" : common;
+	}
+
+	/**
+	 * Copy a resource, or a whole collection if the URI ends in '/', on the
+	 * server without transferring any content through this client.
+	 */
+	public void copy(String srcDavURI, String destDavURI, boolean overwrite)
+			throws IOException {
+		davRepo.copy(srcDavURI, destDavURI, overwrite);
+		added(relativePath(destDavURI));
+	}
+
+	/**
+	 * Move a resource, or a whole collection if the URI ends in '/', on the
+	 * server.
+	 */
+	public void move(String srcDavURI, String destDavURI, boolean overwrite)
+			throws IOException {
+		davRepo.move(srcDavURI, destDavURI, overwrite);
+		removed(relativePath(srcDavURI));
+		added(relativePath(destDavURI));
+	}
+
+	/**
+	 * Promote published resources from one area of the repository (e.g.
+	 * staging) to another (e.g. release) using server-side COPY, or MOVE when
+	 * the source need not be kept. Each path is relative to both bases and
+	 * names a file, or a collection if it ends in '/'; all requests are issued
+	 * concurrently, so promoting a module costs one request per path however
+	 * large its artifacts are.
+	 * 
+	 * @param fromBase
+	 *            URI of the area to promote from
+	 * @param toBase
+	 *            URI of the area to promote to
+	 * @param paths
+	 *            resources to promote, relative to the bases
+	 * @param overwrite
+	 *            whether to replace resources already present in toBase
+	 * @param keepSource
+	 *            COPY if true, MOVE if false
+	 */
+	public void promote(String fromBase, String toBase, Collection<String> paths,
+			boolean overwrite, boolean keepSource) throws IOException {
+		List<CompletableFuture<Void>> operations = new ArrayList<CompletableFuture<Void>>();
+		for (String path : paths) {
+			String from = joinPath(fromBase, path);
+			String to = joinPath(toBase, path);
+			Message.verbose((keepSource ? "copying " : "moving ") + from + " to " + to);
+			operations.add(keepSource ? davRepo.copyAsync(from, to, overwrite)
+					: davRepo.moveAsync(from, to, overwrite));
+		}
+		try {
+			DavRepository.await(CompletableFuture.allOf(
+					operations.toArray(new CompletableFuture<?>[operations.size()])));
+		} finally {
+			// some may have succeeded even if others failed
+			for (String path : paths) {
+				if (!keepSource) {
+					removed(relativePath(joinPath(fromBase, path)));
+				}
+				added(relativePath(joinPath(toBase, path)));
+			}
+		}
+	}
+
+	static String joinPath(String base, String path) {
+		String relative = path.startsWith("/") ? path.substring(1) : path;
+		return DavRepository.trimTrailingSlash(base) + "/" + relative;
+	}
+
+	/**
+	 * Delete old revisions of the given modules, for snapshot retention. A
+	 * revision is a child collection of a module's collection (hidden ones,
+	 * starting with '.', are never touched); revisions are ordered by their
+	 * last-modified date as reported in the module listing, so no request is
+	 * made per revision to decide what to purge. The newest
+	 * <code>keep</code> revisions are always kept, and of the rest only those
+	 * older than <code>maxAgeMillis</code> are purged. Listings and deletions
+	 * of all modules share one bound of <code>parallelism</code> requests.
+	 *
+	 * @param maxAgeMillis
+	 *            revisions modified more recently are kept; zero or less to
+	 *            purge on count alone
+	 * @return the URIs of the purged revisions
+	 */
+	public List<String> purgeRevisions(Collection<String> moduleURIs, final int keep,
+			final long maxAgeMillis, int parallelism) throws IOException {
+		final AsyncLimiter limiter = new AsyncLimiter(parallelism);
+		final long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MAX_VALUE;
+		final List<String> purged = new ArrayList<String>();
+		List<CompletableFuture<Void>> modules = new ArrayList<CompletableFuture<Void>>();
+		for (String moduleURI : moduleURIs) {
+			modules.add(limiter.submit(() -> davRepo.getDirectoryEntriesAsync(moduleURI)).thenCompose(entries -> {
+				List<CompletableFuture<Void>> deletions = new ArrayList<CompletableFuture<Void>>();
+				for (String revision : selectRevisionsToPurge(entries, keep, cutoff)) {
+					Message.verbose("purging " + revision);
+					deletions.add(davRepo.deleteTreeAsync(revision, limiter).thenRun(() -> {
+						removed(revision);
+						synchronized (purged) {
+							purged.add(revision);
+						}
+					}));
+				}
+				return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[deletions.size()]));
+			}));
+		}
+		DavRepository.await(CompletableFuture.allOf(modules.toArray(new CompletableFuture<?>[modules.size()])));
+		return purged;
+	}
+
+	public List<String> purgeRevisions(String moduleURI, int keep, long maxAgeMillis) throws IOException {
+		return purgeRevisions(Collections.singletonList(moduleURI), keep, maxAgeMillis,
+				DavRepository.DEFAULT_DELETE_PARALLELISM);
+	}
+
+	static List<String> selectRevisionsToPurge(Map<String, WebserverData> entries, int keep, long cutoff) {
+		List<Map.Entry<String, WebserverData>> revisions = new ArrayList<Map.Entry<String, WebserverData>>();
+		for (Map.Entry<String, WebserverData> entry : entries.entrySet()) {
+			String name = DavRepository.trimTrailingSlash(entry.getKey());
+			name = name.substring(name.lastIndexOf('/') + 1);
+			if (!name.startsWith(".") && DavRepository.isDirectory(entry.getKey(), entry.getValue())) {
+				revisions.add(entry);
+			}
+		}
+		// newest first
+		revisions.sort((a, b) -> Long.compare(modifiedAt(b.getValue()), modifiedAt(a.getValue())));
+		List<String> selected = new ArrayList<String>();
+		for (int i = Math.max(keep, 0); i < revisions.size(); i++) {
+			if (modifiedAt(revisions.get(i).getValue()) < cutoff) {
+				selected.add(revisions.get(i).getKey());
+			}
+		}
+		return selected;
+	}
+
+	private static long modifiedAt(WebserverData data) {
+		return data == null ? 0 : data.getModifiedAt();
+	}
 	
 	// experimental
 	
 	public void delete(Artifact artifact, String dest) throws IOException {
-		DavResource resource = new DavResource();
-		resource.setRepository(davRepo);
-		resource.setURI(dest);
+		DavResource resource = davRepo.getResource(dest);
 		if (!resource.exists()) {
 			throw new IOException("Cannot delete file: "
 					+ resource.getName() + " - does not exist");
@@ -187,18 +624,20 @@ public class IvyRepository extends AbstractRepository {
 		} catch (Exception ex) {
 			fireTransferError(ex);
 		}
+		removed(relativePath(dest));
 	}
 	public void deleteAll(String dest) throws IOException {
 		File f = new File(dest);
 		String pathOnly = f.getParent();
-		DavResource resource = new DavResource();
-		resource.setRepository(davRepo);
-		resource.setURI(pathOnly);
+		DavResource resource = davRepo.getResource(pathOnly);
 		try {
 			resource.delete();
 		} catch (Exception ex) {
 			fireTransferError(ex);
 		}
+		if (pathOnly != null) {
+			removed(relativePath(pathOnly));
+		}
 	}
 
 }
\ No newline at end of file
@@ -15,8 +15,37 @@
 */
 package org.angrycamel.ivydav;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.ivy.core.IvyContext;
+import org.apache.ivy.core.IvyPatternHelper;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.descriptor.DefaultArtifact;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.resolve.DownloadOptions;
+import org.apache.ivy.core.resolve.ResolveData;
+import org.apache.ivy.core.resolve.ResolvedModuleRevision;
+import org.apache.ivy.plugins.report.XmlReportParser;
 import org.apache.ivy.plugins.repository.Repository;
 import org.apache.ivy.plugins.resolver.RepositoryResolver;
+import org.apache.ivy.util.Message;
 
 /**
  * An IVY resolver for use with Sardine to access and publish to a DAV share
@@ -27,6 +56,32 @@ public class IvyResolver extends RepositoryResolver {
 	private String davUser;
 	private String davPassword;
     private String davRoot;
+    private String davTransport = DavRepository.TRANSPORT_SARDINE;
+    private String davTrustStore;
+    private String davTrustStorePassword;
+    private String davTrustStoreType;
+    private boolean davStagedPublish = false;
+    private String davMirror;
+    private boolean davOffline = false;
+    private String davMetadataMaxStale;
+    private String davMetadataIndex;
+    private String davImmutable;
+    private String davPrefetch;
+    private int davPrefetchParallelism = 8;
+    private int davMaxTransfers = TransferScheduler.DEFAULT_MAX_CONCURRENT;
+    private int davMaxBulkTransfers = TransferScheduler.DEFAULT_MAX_BULK;
+    private long davMaxBandwidth = 0;
+    private String davTraceFile;
+    private long davSlowRequestMillis = 10000;
+    private int davConnectTimeout = 30000;
+    private int davReadTimeout = 60000;
+    private long davMetadataTimeout = 60000;
+    private long davWriteTimeout = 0;
+    private long davResolveDeadline = 0;
+    private boolean davDeduplicate = false;
+    private long davDeduplicateMinBytes = ContentIndex.DEFAULT_MIN_BYTES;
+    // deadline of each resolve this resolver has taken part in
+    private final Map<ResolveData, Deadline> deadlines = new WeakHashMap<ResolveData, Deadline>();
     
     public void setroot(String root) {
     	this.davRoot = root;
@@ -39,12 +94,343 @@ public class IvyResolver extends RepositoryResolver {
     public void setdavPassword(String password) {
     	this.davPassword = password;
     }
+
+    /**
+     * Choose the HTTP client: <code>sardine</code> (default, HTTP/1.1) or
+     * <code>http2</code> (JDK client, multiplexes requests over HTTP/2)
+     */
+    public void setdavTransport(String transport) {
+    	this.davTransport = transport;
+    }
+
+    /**
+     * Keystore of certificates trusted for webdavs:// roots, e.g. for a
+     * self-signed server. The JVM's default trust store is used if unset.
+     */
+    public void setdavTrustStore(String trustStore) {
+    	this.davTrustStore = trustStore;
+    }
+
+    public void setdavTrustStorePassword(String password) {
+    	this.davTrustStorePassword = password;
+    }
+
+    public void setdavTrustStoreType(String type) {
+    	this.davTrustStoreType = type;
+    }
+
+    /**
+     * Publish each module into a hidden staging collection and move it into
+     * place only when the whole publish has succeeded
+     */
+    public void setdavStagedPublish(boolean staged) {
+    	this.davStagedPublish = staged;
+    }
     
+    /**
+     * Local directory mirroring the repository: content and metadata are read
+     * from it first and downloads are written back into it
+     */
+    public void setdavMirror(String mirror) {
+    	this.davMirror = mirror;
+    }
+
+    /**
+     * Resolve from the mirror alone, without contacting the server
+     */
+    public void setdavOffline(boolean offline) {
+    	this.davOffline = offline;
+    }
+
+    /**
+     * Comma separated <code>pattern=seconds</code> rules: metadata of matching
+     * resources, e.g. snapshot descriptors, is answered from cache for up to
+     * that long while being refreshed in the background
+     */
+    public void setdavMetadataMaxStale(String rules) {
+    	this.davMetadataMaxStale = rules;
+    }
+
+    /**
+     * File in which metadata of immutable resources (see
+     * {@link #setdavImmutable}) is kept between runs
+     */
+    public void setdavMetadataIndex(String file) {
+    	this.davMetadataIndex = file;
+    }
+
+    /**
+     * Comma separated patterns of resources that never change once published,
+     * e.g. releases; their metadata is persisted in the davMetadataIndex, and
+     * only they are read from the davMirror without asking the server
+     */
+    public void setdavImmutable(String patterns) {
+    	this.davImmutable = patterns;
+    }
+
+    /**
+     * Resolve report (.xml) or list of <code>org#module;revision</code>
+     * coordinates whose resources are fetched, in the background, as soon as
+     * the resolver is first used
+     */
+    public void setdavPrefetch(String file) {
+    	this.davPrefetch = file;
+    }
+
+    public void setdavPrefetchParallelism(int parallelism) {
+    	this.davPrefetchParallelism = parallelism;
+    }
+
+    /**
+     * Requests in flight at once; queued ones go metadata first, then
+     * descriptors, then artifacts
+     */
+    public void setdavMaxTransfers(int transfers) {
+    	this.davMaxTransfers = transfers;
+    }
+
+    /**
+     * Artifact downloads in flight at once, so that they cannot hold up the
+     * requests resolution is waiting on
+     */
+    public void setdavMaxBulkTransfers(int transfers) {
+    	this.davMaxBulkTransfers = transfers;
+    }
+
+    /**
+     * Cap on downloaded content in kilobytes per second, shared by all
+     * downloads; unlimited if zero
+     */
+    public void setdavMaxBandwidth(long kilobytesPerSecond) {
+    	this.davMaxBandwidth = kilobytesPerSecond;
+    }
+
+    /**
+     * File to which the timing of every request is written (rolled over at
+     * 10MB, keeping three old files)
+     */
+    public void setdavTraceFile(String file) {
+    	this.davTraceFile = file;
+    }
+
+    /**
+     * Requests taking longer than this many milliseconds are warned of, with
+     * their time to first byte and throughput; zero to never warn
+     */
+    public void setdavSlowRequestMillis(long millis) {
+    	this.davSlowRequestMillis = millis;
+    }
+
+    /**
+     * Milliseconds allowed to establish a connection to the server; zero for
+     * no limit
+     */
+    public void setdavConnectTimeout(int millis) {
+    	this.davConnectTimeout = millis;
+    }
+
+    /**
+     * Milliseconds a download may wait for the response to start, and then
+     * for each read of its content; zero for no limit. With the sardine
+     * transport this is also the socket read timeout of every request.
+     */
+    public void setdavReadTimeout(int millis) {
+    	this.davReadTimeout = millis;
+    }
+
+    /**
+     * Milliseconds a metadata request (PROPFIND) may take; zero for no limit
+     */
+    public void setdavMetadataTimeout(long millis) {
+    	this.davMetadataTimeout = millis;
+    }
+
+    /**
+     * Milliseconds an upload, delete, copy or move may take; zero (the
+     * default) for no limit, as large uploads take as long as they take
+     */
+    public void setdavWriteTimeout(long millis) {
+    	this.davWriteTimeout = millis;
+    }
+
+    /**
+     * Milliseconds a resolve may spend on this resolver's server, counted from
+     * its first request for the resolve; once over, outstanding requests are
+     * cancelled and the rest fail at once. Zero for no limit.
+     */
+    public void setdavResolveDeadline(long millis) {
+    	this.davResolveDeadline = millis;
+    }
+
+    /**
+     * Publish files whose content the server already has (found through an
+     * index of SHA-1 digests kept on the server) with a server-side COPY
+     * instead of uploading them again
+     */
+    public void setdavDeduplicate(boolean deduplicate) {
+    	this.davDeduplicate = deduplicate;
+    }
+
+    /**
+     * Smallest file deduplicated; smaller ones are always uploaded
+     */
+    public void setdavDeduplicateMinBytes(long bytes) {
+    	this.davDeduplicateMinBytes = bytes;
+    }
+
+    /**
+     * Have the listener told of the timing of every request to the server
+     */
+    public void addTraceListener(TransferTraceListener listener) {
+    	((IvyRepository) getRepository()).addTraceListener(listener);
+    }
+
     private synchronized void init() {
     	if (!inited) {
             inited=true;
-            IvyRepository rep = new IvyRepository(davRoot, davUser, davPassword);
+            // resolvers for the same server share connections and caches
+            DavRepositoryRegistry.Key key = new DavRepositoryRegistry.Key(davRoot, davUser, davPassword,
+            		davTransport, davTrustStore, davTrustStorePassword, davTrustStoreType,
+            		davMirror, String.valueOf(davOffline), davMetadataMaxStale,
+            		davMetadataIndex, davImmutable, String.valueOf(davMaxTransfers),
+            		String.valueOf(davMaxBulkTransfers), String.valueOf(davMaxBandwidth),
+            		davTraceFile, String.valueOf(davSlowRequestMillis), String.valueOf(davConnectTimeout),
+            		String.valueOf(davReadTimeout), String.valueOf(davMetadataTimeout),
+            		String.valueOf(davWriteTimeout));
+            DavRepository davRepo = DavRepositoryRegistry.acquire(key, () -> createDavRepository());
+            IvyRepository rep = new IvyRepository(davRepo);
+            if (davDeduplicate) {
+            	rep.setDeduplication(davDeduplicateMinBytes);
+            }
             setRepository(rep);
+            if (davPrefetch != null) {
+            	prefetch(rep);
+            }
+    	}
+    }
+
+    private DavRepository createDavRepository() {
+        SSLContext sslContext;
+        try {
+        	sslContext = TlsSupport.createSSLContext(davTrustStore, davTrustStorePassword, davTrustStoreType);
+        } catch (IOException ex) {
+        	throw new IllegalStateException("Cannot set up TLS for " + davRoot, ex);
+        }
+        DavTransport timed = new TimeoutTransport(DavRepository.createTransport(davTransport, davUser,
+        		davPassword, sslContext, davConnectTimeout, davReadTimeout), davMetadataTimeout,
+        		davReadTimeout, davWriteTimeout);
+        // only requests that reach the server are traced, not mirror hits
+        TracingTransport tracing = new TracingTransport(timed, davSlowRequestMillis);
+        if (davTraceFile != null) {
+        	tracing.addListener(new RollingTraceFile(new File(davTraceFile)));
+        }
+        DavTransport transport = tracing;
+        if (davMirror != null) {
+        	String rootUrl = DavRepository.httpize(davRoot.endsWith("/") ? davRoot : davRoot + "/");
+        	transport = new MirrorTransport(transport, rootUrl, new File(davMirror), davOffline, davImmutable);
+        } else if (davOffline) {
+        	throw new IllegalStateException("davOffline requires a davMirror directory");
+        }
+        DavRepository davRepo = new DavRepository(davRoot, transport);
+        davRepo.setTracingTransport(tracing);
+        davRepo.setTransferScheduler(new TransferScheduler(davMaxTransfers, davMaxBulkTransfers,
+        		davMaxBandwidth * 1024));
+        if (davMetadataMaxStale != null) {
+        	davRepo.setMetadataCache(MetadataCache.parse(davMetadataMaxStale));
+        }
+        if (davMetadataIndex != null && davImmutable != null) {
+        	try {
+        		davRepo.setMetadataIndex(MetadataIndex.open(new File(davMetadataIndex)), davImmutable);
+        	} catch (IOException ex) {
+        		Message.warn("ivydav: cannot open metadata index " + davMetadataIndex + ": " + ex.getMessage());
+        	}
+        }
+        return davRepo;
+    }
+
+    private void prefetch(IvyRepository rep) {
+        Collection<String> uris;
+        try {
+        	uris = prefetchURIs(new File(davPrefetch), getIvyPatterns(), getArtifactPatterns());
+        } catch (IOException ex) {
+        	Message.warn("ivydav: cannot read " + davPrefetch + ": " + ex.getMessage());
+        	return;
+        }
+        // content is only worth fetching if it is kept
+        rep.prefetch(uris, davMirror != null, davPrefetchParallelism).thenAccept(stats ->
+        		Message.verbose("ivydav: prefetched " + davPrefetch + ": " + stats));
+    }
+
+    /**
+     * The resources named by the given prefetch file: descriptors of every
+     * module listed, and artifacts too if the file is a resolve report.
+     */
+    static Collection<String> prefetchURIs(File file, List<?> ivyPatterns, List<?> artifactPatterns)
+    		throws IOException {
+        Set<String> uris = new LinkedHashSet<String>();
+        List<ModuleRevisionId> modules = new ArrayList<ModuleRevisionId>();
+        if (file.getName().endsWith(".xml")) {
+        	XmlReportParser parser = new XmlReportParser();
+        	try {
+        		parser.parse(file);
+        	} catch (ParseException ex) {
+        		throw new IOException(ex.getMessage(), ex);
+        	}
+        	for (ModuleRevisionId mrid : parser.getDependencyRevisionIds()) {
+        		modules.add(mrid);
+        	}
+        	for (Artifact artifact : parser.getArtifacts()) {
+        		for (Object pattern : artifactPatterns) {
+        			uris.add(IvyPatternHelper.substitute((String) pattern, artifact));
+        		}
+        	}
+        } else {
+        	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+        			StandardCharsets.UTF_8));
+        	try {
+        		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        			line = line.trim();
+        			if (line.length() > 0 && !line.startsWith("#")) {
+        				modules.add(parseCoordinates(line));
+        			}
+        		}
+        	} finally {
+        		reader.close();
+        	}
+        }
+        for (ModuleRevisionId mrid : modules) {
+        	Artifact ivy = DefaultArtifact.newIvyArtifact(mrid, null);
+        	for (Object pattern : ivyPatterns) {
+        		uris.add(IvyPatternHelper.substitute((String) pattern, ivy));
+        	}
+        }
+        return uris;
+    }
+
+    // org#module;revision or org:module:revision
+    static ModuleRevisionId parseCoordinates(String line) throws IOException {
+        if (line.indexOf('#') > 0) {
+        	try {
+        		return ModuleRevisionId.parse(line);
+        	} catch (IllegalArgumentException ex) {
+        		throw new IOException(ex.getMessage(), ex);
+        	}
+        }
+        String[] parts = line.split(":");
+        if (parts.length != 3) {
+        	throw new IOException("Expected org#module;revision or org:module:revision but got: " + line);
+        }
+        return ModuleRevisionId.newInstance(parts[0], parts[1], parts[2]);
+    }
+
+    /**
+     * Release this resolver's hold on the (possibly shared) connection to the
+     * server. The resolver reconnects if it is used again.
+     */
+    public synchronized void close() {
+    	if (inited) {
+    		inited = false;
+    		((IvyRepository) super.getRepository()).close();
     	}
     }
     
@@ -57,6 +443,62 @@ public class IvyResolver extends RepositoryResolver {
     	return super.getRepository();
     }
     
+    @Override
+    public ResolvedModuleRevision getDependency(DependencyDescriptor dd, ResolveData data) throws ParseException {
+    	Deadline previous = Deadline.enter(deadline(data));
+    	try {
+    		return super.getDependency(dd, data);
+    	} finally {
+    		Deadline.exit(previous);
+    	}
+    }
+
+    @Override
+    public DownloadReport download(Artifact[] artifacts, DownloadOptions options) {
+    	Deadline previous = Deadline.enter(deadline(IvyContext.getContext().getResolveData()));
+    	try {
+    		return super.download(artifacts, options);
+    	} finally {
+    		Deadline.exit(previous);
+    	}
+    }
+
+    // the deadline of the given resolve, starting with its first use here
+    private Deadline deadline(ResolveData data) {
+    	if (davResolveDeadline <= 0 || data == null) {
+    		return Deadline.current();
+    	}
+    	synchronized (deadlines) {
+    		Deadline deadline = deadlines.get(data);
+    		if (deadline == null) {
+    			deadline = new Deadline(davResolveDeadline);
+    			deadlines.put(data, deadline);
+    		}
+    		return deadline;
+    	}
+    }
+
+    @Override
+    public void beginPublishTransaction(ModuleRevisionId module, boolean overwrite) throws IOException {
+    	if (davStagedPublish) {
+    		((IvyRepository) getRepository()).beginStaging(overwrite);
+    	}
+    }
+
+    @Override
+    public void commitPublishTransaction() throws IOException {
+    	if (davStagedPublish) {
+    		((IvyRepository) getRepository()).commitStaging();
+    	}
+    }
+
+    @Override
+    public void abortPublishTransaction() throws IOException {
+    	if (davStagedPublish) {
+    		((IvyRepository) getRepository()).abortStaging();
+    	}
+    }
+
     public String getTypeName() {
         return IvyRepository.PROTOCOL;
     }
@@ -0,0 +1,378 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.net.ssl.SSLContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * DavTransport over the JDK's <code>java.net.http.HttpClient</code>. Requests
+ * are non-blocking and negotiate HTTP/2 (h2c upgrade for plain http URLs), so
+ * many concurrent requests are multiplexed over a single connection per
+ * server. For https the client keeps that connection open and resumes TLS
+ * sessions through the SSLContext's session cache. Only basic authentication is supported; credentials are sent
+ * pre-emptively to save a 401 round-trip on each request.
+ */
+class JdkHttpTransport implements DavTransport {
+
+	static final String DAV_NS = "DAV:";
+
+	private static final String PROPFIND_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:propfind xmlns:D=\"DAV:\"><D:prop>"
+			+ "<D:resourcetype/><D:getcontenttype/><D:getcontentlength/>"
+			+ "<D:getlastmodified/><D:creationdate/><D:getetag/>"
+			+ "</D:prop></D:propfind>";
+
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	private final HttpClient client;
+	private final String authorization;
+
+	JdkHttpTransport(String user, String pass, SSLContext sslContext) {
+		this(user, pass, sslContext, 0);
+	}
+
+	/**
+	 * @param connectMillis
+	 *            time allowed to establish a connection; zero for no limit
+	 */
+	JdkHttpTransport(String user, String pass, SSLContext sslContext, int connectMillis) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NEVER);
+		if (connectMillis > 0) {
+			builder.connectTimeout(Duration.ofMillis(connectMillis));
+		}
+		if (sslContext != null) {
+			builder.sslContext(sslContext);
+		}
+		this.client = builder.build();
+		if (user == null) {
+			this.authorization = null;
+		} else {
+			String credentials = user + ":" + (pass == null ? "" : pass);
+			this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+					credentials.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Convert a URL as used by DavRepository (unencoded path) into a request URI.
+	 */
+	static URI toURI(String url) throws IOException {
+		try {
+			URL u = new URL(url);
+			return new URI(u.getProtocol(), u.getAuthority(), u.getPath(), u.getQuery(), null);
+		} catch (MalformedURLException ex) {
+			throw new IOException("Invalid URL " + url, ex);
+		} catch (URISyntaxException ex) {
+			throw new IOException("Invalid URL " + url, ex);
+		}
+	}
+
+	private HttpRequest.Builder newRequest(String url) throws IOException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(toURI(url));
+		if (authorization != null) {
+			builder.header("Authorization", authorization);
+		}
+		return builder;
+	}
+
+	private static boolean isSuccess(HttpResponse<?> response) {
+		return response.statusCode() >= 200 && response.statusCode() < 300;
+	}
+
+	private static DavException error(String url, HttpResponse<?> response) {
+		return new DavException(url, response.statusCode(), "HTTP " + response.statusCode());
+	}
+
+	// cancelling the answer cancels the exchange, which the client aborts
+	private static <T> CompletableFuture<T> abortable(CompletableFuture<?> exchange, CompletableFuture<T> answer) {
+		answer.whenComplete((v, t) -> {
+			if (answer.isCancelled()) {
+				exchange.cancel(true);
+			}
+		});
+		return answer;
+	}
+
+	// a 207 Multi-Status answer to DELETE, COPY or MOVE lists members that failed
+	private CompletableFuture<Void> sendWithoutBody(String url, HttpRequest.Builder builder) {
+		CompletableFuture<HttpResponse<Void>> exchange = client.sendAsync(builder.build(), BodyHandlers.discarding());
+		return abortable(exchange, exchange.thenCompose(response ->
+				isSuccess(response) && response.statusCode() != 207
+					? CompletableFuture.<Void>completedFuture(null)
+					: DavRepository.<Void>failed(error(url, response))));
+	}
+
+	public CompletableFuture<List<Entry>> propfind(final String url, int depth) {
+		final HttpRequest request;
+		try {
+			request = newRequest(url)
+					.header("Depth", Integer.toString(depth))
+					.header("Content-Type", "application/xml; charset=utf-8")
+					.method("PROPFIND", BodyPublishers.ofString(PROPFIND_BODY, StandardCharsets.UTF_8))
+					.build();
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+		CompletableFuture<HttpResponse<byte[]>> exchange = client.sendAsync(request, BodyHandlers.ofByteArray());
+		return abortable(exchange, exchange.thenCompose(response -> {
+			if (!isSuccess(response)) {
+				return DavRepository.<List<Entry>>failed(error(url, response));
+			}
+			try {
+				return CompletableFuture.completedFuture(parseMultistatus(request.uri(), response.body()));
+			} catch (IOException ex) {
+				return DavRepository.<List<Entry>>failed(ex);
+			}
+		}));
+	}
+
+	public CompletableFuture<InputStream> get(final String url) {
+		final HttpRequest request;
+		try {
+			request = newRequest(url).GET().build();
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+		CompletableFuture<HttpResponse<InputStream>> exchange = client.sendAsync(request, BodyHandlers.ofInputStream());
+		CompletableFuture<InputStream> answer = exchange.thenCompose(response -> {
+			if (!isSuccess(response)) {
+				closeQuietly(response.body());
+				return DavRepository.<InputStream>failed(error(url, response));
+			}
+			return CompletableFuture.completedFuture(response.body());
+		});
+		// a response arriving once the answer is cancelled is not read
+		exchange.thenAccept(response -> {
+			if (answer.isCancelled()) {
+				closeQuietly(response.body());
+			}
+		});
+		return abortable(exchange, answer);
+	}
+
+	private static void closeQuietly(InputStream is) {
+		try {
+			is.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	public CompletableFuture<Void> put(String url, final InputStream content) {
+		try {
+			return sendWithoutBody(url, newRequest(url).PUT(BodyPublishers.ofInputStream(() -> content)));
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+	}
+
+	public CompletableFuture<Void> put(String url, File content) {
+		try {
+			return sendWithoutBody(url, newRequest(url).PUT(BodyPublishers.ofFile(content.toPath())));
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+	}
+
+	public CompletableFuture<Void> mkcol(String url) {
+		try {
+			return sendWithoutBody(url, newRequest(url).method("MKCOL", BodyPublishers.noBody()));
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+	}
+
+	public CompletableFuture<Void> delete(String url) {
+		try {
+			return sendWithoutBody(url, newRequest(url).DELETE());
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+	}
+
+	public CompletableFuture<Void> copy(String url, String destination, boolean overwrite) {
+		return transfer("COPY", url, destination, overwrite);
+	}
+
+	public CompletableFuture<Void> move(String url, String destination, boolean overwrite) {
+		return transfer("MOVE", url, destination, overwrite);
+	}
+
+	private CompletableFuture<Void> transfer(String method, String url, String destination, boolean overwrite) {
+		try {
+			return sendWithoutBody(url, newRequest(url)
+					.header("Destination", toURI(destination).toASCIIString())
+					.header("Overwrite", overwrite ? "T" : "F")
+					.header("Depth", "infinity")
+					.method(method, BodyPublishers.noBody()));
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+	}
+
+	public void close() {
+		// HttpClient has no close before Java 21; idle connections are
+		// dropped when the client is collected
+	}
+
+	static List<Entry> parseMultistatus(URI requestURI, byte[] body) throws IOException {
+		Document doc;
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			doc = builder.parse(new ByteArrayInputStream(body));
+		} catch (ParserConfigurationException ex) {
+			throw new IOException("Cannot parse PROPFIND response", ex);
+		} catch (SAXException ex) {
+			throw new IOException("Malformed PROPFIND response from " + requestURI, ex);
+		}
+		String requestPath = trimSlash(requestURI.getPath());
+		List<Entry> entries = new ArrayList<Entry>();
+		NodeList responses = doc.getElementsByTagNameNS(DAV_NS, "response");
+		for (int i = 0; i < responses.getLength(); i++) {
+			Element response = (Element) responses.item(i);
+			String href = childText(response, "href");
+			if (href == null) {
+				continue;
+			}
+			URI resolved = requestURI.resolve(href.trim());
+			String url = requestURI.getScheme() + "://" + requestURI.getRawAuthority() + resolved.getPath();
+			boolean current = requestPath.equals(trimSlash(resolved.getPath()));
+			Entry entry = new Entry(url, current, parseProperties(response));
+			if (current) {
+				entries.add(0, entry);
+			} else {
+				entries.add(entry);
+			}
+		}
+		return entries;
+	}
+
+	private static WebserverData parseProperties(Element response) {
+		WebserverData data = new WebserverData();
+		boolean collection = false;
+		NodeList propstats = response.getElementsByTagNameNS(DAV_NS, "propstat");
+		for (int i = 0; i < propstats.getLength(); i++) {
+			Element propstat = (Element) propstats.item(i);
+			String status = childText(propstat, "status");
+			if (status != null && !status.contains(" 200")) {
+				continue;
+			}
+			NodeList props = propstat.getElementsByTagNameNS(DAV_NS, "prop");
+			for (int j = 0; j < props.getLength(); j++) {
+				for (Node n = props.item(j).getFirstChild(); n != null; n = n.getNextSibling()) {
+					if (n.getNodeType() != Node.ELEMENT_NODE || !DAV_NS.equals(n.getNamespaceURI())) {
+						continue;
+					}
+					String name = n.getLocalName();
+					String text = n.getTextContent() == null ? "" : n.getTextContent().trim();
+					if ("resourcetype".equals(name)) {
+						collection = ((Element) n).getElementsByTagNameNS(DAV_NS, "collection").getLength() > 0;
+					} else if ("getcontenttype".equals(name) && text.length() > 0) {
+						data.contentType = text;
+					} else if ("getcontentlength".equals(name) && text.length() > 0) {
+						try {
+							data.contentLength = Long.parseLong(text);
+						} catch (NumberFormatException ex) {
+						}
+					} else if ("getlastmodified".equals(name)) {
+						data.modifiedAt = parseRfc1123(text);
+					} else if ("creationdate".equals(name)) {
+						data.createdAt = parseIso8601(text);
+					} else if ("getetag".equals(name) && text.length() > 0) {
+						data.etag = text;
+					}
+				}
+			}
+		}
+		if (collection) {
+			data.contentType = DavRepository.DIRECTORY_CONTENT_TYPE;
+		} else if (data.contentType == null) {
+			data.contentType = DEFAULT_CONTENT_TYPE;
+		}
+		return data;
+	}
+
+	private static String childText(Element parent, String localName) {
+		NodeList nodes = parent.getElementsByTagNameNS(DAV_NS, localName);
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+	}
+
+	private static String trimSlash(String path) {
+		if (path == null) {
+			return "";
+		}
+		return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+	}
+
+	static long parseRfc1123(String text) {
+		try {
+			return ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			return 0;
+		}
+	}
+
+	static long parseIso8601(String text) {
+		try {
+			return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			try {
+				return Instant.parse(text).toEpochMilli();
+			} catch (DateTimeParseException ex2) {
+				return 0;
+			}
+		}
+	}
+}
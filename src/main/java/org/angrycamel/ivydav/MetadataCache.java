@@ -0,0 +1,287 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.Message;
+
+/**
+ * Stale-while-revalidate cache of resource metadata (including absence).
+ *
+ * Only resources matching one of the configured patterns are cached, each
+ * pattern with its own maximum staleness. Within it a cached answer is
+ * returned at once and refreshed in the background, so e.g. snapshot
+ * descriptors cost no round trip yet pick up a new publish on the next
+ * lookup after the refresh. Older entries are fetched synchronously. At most
+ * one request per resource is in flight, however many callers want it.
+ */
+final class MetadataCache {
+
+	static final int MAX_ENTRIES = 10000;
+	// answers younger than this are not worth refreshing
+	static final long REVALIDATE_AFTER_MILLIS = 1000;
+	// how long a prefetched answer no rule covers waits for the lookup it was made for
+	static final long PREFETCH_TTL_MILLIS = 2 * 60 * 1000;
+
+	private static final class Rule {
+		final Pattern pattern;
+		final long maxStaleMillis;
+
+		Rule(Pattern pattern, long maxStaleMillis) {
+			this.pattern = pattern;
+			this.maxStaleMillis = maxStaleMillis;
+		}
+	}
+
+	private static final class Cached {
+		final WebserverData data;
+		final long fetchedAt;
+		// a prefetched answer no rule covers, used by one lookup until then
+		final long primedUntil;
+
+		Cached(WebserverData data, long fetchedAt, long primedUntil) {
+			this.data = data;
+			this.fetchedAt = fetchedAt;
+			this.primedUntil = primedUntil;
+		}
+	}
+
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private final LongSupplier clock;
+	private final Map<String, Cached> entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private final Map<String, Load> inFlight = new HashMap<String, Load>();
+
+	private static final class Load {
+		final CompletableFuture<WebserverData> result = new CompletableFuture<WebserverData>();
+		// set if the resource changes while being fetched, so the answer is not stored
+		boolean stale;
+		// set once a lookup has waited for a prefetch, which then needs no keeping
+		boolean used;
+	}
+
+	MetadataCache() {
+		this(System::currentTimeMillis);
+	}
+
+	MetadataCache(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Parse a comma separated list of <code>pattern=seconds</code> rules, e.g.
+	 * <code>**&#47;*-SNAPSHOT/**=300,**&#47;ivy-*.xml=60</code>. Patterns are
+	 * matched against paths relative to the root: <code>*</code> matches
+	 * within a path segment, <code>**</code> across segments and
+	 * <code>?</code> a single character. The first matching rule applies.
+	 */
+	static MetadataCache parse(String spec) {
+		MetadataCache cache = new MetadataCache();
+		for (String rule : spec.split(",")) {
+			rule = rule.trim();
+			if (rule.length() == 0) {
+				continue;
+			}
+			int eq = rule.lastIndexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Expected pattern=seconds but got: " + rule);
+			}
+			cache.addRule(rule.substring(0, eq).trim(), Long.parseLong(rule.substring(eq + 1).trim()) * 1000);
+		}
+		return cache;
+	}
+
+	void addRule(String glob, long maxStaleMillis) {
+		rules.add(new Rule(globToPattern(glob), maxStaleMillis));
+	}
+
+	/**
+	 * Patterns, as taken by {@link #parse}, of a comma separated list.
+	 */
+	static List<Pattern> globsToPatterns(String globs) {
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String glob : globs.split(",")) {
+			if (glob.trim().length() > 0) {
+				patterns.add(globToPattern(glob.trim()));
+			}
+		}
+		return patterns;
+	}
+
+	static Pattern globToPattern(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	private static String key(String uri) {
+		return uri.startsWith("/") ? uri.substring(1) : uri;
+	}
+
+	// -1 if the resource is not to be cached
+	private long maxStaleness(String key) {
+		for (Rule rule : rules) {
+			if (rule.pattern.matcher(key).matches()) {
+				return rule.maxStaleMillis;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Metadata for the resource, from the cache if recent enough, otherwise
+	 * from the loader.
+	 */
+	CompletableFuture<WebserverData> get(String uri, Function<String, CompletableFuture<WebserverData>> loader) {
+		String key = key(uri);
+		long now = clock.getAsLong();
+		long maxStale = maxStaleness(key);
+		Cached cached;
+		Load pending;
+		synchronized (this) {
+			cached = entries.get(key);
+			pending = inFlight.get(key);
+			if (maxStale < 0) {
+				// the lookup a prefetch was made for uses it up
+				if (cached != null) {
+					entries.remove(key);
+				} else if (pending != null) {
+					pending.used = true;
+				}
+			}
+		}
+		if (maxStale < 0) {
+			if (cached != null && cached.primedUntil >= now) {
+				return CompletableFuture.completedFuture(cached.data);
+			}
+			// join a prefetch of it if there is one
+			return pending != null ? pending.result.copy() : loader.apply(uri);
+		}
+		if (cached != null) {
+			long age = now - cached.fetchedAt;
+			if (age <= maxStale) {
+				if (age >= REVALIDATE_AFTER_MILLIS) {
+					load(key, uri, loader, 0).exceptionally(t -> {
+						Message.verbose("ivydav: revalidating " + uri + " failed: " + DavRepository.unwrap(t).getMessage());
+						return null;
+					});
+				}
+				return CompletableFuture.completedFuture(cached.data);
+			}
+		}
+		return load(key, uri, loader, 0);
+	}
+
+	/**
+	 * Fetch metadata ahead of need, and lookups made while it is on its way
+	 * wait for it. The answer for a resource matching a rule is cached as
+	 * that rule says; for any other resource it serves the next lookup alone,
+	 * provided that comes within {@link #PREFETCH_TTL_MILLIS}, so a prefetch
+	 * never hides a later change for longer than a lookup of its own would.
+	 */
+	CompletableFuture<WebserverData> prefetch(String uri, Function<String, CompletableFuture<WebserverData>> loader) {
+		String key = key(uri);
+		return load(key, uri, loader, maxStaleness(key) < 0 ? PREFETCH_TTL_MILLIS : 0);
+	}
+
+	private CompletableFuture<WebserverData> load(final String key, String uri,
+			Function<String, CompletableFuture<WebserverData>> loader, final long primeMillis) {
+		final Load load;
+		synchronized (this) {
+			Load existing = inFlight.get(key);
+			if (existing != null) {
+				return existing.result.copy();
+			}
+			load = new Load();
+			inFlight.put(key, load);
+		}
+		CompletableFuture<WebserverData> fetch;
+		try {
+			fetch = loader.apply(uri);
+		} catch (RuntimeException ex) {
+			fetch = DavRepository.failed(ex);
+		}
+		fetch.whenComplete((data, t) -> {
+			synchronized (this) {
+				inFlight.remove(key, load);
+				if (t == null && !load.stale && !(primeMillis > 0 && load.used)) {
+					long now = clock.getAsLong();
+					entries.put(key, new Cached(data, now, primeMillis > 0 ? now + primeMillis : 0));
+				}
+			}
+			if (t != null) {
+				load.result.completeExceptionally(DavRepository.unwrap(t));
+			} else {
+				load.result.complete(data);
+			}
+		});
+		// a caller giving up on its copy leaves the others theirs
+		return load.result.copy();
+	}
+
+	/**
+	 * Forget the resource and anything below it, after it has been changed.
+	 * Fetches of them already under way are not stored, nor joined by later
+	 * lookups.
+	 */
+	synchronized void invalidate(String uri) {
+		String prefix = DavRepository.trimTrailingSlash(key(uri));
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			if (isWithin(it.next(), prefix)) {
+				it.remove();
+			}
+		}
+		for (Iterator<Map.Entry<String, Load>> it = inFlight.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Load> load = it.next();
+			if (isWithin(load.getKey(), prefix)) {
+				load.getValue().stale = true;
+				it.remove();
+			}
+		}
+	}
+
+	// whether the key is the prefix, or below it
+	private static boolean isWithin(String key, String prefix) {
+		String path = DavRepository.trimTrailingSlash(key);
+		return prefix.length() == 0 || path.equals(prefix) || path.startsWith(prefix + "/");
+	}
+}
@@ -0,0 +1,365 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.Message;
+
+/**
+ * Metadata of immutable resources kept on disk across JVMs, keyed by full
+ * resource URI so one file can serve several repositories.
+ *
+ * The file is an append-only log of compact binary records (a header, then
+ * per record its length, a flag byte, the key and, unless the record is a
+ * removal, modification and creation times, length, content type and ETag;
+ * strings are prefixed by a two byte length, so longer ones are not kept).
+ * It is memory-mapped and replayed into memory when opened; new entries are
+ * appended under a file lock so concurrent Ivy processes can share it. A torn
+ * record at the end (a process killed mid-write) is cut off, and the log is
+ * rewritten without superseded records once they dominate it. The rewrite
+ * is done under the lock and replaces the file, marking the old one as
+ * replaced in its header, so processes that still have it open reopen the
+ * file before their next append.
+ *
+ * Instances are shared per file within the JVM and reference counted.
+ */
+final class MetadataIndex {
+
+	private static final int MAGIC = 0x49564458; // "IVDX"
+	private static final int VERSION = 2;
+	// magic, version and state
+	private static final int HEADER_SIZE = 12;
+	private static final int STATE_OFFSET = 8;
+	private static final int LIVE = 0;
+	private static final int REPLACED = 1;
+	private static final byte PRESENT = 0;
+	private static final byte REMOVED = 1;
+	private static final int NULL_STRING = 0xFFFF;
+	// rewrite once the log holds this many more records than live entries
+	static final int COMPACT_SLACK = 1024;
+
+	private static final Map<String, MetadataIndex> OPEN = new HashMap<String, MetadataIndex>();
+
+	private final File file;
+	private final String path;
+	// sorted, so that everything below a collection is found together
+	private final NavigableMap<String, WebserverData> entries = new TreeMap<String, WebserverData>();
+	private FileChannel channel;
+	private int references;
+	private boolean writable = true;
+
+	private MetadataIndex(File file, String path) {
+		this.file = file;
+		this.path = path;
+	}
+
+	/**
+	 * Open the index stored in the given file, creating it if necessary, or
+	 * take another reference to it if it is already open.
+	 */
+	static MetadataIndex open(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		synchronized (OPEN) {
+			MetadataIndex index = OPEN.get(path);
+			if (index == null) {
+				index = new MetadataIndex(file, path);
+				index.load();
+				OPEN.put(path, index);
+			}
+			index.references++;
+			return index;
+		}
+	}
+
+	/**
+	 * Drop a reference; the file is closed once nobody holds one.
+	 */
+	void close() {
+		synchronized (OPEN) {
+			if (--references > 0) {
+				return;
+			}
+			OPEN.remove(path);
+		}
+		synchronized (this) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	synchronized WebserverData get(String key) {
+		return entries.get(key);
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Record the metadata of a resource, unless it is already known or has a
+	 * key, content type or ETag too long to be stored.
+	 */
+	synchronized void put(String key, WebserverData data) {
+		if (data.equals(entries.get(key))) {
+			return;
+		}
+		if (!fits(key) || !fits(data.contentType) || !fits(data.etag)) {
+			Message.verbose("ivydav: not indexing metadata of " + key + ": too long to store");
+			return;
+		}
+		entries.put(key, data);
+		append(encode(key, data));
+	}
+
+	/**
+	 * Forget the resource and anything below it, i.e. whose key continues
+	 * with a '/' after the given one.
+	 */
+	synchronized void remove(String key) {
+		String stem = DavRepository.trimTrailingSlash(key);
+		List<String> removed = new ArrayList<String>();
+		if (entries.containsKey(stem)) {
+			removed.add(stem);
+		}
+		// '0' follows '/', so this bounds the keys starting with stem + "/"
+		removed.addAll(entries.subMap(stem + "/", true, stem + "0", false).keySet());
+		for (String gone : removed) {
+			entries.remove(gone);
+			append(encode(gone, null));
+		}
+	}
+
+	private static boolean fits(String s) {
+		// a string of NULL_STRING bytes would be read back as null
+		return s == null || s.length() < NULL_STRING / 3
+				|| s.getBytes(StandardCharsets.UTF_8).length < NULL_STRING;
+	}
+
+	private void load() throws IOException {
+		channel = openChannel();
+		int records = 0;
+		FileChannel replacement = null;
+		FileLock lock = lockCurrent();
+		try {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				channel.truncate(0);
+				channel.write(header(), 0);
+				return;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				Message.warn("ivydav: " + file + " is not a metadata index of this version; starting afresh");
+				channel.truncate(0);
+				channel.write(header(), 0);
+				return;
+			}
+			buf.getInt();
+			long validEnd = HEADER_SIZE;
+			while (buf.remaining() >= 4) {
+				int length = buf.getInt();
+				if (length <= 0 || length > buf.remaining()) {
+					break;
+				}
+				ByteBuffer record = buf.slice();
+				record.limit(length);
+				buf.position(buf.position() + length);
+				try {
+					decode(record);
+				} catch (BufferUnderflowException ex) {
+					break;
+				}
+				records++;
+				validEnd = buf.position();
+			}
+			if (validEnd < size) {
+				Message.verbose("ivydav: discarding incomplete record at the end of " + file);
+				channel.truncate(validEnd);
+			}
+			// still under the lock, so nothing is appended to the old file meanwhile
+			if (records > entries.size() * 2 + COMPACT_SLACK) {
+				replacement = compact();
+			}
+		} finally {
+			lock.release();
+			if (replacement != null) {
+				channel.close();
+				channel = replacement;
+			}
+		}
+	}
+
+	private FileChannel openChannel() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	// lock the file, reopening it first if another process has replaced it
+	private FileLock lockCurrent() throws IOException {
+		while (true) {
+			FileLock lock = channel.lock();
+			ByteBuffer state = ByteBuffer.allocate(4);
+			if (channel.read(state, STATE_OFFSET) < 4 || state.getInt(0) != REPLACED) {
+				return lock;
+			}
+			lock.release();
+			channel.close();
+			channel = openChannel();
+		}
+	}
+
+	// tell processes still holding the file that it has been replaced
+	static void markReplaced(FileChannel old) throws IOException {
+		ByteBuffer state = ByteBuffer.allocate(4);
+		state.putInt(REPLACED).flip();
+		old.write(state, STATE_OFFSET);
+		old.force(false);
+	}
+
+	private static ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(LIVE).flip();
+		return header;
+	}
+
+	private void decode(ByteBuffer record) {
+		byte flag = record.get();
+		String key = getString(record);
+		if (flag == REMOVED) {
+			entries.remove(key);
+			return;
+		}
+		WebserverData data = new WebserverData();
+		data.modifiedAt = record.getLong();
+		data.createdAt = record.getLong();
+		data.contentLength = record.getLong();
+		data.contentType = getString(record);
+		data.etag = getString(record);
+		entries.put(key, data);
+	}
+
+	private static ByteBuffer encode(String key, WebserverData data) {
+		byte[] k = key.getBytes(StandardCharsets.UTF_8);
+		byte[] type = data == null || data.contentType == null ? null : data.contentType.getBytes(StandardCharsets.UTF_8);
+		byte[] etag = data == null || data.etag == null ? null : data.etag.getBytes(StandardCharsets.UTF_8);
+		int length = 1 + 2 + k.length;
+		if (data != null) {
+			length += 3 * 8 + 2 + (type == null ? 0 : type.length) + 2 + (etag == null ? 0 : etag.length);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(4 + length);
+		buf.putInt(length);
+		buf.put(data == null ? REMOVED : PRESENT);
+		putString(buf, k);
+		if (data != null) {
+			buf.putLong(data.modifiedAt);
+			buf.putLong(data.createdAt);
+			buf.putLong(data.contentLength);
+			putString(buf, type);
+			putString(buf, etag);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static void putString(ByteBuffer buf, byte[] bytes) {
+		if (bytes == null) {
+			buf.putShort((short) NULL_STRING);
+		} else if (bytes.length >= NULL_STRING) {
+			throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long to store");
+		} else {
+			buf.putShort((short) bytes.length);
+			buf.put(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int length = buf.getShort() & 0xFFFF;
+		if (length == NULL_STRING) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void append(ByteBuffer record) {
+		if (!writable) {
+			return;
+		}
+		try {
+			FileLock lock = lockCurrent();
+			try {
+				channel.write(record, channel.size());
+			} finally {
+				lock.release();
+			}
+		} catch (IOException ex) {
+			// the in-memory entries remain usable for this JVM
+			Message.warn("ivydav: cannot update metadata index " + file + ": " + ex.getMessage());
+			writable = false;
+		}
+	}
+
+	/*
+	 * Replace the log with one record per live entry, returning a channel on
+	 * the new file, or null if it could not be replaced. Called with the old
+	 * file locked and fully replayed.
+	 */
+	private FileChannel compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			out.write(header());
+			for (Map.Entry<String, WebserverData> entry : entries.entrySet()) {
+				out.write(encode(entry.getKey(), entry.getValue()));
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			Message.verbose("ivydav: could not compact " + file + ": " + ex.getMessage());
+			tmp.delete();
+			return null;
+		}
+		FileChannel replacement = openChannel();
+		markReplaced(channel);
+		return replacement;
+	}
+}
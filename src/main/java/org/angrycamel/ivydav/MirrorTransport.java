@@ -0,0 +1,465 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.Message;
+
+/**
+ * Serves reads from a local directory laid out like the repository, falling
+ * through to the server on a miss and writing downloaded content back, so a
+ * warm mirror resolves at local disk speed.
+ *
+ * Content and the metadata of files matching the immutable patterns, which
+ * never change once published, come from the mirror whenever it has them.
+ * Everything else, such as snapshots and listings, is taken from the server,
+ * as a mirrored copy may be stale and the mirror only holds what has been
+ * fetched, except when the server cannot be reached at all. The content type,
+ * modification time and ETag the server gave for a file are kept next to its
+ * mirrored copy. Changes made through this transport drop the affected mirror
+ * entries.
+ *
+ * Offline, the server is never contacted: whatever is not mirrored does not
+ * exist (404), and changes fail.
+ */
+class MirrorTransport implements DavTransport {
+
+	private static final String PART_SUFFIX = ".ivydav-part";
+	private static final String METADATA_SUFFIX = ".ivydav-meta";
+	private static final String FILE_CONTENT_TYPE = "application/octet-stream";
+	// files described by the server but not yet mirrored, whose metadata is
+	// kept once their content is
+	private static final int MAX_DESCRIBED = 1000;
+
+	private final DavTransport delegate;
+	private final String rootUrl;
+	private final File mirror;
+	private final boolean offline;
+	private final List<Pattern> immutablePatterns;
+	private final Map<File, WebserverData> described = new LinkedHashMap<File, WebserverData>() {
+		protected boolean removeEldestEntry(Map.Entry<File, WebserverData> eldest) {
+			return size() > MAX_DESCRIBED;
+		}
+	};
+
+	/**
+	 * @param rootUrl
+	 *            http(s) URL of the repository root, ending in '/', which
+	 *            corresponds to the mirror directory
+	 * @param immutable
+	 *            comma separated patterns (see {@link MetadataCache#parse}) of
+	 *            files read from the mirror without asking the server, or null
+	 *            for none
+	 */
+	MirrorTransport(DavTransport delegate, String rootUrl, File mirror, boolean offline, String immutable) {
+		this.delegate = delegate;
+		this.rootUrl = rootUrl;
+		this.mirror = mirror;
+		this.offline = offline;
+		this.immutablePatterns = immutable == null ? Collections.<Pattern>emptyList()
+				: MetadataCache.globsToPatterns(immutable);
+	}
+
+	/**
+	 * The mirror file for a URL, or null if it lies outside the root.
+	 */
+	File localFile(String url) {
+		if (!url.startsWith(rootUrl)) {
+			return null;
+		}
+		String relative = DavRepository.trimTrailingSlash(url.substring(rootUrl.length()));
+		for (String segment : relative.split("/")) {
+			if (segment.equals("..")) {
+				return null;
+			}
+		}
+		return relative.length() == 0 ? mirror : new File(mirror, relative);
+	}
+
+	// the mirrored copy can be used without asking the server
+	private boolean isCurrent(String url) {
+		if (offline) {
+			return true;
+		}
+		String path = url.substring(rootUrl.length());
+		for (Pattern pattern : immutablePatterns) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static <T> CompletableFuture<T> notFound(String url) {
+		return DavRepository.failed(new DavException(url, 404, "Not in offline mirror"));
+	}
+
+	private static <T> CompletableFuture<T> readOnly(String url) {
+		return DavRepository.failed(new IOException("Cannot modify " + url + " while offline"));
+	}
+
+	// the server could not be reached, as opposed to answering with an error
+	private static boolean isUnreachable(Throwable t) {
+		Throwable cause = DavRepository.unwrap(t);
+		return cause instanceof IOException && !(cause instanceof DavException);
+	}
+
+	public CompletableFuture<List<Entry>> propfind(final String url, int depth) {
+		final File local = localFile(url);
+		if (depth == 0 && local != null && (local.isFile() && isCurrent(url) || offline && local.exists())) {
+			return CompletableFuture.completedFuture(Arrays.asList(describe(url, local, true)));
+		}
+		if (offline) {
+			return local != null && local.isDirectory()
+					? CompletableFuture.completedFuture(list(url, local))
+					: MirrorTransport.<List<Entry>>notFound(url);
+		}
+		return delegate.propfind(url, depth).handle((entries, t) -> {
+			if (t == null) {
+				for (Entry entry : entries) {
+					File file = localFile(entry.url);
+					if (file != null) {
+						remember(file, entry.data);
+					}
+				}
+				return CompletableFuture.completedFuture(entries);
+			} else if (isUnreachable(t) && local != null && (depth == 0 ? local.exists() : local.isDirectory())) {
+				Message.verbose("ivydav: server unreachable, listing " + url + " from mirror");
+				return CompletableFuture.completedFuture(depth == 0
+						? Arrays.asList(describe(url, local, true)) : list(url, local));
+			}
+			return DavRepository.<List<Entry>>failed(DavRepository.unwrap(t));
+		}).thenCompose(x -> x);
+	}
+
+	private static Entry describe(String url, File local, boolean current) {
+		WebserverData data = new WebserverData();
+		data.modifiedAt = local.lastModified();
+		data.createdAt = local.lastModified();
+		if (local.isDirectory()) {
+			data.contentType = DavRepository.DIRECTORY_CONTENT_TYPE;
+		} else {
+			data.contentType = FILE_CONTENT_TYPE;
+			data.contentLength = local.length();
+			readMetadata(local, data);
+		}
+		return new Entry(url, current, data);
+	}
+
+	private static File metadataFile(File local) {
+		return new File(local.getParentFile(), local.getName() + METADATA_SUFFIX);
+	}
+
+	// what the server said of a file, kept with its copy once there is one
+	private void remember(File local, WebserverData data) {
+		if (data == null || DavRepository.DIRECTORY_CONTENT_TYPE.equals(data.contentType)) {
+			return;
+		}
+		if (local.isFile()) {
+			WebserverData kept = new WebserverData();
+			if (!readMetadata(local, kept) || data.contentType == null || !data.equals(kept)) {
+				writeMetadata(local, data);
+			}
+		} else {
+			synchronized (described) {
+				described.put(local, data);
+			}
+		}
+	}
+
+	private static boolean readMetadata(File local, WebserverData data) {
+		File file = metadataFile(local);
+		if (!file.isFile()) {
+			return false;
+		}
+		Properties props = new Properties();
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				props.load(is);
+			} finally {
+				is.close();
+			}
+			data.modifiedAt = Long.parseLong(props.getProperty("modified"));
+			data.createdAt = Long.parseLong(props.getProperty("created"));
+			data.contentType = props.getProperty("type", data.contentType);
+			data.etag = props.getProperty("etag");
+			data.contentLength = local.length();
+			return true;
+		} catch (IOException | RuntimeException ex) {
+			Message.verbose("ivydav: ignoring mirrored metadata " + file + ": " + ex);
+			return false;
+		}
+	}
+
+	private static void writeMetadata(File local, WebserverData data) {
+		Properties props = new Properties();
+		props.setProperty("modified", String.valueOf(data.modifiedAt));
+		props.setProperty("created", String.valueOf(data.createdAt));
+		if (data.contentType != null) {
+			props.setProperty("type", data.contentType);
+		}
+		if (data.etag != null) {
+			props.setProperty("etag", data.etag);
+		}
+		try {
+			File tmp = File.createTempFile("." + local.getName() + "-", PART_SUFFIX, local.getParentFile());
+			try {
+				OutputStream os = new FileOutputStream(tmp);
+				try {
+					props.store(os, null);
+				} finally {
+					os.close();
+				}
+				Files.move(tmp.toPath(), metadataFile(local).toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException ex) {
+			Message.verbose("ivydav: not mirroring metadata of " + local + ": " + ex.getMessage());
+		}
+	}
+
+	private static List<Entry> list(String url, File dir) {
+		String base = url.endsWith("/") ? url : url + "/";
+		List<Entry> entries = new ArrayList<Entry>();
+		entries.add(describe(base, dir, true));
+		File[] children = dir.listFiles();
+		if (children != null) {
+			Arrays.sort(children);
+			for (File child : children) {
+				if (!child.getName().endsWith(PART_SUFFIX) && !child.getName().endsWith(METADATA_SUFFIX)) {
+					entries.add(describe(base + child.getName() + (child.isDirectory() ? "/" : ""), child, false));
+				}
+			}
+		}
+		return entries;
+	}
+
+	public CompletableFuture<InputStream> get(final String url) {
+		final File local = localFile(url);
+		if (local != null && local.isFile() && isCurrent(url)) {
+			try {
+				return CompletableFuture.completedFuture((InputStream) new FileInputStream(local));
+			} catch (IOException ex) {
+				// removed meanwhile; fall through
+			}
+		}
+		if (offline) {
+			return notFound(url);
+		}
+		return delegate.get(url).handle((is, t) -> {
+			if (t == null) {
+				return CompletableFuture.completedFuture(local == null ? is : writeBack(is, local));
+			} else if (isUnreachable(t) && local != null && local.isFile()) {
+				try {
+					Message.verbose("ivydav: server unreachable, reading " + url + " from mirror");
+					return CompletableFuture.completedFuture((InputStream) new FileInputStream(local));
+				} catch (IOException ex) {
+				}
+			}
+			return DavRepository.<InputStream>failed(DavRepository.unwrap(t));
+		}).thenCompose(x -> x);
+	}
+
+	private InputStream writeBack(InputStream is, File local) {
+		WebserverData data;
+		synchronized (described) {
+			data = described.remove(local);
+		}
+		return new WriteBackInputStream(is, local, data);
+	}
+
+	public CompletableFuture<Void> put(String url, InputStream content) {
+		return offline ? MirrorTransport.<Void>readOnly(url) : invalidating(delegate.put(url, content), url);
+	}
+
+	public CompletableFuture<Void> put(String url, File content) {
+		return offline ? MirrorTransport.<Void>readOnly(url) : invalidating(delegate.put(url, content), url);
+	}
+
+	public CompletableFuture<Void> mkcol(String url) {
+		return offline ? MirrorTransport.<Void>readOnly(url) : delegate.mkcol(url);
+	}
+
+	public CompletableFuture<Void> delete(String url) {
+		return offline ? MirrorTransport.<Void>readOnly(url) : invalidating(delegate.delete(url), url);
+	}
+
+	public CompletableFuture<Void> copy(String url, String destination, boolean overwrite) {
+		return offline ? MirrorTransport.<Void>readOnly(url)
+				: invalidating(delegate.copy(url, destination, overwrite), destination);
+	}
+
+	public CompletableFuture<Void> move(String url, String destination, boolean overwrite) {
+		return offline ? MirrorTransport.<Void>readOnly(url)
+				: invalidating(delegate.move(url, destination, overwrite), url, destination);
+	}
+
+	public void close() {
+		delegate.close();
+	}
+
+	// drop mirror entries once the server copy has changed
+	private CompletableFuture<Void> invalidating(CompletableFuture<Void> change, final String... urls) {
+		return change.whenComplete((v, t) -> {
+			for (String url : urls) {
+				File local = localFile(url);
+				if (local != null && local != mirror && local.exists()) {
+					deleteRecursively(local);
+					metadataFile(local).delete();
+				}
+			}
+		});
+	}
+
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		if (!f.delete() && f.exists()) {
+			Message.warn("ivydav: could not remove stale mirror entry " + f);
+		}
+	}
+
+	/**
+	 * Copies what is read into a part file next to the mirror entry, moving
+	 * it into place, along with the server's metadata of it if known, once
+	 * the whole stream has been read. A mirror that cannot be written to
+	 * never fails the read.
+	 */
+	private static final class WriteBackInputStream extends FilterInputStream {
+		private final File target;
+		private final WebserverData metadata;
+		private File part;
+		private OutputStream out;
+
+		WriteBackInputStream(InputStream in, File target, WebserverData metadata) {
+			super(in);
+			this.target = target;
+			this.metadata = metadata;
+			try {
+				File dir = target.getParentFile();
+				if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+					throw new IOException("Cannot create " + dir);
+				}
+				// padded, as a prefix shorter than three characters is refused
+				part = File.createTempFile("." + target.getName() + "-", PART_SUFFIX, dir);
+				out = new FileOutputStream(part);
+			} catch (IOException ex) {
+				abandon(ex);
+			}
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				finish();
+			} else if (out != null) {
+				try {
+					out.write(b);
+				} catch (IOException ex) {
+					abandon(ex);
+				}
+			}
+			return b;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int n = super.read(buf, off, len);
+			if (n < 0) {
+				finish();
+			} else if (out != null) {
+				try {
+					out.write(buf, off, n);
+				} catch (IOException ex) {
+					abandon(ex);
+				}
+			}
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			// skipped bytes would be missing from the copy
+			abandon(null);
+			return super.skip(n);
+		}
+
+		public void close() throws IOException {
+			abandon(null);
+			super.close();
+		}
+
+		private void finish() {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.close();
+				out = null;
+				Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				if (metadata != null) {
+					writeMetadata(target, metadata);
+				} else {
+					// would describe the previous content
+					metadataFile(target).delete();
+				}
+			} catch (IOException ex) {
+				abandon(ex);
+			}
+		}
+
+		private void abandon(IOException cause) {
+			if (cause != null) {
+				Message.verbose("ivydav: not mirroring " + target + ": " + cause.getMessage());
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+				}
+				out = null;
+			}
+			if (part != null && part.exists()) {
+				part.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The DavResources of a repository, one per URI for as long as anything holds
+ * on to it, so metadata fetched through one is seen through all. Resources
+ * are held weakly: once Ivy lets go of one, the next asks the server again.
+ * The repository invalidates them as it changes the resources they stand for.
+ */
+final class ResourceTable {
+
+	private final DavRepository repository;
+	private final ConcurrentHashMap<String, Ref> resources = new ConcurrentHashMap<String, Ref>();
+	private final ReferenceQueue<DavResource> collected = new ReferenceQueue<DavResource>();
+
+	private static final class Ref extends WeakReference<DavResource> {
+		final String uri;
+
+		Ref(String uri, DavResource resource, ReferenceQueue<DavResource> queue) {
+			super(resource, queue);
+			this.uri = uri;
+		}
+	}
+
+	ResourceTable(DavRepository repository) {
+		this.repository = repository;
+	}
+
+	DavResource get(String uri) {
+		if (uri == null) {
+			// fails when used, as it always has
+			return create(null);
+		}
+		expunge();
+		Ref ref = resources.get(uri);
+		DavResource resource = ref == null ? null : ref.get();
+		if (resource != null) {
+			return resource;
+		}
+		DavResource created = create(uri);
+		Ref mine = new Ref(uri, created, collected);
+		while (true) {
+			Ref existing = resources.putIfAbsent(uri, mine);
+			if (existing == null) {
+				return created;
+			}
+			resource = existing.get();
+			if (resource != null) {
+				return resource;
+			} else if (resources.replace(uri, existing, mine)) {
+				return created;
+			}
+		}
+	}
+
+	private DavResource create(String uri) {
+		DavResource resource = new DavResource();
+		resource.setRepository(repository);
+		resource.setURI(uri);
+		return resource;
+	}
+
+	/**
+	 * Forget the metadata of the resource at the given path, relative to the
+	 * root, and of anything below it, after it has been changed.
+	 */
+	void invalidate(String path) {
+		String prefix = key(path);
+		for (Ref ref : resources.values()) {
+			String key = key(ref.uri);
+			if (prefix.isEmpty() || key.equals(prefix) || key.startsWith(prefix + "/")) {
+				DavResource resource = ref.get();
+				if (resource != null) {
+					resource.invalidate();
+				}
+			}
+		}
+	}
+
+	private static String key(String uri) {
+		return DavRepository.trimTrailingSlash(IvyRepository.relativePath(uri));
+	}
+
+	private void expunge() {
+		for (Ref ref = (Ref) collected.poll(); ref != null; ref = (Ref) collected.poll()) {
+			resources.remove(ref.uri, ref);
+		}
+	}
+}
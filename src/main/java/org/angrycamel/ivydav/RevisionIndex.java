@@ -0,0 +1,173 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.LongSupplier;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+
+/**
+ * Listings of collections, typically of a module's revisions, kept so that
+ * dynamic revision resolution need not list a module again until it changes.
+ *
+ * A listing is only valid while the collection's own ETag and modification
+ * time (cheap to fetch with a depth 0 PROPFIND) are those it was listed
+ * with. Resources published or removed through this client are applied to
+ * the listings directly; as that changes the collection, the validator seen
+ * next is then adopted rather than relisting, so a change by someone else
+ * in between our own change and that next check goes unnoticed until the
+ * collection changes again.
+ */
+final class RevisionIndex {
+
+	static final int MAX_ENTRIES = 1000;
+	// modification times have a resolution of a second, so a listing made
+	// within this of the last change may miss a second change in that second
+	static final long MIN_AGE_MILLIS = 2000;
+
+	private static final class Listing {
+		String etag;
+		long modifiedAt;
+		final TreeSet<String> children;
+		// our own change has made the validator out of date
+		boolean adoptValidator;
+
+		Listing(WebserverData collection, Collection<String> children) {
+			this.etag = collection.etag;
+			this.modifiedAt = collection.modifiedAt;
+			this.children = new TreeSet<String>(children);
+		}
+
+		boolean matches(WebserverData collection) {
+			return modifiedAt == collection.modifiedAt
+					&& (etag == null ? collection.etag == null : etag.equals(collection.etag));
+		}
+	}
+
+	private final LongSupplier clock;
+	private final Map<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	RevisionIndex() {
+		this(System::currentTimeMillis);
+	}
+
+	RevisionIndex(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	// relative, without leading or trailing '/'
+	private static String key(String uri) {
+		String key = uri.startsWith("/") ? uri.substring(1) : uri;
+		return DavRepository.trimTrailingSlash(key);
+	}
+
+	/**
+	 * The children of the collection as last listed, in name order, or null
+	 * if it has not been listed or has changed since.
+	 *
+	 * @param collection
+	 *            the collection's current metadata
+	 */
+	synchronized List<String> get(String uri, WebserverData collection) {
+		String key = key(uri);
+		Listing listing = listings.get(key);
+		if (listing == null) {
+			return null;
+		}
+		if (!listing.matches(collection)) {
+			if (!listing.adoptValidator) {
+				listings.remove(key);
+				return null;
+			}
+			listing.etag = collection.etag;
+			listing.modifiedAt = collection.modifiedAt;
+		}
+		listing.adoptValidator = false;
+		return new ArrayList<String>(listing.children);
+	}
+
+	/**
+	 * Remember a listing of the collection, made after its metadata was
+	 * fetched.
+	 */
+	synchronized void put(String uri, WebserverData collection, Collection<String> children) {
+		if (collection.etag == null
+				&& (collection.modifiedAt == 0 || clock.getAsLong() - collection.modifiedAt < MIN_AGE_MILLIS)) {
+			// nothing reliable to tell a change by
+			return;
+		}
+		listings.put(key(uri), new Listing(collection, children));
+	}
+
+	/**
+	 * Record that the resource (a collection if ending in '/') was created
+	 * through this client.
+	 */
+	synchronized void added(String uri) {
+		changed(uri, true);
+	}
+
+	/**
+	 * Record that the resource and anything below it were removed through this
+	 * client.
+	 */
+	synchronized void removed(String uri) {
+		changed(uri, false);
+	}
+
+	private void changed(String uri, boolean added) {
+		String path = uri.startsWith("/") ? uri.substring(1) : uri;
+		String key = key(path);
+		if (key.length() == 0) {
+			listings.clear();
+			return;
+		}
+		// listings of the resource itself and below no longer hold
+		for (Iterator<String> it = listings.keySet().iterator(); it.hasNext();) {
+			String listed = it.next();
+			if (listed.equals(key) || listed.startsWith(key + "/")) {
+				it.remove();
+			}
+		}
+		// and listed ancestors may have gained a child, or the parent lost one
+		for (int start = 0; ; ) {
+			int slash = key.indexOf('/', start);
+			Listing listing = listings.get(start == 0 ? "" : key.substring(0, start - 1));
+			if (slash < 0) {
+				if (listing != null && (added ? listing.children.add(path)
+						: listing.children.remove(key) | listing.children.remove(key + "/"))) {
+					listing.adoptValidator = true;
+				}
+				return;
+			}
+			if (added && listing != null && listing.children.add(key.substring(0, slash + 1))) {
+				listing.adoptValidator = true;
+			}
+			start = slash + 1;
+		}
+	}
+}
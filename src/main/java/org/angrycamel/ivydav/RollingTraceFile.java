@@ -0,0 +1,114 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.ivy.util.Message;
+
+/**
+ * Writes traces to a file, one line each (see {@link TransferTrace#toString}).
+ * Once the file exceeds its size it is renamed to <code>name.1</code>,
+ * shifting older ones up to <code>name.</code><i>keep</i>, and a new one is
+ * started.
+ */
+public final class RollingTraceFile implements TransferTraceListener {
+
+	static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+	static final int DEFAULT_KEEP = 3;
+
+	private final File file;
+	private final long maxBytes;
+	private final int keep;
+	private Writer writer;
+	private long written;
+	private boolean failed;
+
+	public RollingTraceFile(File file) {
+		this(file, DEFAULT_MAX_BYTES, DEFAULT_KEEP);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            size at which the file is rolled over
+	 * @param keep
+	 *            number of rolled over files kept
+	 */
+	public RollingTraceFile(File file, long maxBytes, int keep) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.keep = keep;
+	}
+
+	public synchronized void traced(TransferTrace trace) {
+		if (failed) {
+			return;
+		}
+		try {
+			if (writer == null) {
+				open();
+			} else if (written >= maxBytes) {
+				writer.close();
+				roll();
+				open();
+			}
+			String line = trace + "\n";
+			writer.write(line);
+			writer.flush();
+			written += line.length();
+		} catch (IOException ex) {
+			// tracing must never break a resolve
+			Message.warn("ivydav: cannot write request trace to " + file + ": " + ex.getMessage());
+			failed = true;
+		}
+	}
+
+	private void open() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) {
+			dir.mkdirs();
+		}
+		writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+		written = file.length();
+	}
+
+	private void roll() {
+		new File(file.getPath() + "." + keep).delete();
+		for (int i = keep - 1; i >= 1; i--) {
+			new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+		}
+		if (keep > 0) {
+			file.renameTo(new File(file.getPath() + ".1"));
+		} else {
+			file.delete();
+		}
+	}
+
+	public synchronized void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException ex) {
+			}
+			writer = null;
+		}
+	}
+}
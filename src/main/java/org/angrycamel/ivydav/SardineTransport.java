@@ -0,0 +1,361 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.ivy.util.Message;
+
+import com.googlecode.sardine.Sardine;
+import com.googlecode.sardine.SardineFactory;
+import com.googlecode.sardine.SardineImpl;
+import com.googlecode.sardine.util.SardineException;
+
+/**
+ * DavTransport over Sardine (HTTP/1.1, one request per pooled connection).
+ * Sardine blocks, so requests run on a bounded pool of daemon threads: any
+ * number of requests may be outstanding but only the pool's threads are tied
+ * up in network I/O, each on a connection of its own: the pool allows as many
+ * connections per server as there are threads. A request cancelled while it
+ * runs is aborted, freeing its thread and connection. Sardine always PROPFINDs
+ * with Depth 1.
+ */
+class SardineTransport implements DavTransport {
+
+	static final int DEFAULT_THREADS = 16;
+
+	final Sardine sardine;
+	private final ExecutorService executor;
+	// the call the current thread is making
+	private static final ThreadLocal<Exchange> CURRENT = new ThreadLocal<Exchange>();
+
+	/**
+	 * A blocking Sardine call.
+	 */
+	interface SardineCall<T> {
+		T call() throws IOException;
+	}
+
+	SardineTransport(String user, String pass, SSLContext sslContext) {
+		this(user, pass, sslContext, 0, 0);
+	}
+
+	/**
+	 * @param connectMillis
+	 *            time allowed to establish a connection; zero for no limit
+	 * @param readMillis
+	 *            time a socket read may wait for data; zero for no limit
+	 */
+	SardineTransport(String user, String pass, SSLContext sslContext, int connectMillis, int readMillis) {
+		this(createSardine(user, pass, sslContext));
+		setMaxConnectionsPerServer(sardine, DEFAULT_THREADS);
+		recordRequests(sardine);
+		if (connectMillis > 0 || readMillis > 0) {
+			setTimeouts(sardine, connectMillis, readMillis);
+		}
+	}
+
+	SardineTransport(Sardine sardine) {
+		this.sardine = sardine;
+		this.executor = createExecutor(DEFAULT_THREADS);
+	}
+
+	private static Sardine createSardine(String user, String pass, SSLContext sslContext) {
+		try {
+			if (sslContext != null) {
+				// connections are pooled by Sardine's connection manager; TLS
+				// sessions are resumed through the context's session cache
+				SSLSocketFactory socketFactory = new SSLSocketFactory(sslContext);
+				return user == null ? SardineFactory.begin(socketFactory)
+						: SardineFactory.begin(user, pass, socketFactory);
+			}
+			if (user == null) {
+				return SardineFactory.begin();
+			} else {
+				return SardineFactory.begin(user, pass);
+			}
+		} catch (SardineException ex) {
+			throw new RuntimeException("Exception creating WebDAV connector",
+					ex);
+		}
+	}
+
+	// Sardine 146 has no way to configure its HttpClient but its field
+	static DefaultHttpClient client(Sardine sardine) throws ReflectiveOperationException {
+		Field field = SardineImpl.class.getDeclaredField("client");
+		field.setAccessible(true);
+		return (DefaultHttpClient) field.get(sardine);
+	}
+
+	private static void setTimeouts(Sardine sardine, int connectMillis, int readMillis) {
+		try {
+			HttpParams params = client(sardine).getParams();
+			HttpConnectionParams.setConnectionTimeout(params, connectMillis);
+			HttpConnectionParams.setSoTimeout(params, readMillis);
+		} catch (Exception ex) {
+			Message.warn("ivydav: cannot set connect and read timeouts of Sardine: " + ex);
+		}
+	}
+
+	// HttpClient allows two connections per server unless told otherwise
+	private static void setMaxConnectionsPerServer(Sardine sardine, int connections) {
+		try {
+			ClientConnectionManager manager = client(sardine).getConnectionManager();
+			if (manager instanceof ThreadSafeClientConnManager) {
+				ThreadSafeClientConnManager pool = (ThreadSafeClientConnManager) manager;
+				pool.setDefaultMaxPerRoute(connections);
+				pool.setMaxTotal(Math.max(pool.getMaxTotal(), connections));
+			}
+		} catch (Exception ex) {
+			Message.warn("ivydav: cannot set connections per server of Sardine: " + ex);
+		}
+	}
+
+	// Sardine keeps the requests it makes to itself; they are caught on the
+	// way out, once they have a connection, so that the call making them can
+	// abort them and a traced one is timed from there
+	private static void recordRequests(Sardine sardine) {
+		try {
+			client(sardine).addRequestInterceptor((request, context) -> {
+				Exchange exchange = CURRENT.get();
+				if (exchange != null && request instanceof RequestWrapper
+						&& ((RequestWrapper) request).getOriginal() instanceof AbortableHttpRequest) {
+					exchange.sending((AbortableHttpRequest) ((RequestWrapper) request).getOriginal());
+				}
+			});
+		} catch (Exception ex) {
+			Message.warn("ivydav: cannot abort requests of Sardine: " + ex);
+		}
+	}
+
+	// the request a call is making, aborted if the call is cancelled
+	private static final class Exchange {
+		private AbortableHttpRequest request;
+		private boolean aborted;
+		// told once the request has a thread and a connection
+		private Runnable dispatched;
+
+		Exchange(Runnable dispatched) {
+			this.dispatched = dispatched;
+		}
+
+		void sending(AbortableHttpRequest request) {
+			Runnable listener;
+			synchronized (this) {
+				if (aborted) {
+					request.abort();
+					return;
+				}
+				this.request = request;
+				listener = dispatched;
+				dispatched = null;
+			}
+			if (listener != null) {
+				listener.run();
+			}
+		}
+
+		synchronized void abort() {
+			aborted = true;
+			if (request != null) {
+				request.abort();
+			}
+		}
+
+		synchronized void finished() {
+			// a stream returned still reads through the request
+			request = null;
+			aborted = true;
+		}
+	}
+
+	private static ExecutorService createExecutor(int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ivydav-sardine-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(final String url, final SardineCall<T> work) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final Exchange exchange = new Exchange(TracingTransport.dispatchListener());
+		executor.execute(() -> {
+			if (future.isDone()) {
+				// cancelled while queued
+				return;
+			}
+			CURRENT.set(exchange);
+			try {
+				T result = work.call();
+				if (!future.complete(result) && result instanceof InputStream) {
+					// cancelled as it was answered
+					closeQuietly((InputStream) result);
+				}
+			} catch (SardineException ex) {
+				future.completeExceptionally(new DavException(url, ex.getStatusCode(),
+						ex.getResponsePhrase(), ex));
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				CURRENT.remove();
+				exchange.finished();
+			}
+		});
+		future.whenComplete((v, t) -> {
+			if (future.isCancelled()) {
+				exchange.abort();
+			}
+		});
+		return future;
+	}
+
+	private static void closeQuietly(InputStream is) {
+		try {
+			is.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	public CompletableFuture<List<Entry>> propfind(final String url, int depth) {
+		return submit(url, () -> {
+			List<com.googlecode.sardine.DavResource> resources = sardine.getResources(url);
+			List<Entry> entries = new ArrayList<Entry>();
+			if (resources != null) {
+				for (com.googlecode.sardine.DavResource resource : resources) {
+					entries.add(new Entry(resource.getAbsoluteUrl(),
+							resource.isCurrentDirectory(), createWebserverContent(resource)));
+				}
+			}
+			return entries;
+		});
+	}
+
+	static WebserverData createWebserverContent(com.googlecode.sardine.DavResource resource) {
+		WebserverData r = new WebserverData();
+		r.modifiedAt = resource.getModified().getTime();
+		r.createdAt = resource.getCreation().getTime();
+		r.contentType = resource.getContentType();
+		r.contentLength = resource.getContentLength();
+		return r;
+	}
+
+	public CompletableFuture<InputStream> get(final String url) {
+		return submit(url, () -> sardine.getInputStream(url));
+	}
+
+	public CompletableFuture<Void> put(final String url, final InputStream content) {
+		return submit(url, () -> {
+			sardine.put(url, content);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> put(final String url, final File content) {
+		return submit(url, () -> {
+			FileInputStream fis = new FileInputStream(content);
+			try {
+				sardine.put(url, fis);
+			} finally {
+				try {
+					fis.close();
+				} catch (IOException ex) {
+				}
+			}
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> mkcol(final String url) {
+		return submit(url, () -> {
+			sardine.createDirectory(url);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> delete(final String url) {
+		return submit(url, () -> {
+			sardine.delete(url);
+			return null;
+		});
+	}
+
+	// Sardine always sends "Overwrite: T", so refusing to overwrite is done by
+	// checking first; a destination created in between is overwritten
+	private void checkOverwrite(String destination, boolean overwrite) throws IOException {
+		if (overwrite) {
+			return;
+		}
+		try {
+			sardine.getResources(destination);
+		} catch (SardineException ex) {
+			if (ex.getStatusCode() == 404) {
+				return;
+			}
+			throw ex;
+		}
+		throw new DavException(destination, 412, "Destination exists and overwrite not set");
+	}
+
+	public CompletableFuture<Void> copy(final String url, final String destination, final boolean overwrite) {
+		return submit(url, () -> {
+			checkOverwrite(destination, overwrite);
+			sardine.copy(url, destination);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> move(final String url, final String destination, final boolean overwrite) {
+		return submit(url, () -> {
+			checkOverwrite(destination, overwrite);
+			sardine.move(url, destination);
+			return null;
+		});
+	}
+
+	public void close() {
+		executor.shutdown();
+		if (sardine instanceof SardineImpl) {
+			try {
+				client(sardine).getConnectionManager().shutdown();
+			} catch (Exception ex) {
+				Message.verbose("ivydav: cannot close connections of Sardine: " + ex);
+			}
+		}
+	}
+}
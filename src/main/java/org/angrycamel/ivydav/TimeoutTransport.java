@@ -0,0 +1,273 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the time requests of the wrapped transport may take, by class of
+ * operation: metadata (PROPFIND), downloads (GET, both until the response
+ * starts and while waiting for each read of its content) and changes (PUT,
+ * MKCOL, DELETE, COPY and MOVE). A request over its time fails with a
+ * <code>SocketTimeoutException</code> and is cancelled, which aborts the
+ * exchange, so it gives up its connection (and, for Sardine, its thread)
+ * rather than holding them until the socket times out; the JDK client aborts
+ * from Java 16 on, before which the exchange runs its course. Zero means no
+ * limit.
+ * Requests made within a {@link Deadline} are cut short when it passes, and
+ * once it has passed they are not made at all.
+ */
+class TimeoutTransport implements DavTransport {
+
+	private final DavTransport delegate;
+	private final long metadataMillis;
+	private final long readMillis;
+	private final long writeMillis;
+	private final ScheduledThreadPoolExecutor timer;
+
+	TimeoutTransport(DavTransport delegate, long metadataMillis, long readMillis, long writeMillis) {
+		this.delegate = delegate;
+		this.metadataMillis = metadataMillis;
+		this.readMillis = readMillis;
+		this.writeMillis = writeMillis;
+		this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread t = new Thread(r, "ivydav-timeout");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	// make the request, failing it if it takes longer than millis or the deadline
+	private <T> CompletableFuture<T> within(final String method, final String url, long millis,
+			Supplier<CompletableFuture<T>> request) {
+		final Deadline deadline = Deadline.current();
+		long limit = millis;
+		boolean byDeadline = false;
+		if (deadline != null) {
+			long remaining = deadline.remainingMillis();
+			if (remaining == 0) {
+				return DavRepository.failed(deadline.exceeded());
+			} else if (limit <= 0 || remaining < limit) {
+				limit = remaining;
+				byDeadline = true;
+			}
+		}
+		final CompletableFuture<T> pending = request.get();
+		if (limit <= 0) {
+			return pending;
+		}
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final IOException timedOut = byDeadline ? deadline.exceeded()
+				: new SocketTimeoutException(method + " " + url + " timed out after " + limit + "ms");
+		// cancelling the request fails the result in turn
+		final ScheduledFuture<?> timeout = timer.schedule(() -> pending.cancel(true), limit,
+				TimeUnit.MILLISECONDS);
+		pending.whenComplete((v, t) -> {
+			timeout.cancel(false);
+			if (t != null) {
+				result.completeExceptionally(pending.isCancelled() ? timedOut : DavRepository.unwrap(t));
+			} else if (!result.complete(v) && v instanceof InputStream) {
+				// answered too late
+				closeQuietly((InputStream) v);
+			}
+		});
+		// a caller giving up (see DavRepository.await) cancels the request too
+		result.whenComplete((v, t) -> {
+			if (result.isCancelled()) {
+				pending.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	private static void closeQuietly(InputStream is) {
+		try {
+			is.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	public CompletableFuture<List<Entry>> propfind(final String url, final int depth) {
+		return within("PROPFIND", url, metadataMillis, () -> delegate.propfind(url, depth));
+	}
+
+	public CompletableFuture<InputStream> get(final String url) {
+		final Deadline deadline = Deadline.current();
+		CompletableFuture<InputStream> response = within("GET", url, readMillis, () -> delegate.get(url));
+		if (readMillis <= 0 && deadline == null) {
+			return response;
+		}
+		return response.thenApply(is -> new TimedStream(is, url, deadline));
+	}
+
+	public CompletableFuture<Void> put(final String url, final InputStream content) {
+		return within("PUT", url, writeMillis, () -> delegate.put(url, content));
+	}
+
+	public CompletableFuture<Void> put(final String url, final File content) {
+		return within("PUT", url, writeMillis, () -> delegate.put(url, content));
+	}
+
+	public CompletableFuture<Void> mkcol(final String url) {
+		return within("MKCOL", url, writeMillis, () -> delegate.mkcol(url));
+	}
+
+	public CompletableFuture<Void> delete(final String url) {
+		return within("DELETE", url, writeMillis, () -> delegate.delete(url));
+	}
+
+	public CompletableFuture<Void> copy(final String url, final String destination, final boolean overwrite) {
+		return within("COPY", url, writeMillis, () -> delegate.copy(url, destination, overwrite));
+	}
+
+	public CompletableFuture<Void> move(final String url, final String destination, final boolean overwrite) {
+		return within("MOVE", url, writeMillis, () -> delegate.move(url, destination, overwrite));
+	}
+
+	public void close() {
+		timer.shutdownNow();
+		delegate.close();
+	}
+
+	/*
+	 * Fails a read waiting longer than the read timeout for content, or past
+	 * the deadline, by closing the stream underneath it. The close is done off
+	 * the timer thread as some clients drain the response when closed.
+	 */
+	private final class TimedStream extends FilterInputStream {
+		private final String url;
+		private final Deadline deadline;
+		// System.nanoTime() a read started, 0 while not reading
+		private volatile long readingSince;
+		private volatile IOException timedOut;
+		// closed, failed or read to the end: nothing left to watch
+		private volatile boolean finished;
+		private ScheduledFuture<?> watch;
+
+		TimedStream(InputStream in, String url, Deadline deadline) {
+			super(in);
+			this.url = url;
+			this.deadline = deadline;
+			watchIn(nextCheckMillis(0));
+		}
+
+		private synchronized void watchIn(long millis) {
+			if (!finished && millis > 0) {
+				watch = timer.schedule(() -> check(), millis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		// how long until a read started at since (0 if none) may be overdue
+		private long nextCheckMillis(long since) {
+			long next = Long.MAX_VALUE;
+			if (readMillis > 0) {
+				long waited = since == 0 ? 0 : (System.nanoTime() - since) / 1000000;
+				next = Math.max(readMillis - waited, 1);
+			}
+			if (deadline != null) {
+				next = Math.min(next, Math.max(deadline.remainingMillis(), 1));
+			}
+			return next;
+		}
+
+		private void check() {
+			if (finished) {
+				return;
+			}
+			long since = readingSince;
+			if (since != 0 && timedOut == null) {
+				if (deadline != null && deadline.isExpired()) {
+					timedOut = deadline.exceeded();
+				} else if (readMillis > 0 && System.nanoTime() - since >= readMillis * 1000000) {
+					timedOut = new SocketTimeoutException("GET " + url + " read timed out after " + readMillis + "ms");
+				}
+				if (timedOut != null) {
+					stopWatching();
+					CompletableFuture.runAsync(() -> closeQuietly(in));
+					return;
+				}
+			}
+			watchIn(nextCheckMillis(since));
+		}
+
+		private void begin() throws IOException {
+			if (timedOut != null) {
+				throw timedOut;
+			} else if (deadline != null && deadline.isExpired()) {
+				throw deadline.exceeded();
+			}
+			readingSince = System.nanoTime();
+		}
+
+		private int end(int n) throws IOException {
+			readingSince = 0;
+			if (timedOut != null) {
+				throw timedOut;
+			} else if (n < 0) {
+				stopWatching();
+			}
+			return n;
+		}
+
+		public int read() throws IOException {
+			begin();
+			try {
+				return end(super.read());
+			} catch (IOException ex) {
+				throw end(ex);
+			}
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			begin();
+			try {
+				return end(super.read(b, off, len));
+			} catch (IOException ex) {
+				throw end(ex);
+			}
+		}
+
+		// a read failing because it was timed out reports the timeout
+		private IOException end(IOException ex) {
+			readingSince = 0;
+			stopWatching();
+			return timedOut != null ? timedOut : ex;
+		}
+
+		private synchronized void stopWatching() {
+			finished = true;
+			if (watch != null) {
+				watch.cancel(false);
+			}
+		}
+
+		public void close() throws IOException {
+			stopWatching();
+			super.close();
+		}
+	}
+}
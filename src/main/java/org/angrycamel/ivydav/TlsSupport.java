@@ -0,0 +1,77 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds the SSLContext used for webdavs:// roots. The context's client
+ * session cache is what lets later connections to the same server resume a
+ * TLS session instead of paying for a full handshake, so one context should
+ * be shared by everything talking to a server.
+ */
+final class TlsSupport {
+
+	static final int SESSION_CACHE_SIZE = 512;
+	static final int SESSION_TIMEOUT_SECONDS = 8 * 60 * 60;
+
+	private TlsSupport() {
+	}
+
+	/**
+	 * @param trustStore
+	 *            path of the keystore holding trusted certificates, or null
+	 *            to use the JVM's default trust settings
+	 * @param password
+	 *            keystore password, may be null
+	 * @param type
+	 *            keystore type, null for the JVM default (PKCS12)
+	 */
+	static SSLContext createSSLContext(String trustStore, String password, String type)
+			throws IOException {
+		try {
+			if (trustStore == null) {
+				return SSLContext.getDefault();
+			}
+			KeyStore ks = KeyStore.getInstance(type == null ? KeyStore.getDefaultType() : type);
+			InputStream is = new FileInputStream(trustStore);
+			try {
+				ks.load(is, password == null ? null : password.toCharArray());
+			} finally {
+				is.close();
+			}
+			TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+					TrustManagerFactory.getDefaultAlgorithm());
+			tmf.init(ks);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, tmf.getTrustManagers(), null);
+			SSLSessionContext sessions = context.getClientSessionContext();
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+			return context;
+		} catch (GeneralSecurityException ex) {
+			throw new IOException("Cannot load trust store " + trustStore, ex);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import org.apache.ivy.util.Message;
+
+/**
+ * Times every request of the wrapped transport and hands a
+ * {@link TransferTrace} of it to the listeners, warning of requests slower
+ * than a threshold. A download is complete once its stream has been read to
+ * the end or closed. Connection reuse and retries happen out of sight inside
+ * the HTTP clients, so they are not traced.
+ * <p>
+ * A request is timed from when it goes out on a connection, which a client
+ * that queues requests for a thread or a connection reports through
+ * {@link #dispatchListener()}; the wait before is recorded as time queued.
+ * Time a download's reader spends between reads, such as being paced by a
+ * bandwidth cap, is recorded as time paused and does not make a request slow.
+ */
+class TracingTransport implements DavTransport {
+
+	private final DavTransport delegate;
+	private final List<TransferTraceListener> listeners = new CopyOnWriteArrayList<TransferTraceListener>();
+	private final long slowMillis;
+	// the request the current thread is making
+	private static final ThreadLocal<Timer> MAKING = new ThreadLocal<Timer>();
+
+	/**
+	 * @param slowMillis
+	 *            requests taking longer are warned of; zero or less for never
+	 */
+	TracingTransport(DavTransport delegate, long slowMillis) {
+		this.delegate = delegate;
+		this.slowMillis = slowMillis;
+	}
+
+	void addListener(TransferTraceListener listener) {
+		listeners.add(listener);
+	}
+
+	void removeListener(TransferTraceListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return to be run when the request the current thread is making goes
+	 *         out on a connection, or null if it is not being traced
+	 */
+	static Runnable dispatchListener() {
+		Timer timer = MAKING.get();
+		return timer == null ? null : timer::dispatched;
+	}
+
+	// a request under way
+	private final class Timer {
+		final String method;
+		final String url;
+		final long startedAt = System.currentTimeMillis();
+		final long created = System.nanoTime();
+		volatile long start = created;
+		volatile long queuedMillis;
+		long firstByteMillis = -1;
+
+		Timer(String method, String url) {
+			this.method = method;
+			this.url = url;
+		}
+
+		void dispatched() {
+			start = System.nanoTime();
+			queuedMillis = (start - created) / 1000000;
+		}
+
+		void firstByte() {
+			firstByteMillis = elapsedMillis();
+		}
+
+		long elapsedMillis() {
+			return (System.nanoTime() - start) / 1000000;
+		}
+
+		void done(long bytes, long pausedMillis, Throwable t) {
+			long total = elapsedMillis();
+			long ttfb = firstByteMillis >= 0 ? firstByteMillis : method.equals("PUT") ? -1 : total;
+			Throwable cause = t == null ? null : DavRepository.unwrap(t);
+			TransferTrace trace = new TransferTrace(method, url, startedAt, queuedMillis, ttfb, total,
+					pausedMillis, bytes, cause instanceof DavException ? ((DavException) cause).getStatusCode() : 0,
+					cause == null ? null : String.valueOf(cause.getMessage()));
+			long slow = slowMillis;
+			if (slow > 0 && total - pausedMillis > slow) {
+				Message.warn("ivydav: slow " + describe(trace));
+			}
+			for (TransferTraceListener listener : listeners) {
+				try {
+					listener.traced(trace);
+				} catch (RuntimeException ex) {
+					Message.verbose("ivydav: trace listener failed: " + ex);
+				}
+			}
+		}
+
+		<T> CompletableFuture<T> make(Supplier<CompletableFuture<T>> request) {
+			MAKING.set(this);
+			try {
+				return request.get();
+			} finally {
+				MAKING.remove();
+			}
+		}
+
+		<T> CompletableFuture<T> trace(Supplier<CompletableFuture<T>> request, final long bytes) {
+			return make(request).whenComplete((v, t) -> done(bytes, 0, t));
+		}
+	}
+
+	static String describe(TransferTrace trace) {
+		StringBuilder message = new StringBuilder(trace.getMethod() + " " + trace.getUrl() + ": "
+				+ trace.getTotalMillis() + "ms");
+		if (trace.getQueuedMillis() > 0) {
+			message.append(" after " + trace.getQueuedMillis() + "ms queued");
+		}
+		if (trace.getTimeToFirstByteMillis() >= 0) {
+			message.append(", first byte after " + trace.getTimeToFirstByteMillis() + "ms");
+		}
+		if (trace.getPausedMillis() > 0) {
+			message.append(", reading paused for " + trace.getPausedMillis() + "ms");
+		}
+		if (trace.getBytes() > 0) {
+			message.append(", " + trace.getBytes() + " bytes at " + Math.round(trace.getBytesPerSecond() / 1024)
+					+ " KB/s");
+		}
+		if (!trace.isSucceeded()) {
+			message.append(", failed: " + trace.getError());
+		}
+		return message.toString();
+	}
+
+	public CompletableFuture<List<Entry>> propfind(String url, int depth) {
+		return new Timer("PROPFIND", url).trace(() -> delegate.propfind(url, depth), 0);
+	}
+
+	public CompletableFuture<InputStream> get(String url) {
+		final Timer timer = new Timer("GET", url);
+		return timer.make(() -> delegate.get(url)).handle((is, t) -> {
+			if (t != null) {
+				timer.done(0, 0, t);
+				return DavRepository.<InputStream>failed(DavRepository.unwrap(t));
+			}
+			timer.firstByte();
+			return CompletableFuture.completedFuture((InputStream) new TracedStream(is, timer));
+		}).thenCompose(x -> x);
+	}
+
+	public CompletableFuture<Void> put(String url, InputStream content) {
+		Timer timer = new Timer("PUT", url);
+		final TracedStream counted = new TracedStream(content, null);
+		return timer.make(() -> delegate.put(url, counted))
+				.whenComplete((v, t) -> timer.done(counted.bytes, 0, t));
+	}
+
+	public CompletableFuture<Void> put(String url, File content) {
+		return new Timer("PUT", url).trace(() -> delegate.put(url, content), content.length());
+	}
+
+	public CompletableFuture<Void> mkcol(String url) {
+		return new Timer("MKCOL", url).trace(() -> delegate.mkcol(url), 0);
+	}
+
+	public CompletableFuture<Void> delete(String url) {
+		return new Timer("DELETE", url).trace(() -> delegate.delete(url), 0);
+	}
+
+	public CompletableFuture<Void> copy(String url, String destination, boolean overwrite) {
+		return new Timer("COPY", url).trace(() -> delegate.copy(url, destination, overwrite), 0);
+	}
+
+	public CompletableFuture<Void> move(String url, String destination, boolean overwrite) {
+		return new Timer("MOVE", url).trace(() -> delegate.move(url, destination, overwrite), 0);
+	}
+
+	public void close() {
+		delegate.close();
+		for (TransferTraceListener listener : listeners) {
+			if (listener instanceof RollingTraceFile) {
+				((RollingTraceFile) listener).close();
+			}
+		}
+	}
+
+	// counts content, and for a download times the reader's pauses and
+	// completes its trace at the end
+	private static final class TracedStream extends FilterInputStream {
+		private final Timer timer;
+		volatile long bytes;
+		private long pausedNanos;
+		private long lastRead = System.nanoTime();
+		private boolean done;
+
+		TracedStream(InputStream in, Timer timer) {
+			super(in);
+			this.timer = timer;
+		}
+
+		private void reading() {
+			if (timer != null) {
+				long now = System.nanoTime();
+				pausedNanos += now - lastRead;
+				lastRead = now;
+			}
+		}
+
+		private void returned() {
+			if (timer != null) {
+				lastRead = System.nanoTime();
+			}
+		}
+
+		public int read() throws IOException {
+			reading();
+			int b = super.read();
+			returned();
+			if (b >= 0) {
+				bytes++;
+			} else {
+				finish(null);
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n;
+			reading();
+			try {
+				n = super.read(b, off, len);
+			} catch (IOException ex) {
+				finish(ex);
+				throw ex;
+			}
+			returned();
+			if (n > 0) {
+				bytes += n;
+			} else if (n < 0) {
+				finish(null);
+			}
+			return n;
+		}
+
+		public void close() throws IOException {
+			reading();
+			try {
+				super.close();
+			} finally {
+				finish(null);
+			}
+		}
+
+		private void finish(Throwable t) {
+			synchronized (this) {
+				if (done || timer == null) {
+					return;
+				}
+				done = true;
+			}
+			timer.done(bytes, pausedNanos / 1000000, t);
+		}
+	}
+}
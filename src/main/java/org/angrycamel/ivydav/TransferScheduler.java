@@ -0,0 +1,335 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Orders requests to the server by how urgently resolution needs them, so
+ * that large downloads do not hold up the small requests a resolve is
+ * waiting on. At most <code>maxConcurrent</code> requests are in flight, of
+ * which at most <code>maxBulk</code> are artifact downloads, as many again
+ * are changes such as publishing, and at least one slot in four is left to
+ * metadata; queued requests are started metadata first, then descriptors,
+ * then artifacts, then changes. A download keeps its slot until its content
+ * has been read to the end or its stream is closed, and downloaded content
+ * can be limited to a number of bytes per second overall.
+ */
+final class TransferScheduler {
+
+	enum Priority {
+		// PROPFINDs
+		METADATA,
+		// descriptors and checksums: small, and needed to go on resolving
+		DESCRIPTOR,
+		// everything else
+		ARTIFACT,
+		// PUTs, MKCOLs, DELETEs, COPYs and MOVEs, which no resolve waits on
+		WRITE
+	}
+
+	static final int DEFAULT_MAX_CONCURRENT = 16;
+	static final int DEFAULT_MAX_BULK = 4;
+
+	private final int maxConcurrent;
+	private final int maxTransfers;
+	private final int maxBulk;
+	private final TokenBucket bandwidth;
+	private final Map<Priority, Deque<Runnable>> waiting = new EnumMap<Priority, Deque<Runnable>>(Priority.class);
+	private int running;
+	// requests other than metadata
+	private int transfers;
+	private int bulk;
+	private int writes;
+
+	/**
+	 * @param bytesPerSecond
+	 *            cap on downloaded content, or zero or less for none
+	 */
+	TransferScheduler(int maxConcurrent, int maxBulk, long bytesPerSecond) {
+		if (maxConcurrent < 2 || maxBulk < 1) {
+			throw new IllegalArgumentException("Need at least two transfers, one of them bulk");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.maxTransfers = maxConcurrent - Math.max(1, maxConcurrent / 4);
+		this.maxBulk = Math.min(maxBulk, maxTransfers);
+		this.bandwidth = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+		for (Priority p : Priority.values()) {
+			waiting.put(p, new ArrayDeque<Runnable>());
+		}
+	}
+
+	/**
+	 * The class of a download, judged by its name.
+	 */
+	static Priority classify(String uri) {
+		String name = uri.substring(uri.lastIndexOf('/') + 1);
+		return name.endsWith(".xml") || name.endsWith(".pom") || name.endsWith(".sha1")
+				|| name.endsWith(".md5") ? Priority.DESCRIPTOR : Priority.ARTIFACT;
+	}
+
+	/**
+	 * Run an operation once a slot for its class is free, holding the slot
+	 * until it completes. Like downloads, it runs within the caller's
+	 * {@link Deadline}.
+	 */
+	<T> CompletableFuture<T> submit(Priority priority, final Supplier<CompletableFuture<T>> operation) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Supplier<CompletableFuture<T>> bound = Deadline.bind(operation);
+		schedule(priority, () -> start(bound).whenComplete((v, t) -> {
+			release(priority);
+			if (t != null) {
+				result.completeExceptionally(DavRepository.unwrap(t));
+			} else {
+				result.complete(v);
+			}
+		}));
+		return result;
+	}
+
+	/**
+	 * Start a download once a slot for its class is free, holding the slot
+	 * until the returned stream has been read to the end, has failed or is
+	 * closed.
+	 */
+	CompletableFuture<InputStream> download(final Priority priority, final Supplier<CompletableFuture<InputStream>> get) {
+		final CompletableFuture<InputStream> result = new CompletableFuture<InputStream>();
+		final Supplier<CompletableFuture<InputStream>> bound = Deadline.bind(get);
+		schedule(priority, () -> start(bound).whenComplete((is, t) -> {
+			if (t != null) {
+				release(priority);
+				result.completeExceptionally(DavRepository.unwrap(t));
+			} else if (!result.complete(new ScheduledStream(is, priority))) {
+				// nobody is waiting for it any more
+				try {
+					is.close();
+				} catch (IOException ex) {
+				}
+				release(priority);
+			}
+		}));
+		return result;
+	}
+
+	private static <T> CompletableFuture<T> start(Supplier<CompletableFuture<T>> operation) {
+		try {
+			return operation.get();
+		} catch (Throwable t) {
+			return DavRepository.failed(t);
+		}
+	}
+
+	private void schedule(Priority priority, Runnable start) {
+		boolean startNow;
+		synchronized (this) {
+			startNow = !queuedAhead(priority) && mayStart(priority);
+			if (startNow) {
+				acquire(priority);
+			} else {
+				waiting.get(priority).add(start);
+			}
+		}
+		if (startNow) {
+			start.run();
+		}
+	}
+
+	// whether anything as urgent is already waiting
+	private boolean queuedAhead(Priority priority) {
+		for (Priority p : Priority.values()) {
+			if (p.compareTo(priority) <= 0 && !waiting.get(p).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean mayStart(Priority priority) {
+		switch (priority) {
+		case METADATA:
+			return running < maxConcurrent;
+		case DESCRIPTOR:
+			return running < maxConcurrent && transfers < maxTransfers;
+		case ARTIFACT:
+			return running < maxConcurrent && transfers < maxTransfers && bulk < maxBulk;
+		default:
+			return running < maxConcurrent && transfers < maxTransfers && writes < maxBulk;
+		}
+	}
+
+	private void acquire(Priority priority) {
+		running++;
+		if (priority != Priority.METADATA) {
+			transfers++;
+		}
+		if (priority == Priority.ARTIFACT) {
+			bulk++;
+		} else if (priority == Priority.WRITE) {
+			writes++;
+		}
+	}
+
+	private void release(Priority priority) {
+		Runnable next;
+		synchronized (this) {
+			running--;
+			if (priority != Priority.METADATA) {
+				transfers--;
+			}
+			if (priority == Priority.ARTIFACT) {
+				bulk--;
+			} else if (priority == Priority.WRITE) {
+				writes--;
+			}
+			next = null;
+			for (Priority p : Priority.values()) {
+				if (!waiting.get(p).isEmpty() && mayStart(p)) {
+					next = waiting.get(p).poll();
+					acquire(p);
+					break;
+				}
+			}
+		}
+		if (next != null) {
+			next.run();
+		}
+	}
+
+	// content of a scheduled download, paced by the bandwidth cap; the slot
+	// is given up at the end of the content, so that a stream left unclosed
+	// once read does not hold it for good
+	private final class ScheduledStream extends FilterInputStream implements ChannelCopy.FileBacked {
+		private final Priority priority;
+		private boolean released;
+
+		ScheduledStream(InputStream in, Priority priority) {
+			super(in);
+			this.priority = priority;
+		}
+
+		public int read() throws IOException {
+			int b;
+			try {
+				b = super.read();
+			} catch (IOException ex) {
+				finish();
+				throw ex;
+			}
+			if (b >= 0) {
+				pace(1);
+			} else {
+				finish();
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n;
+			try {
+				n = super.read(b, off, len);
+			} catch (IOException ex) {
+				finish();
+				throw ex;
+			}
+			if (n > 0) {
+				pace(n);
+			} else if (n < 0) {
+				finish();
+			}
+			return n;
+		}
+
+		// a local file can be transferred as a whole unless it is to be paced
+		public FileChannel getFileChannel() {
+			if (bandwidth != null) {
+				return null;
+			} else if (in instanceof FileInputStream) {
+				return ((FileInputStream) in).getChannel();
+			}
+			return in instanceof ChannelCopy.FileBacked ? ((ChannelCopy.FileBacked) in).getFileChannel() : null;
+		}
+
+		private void pace(int bytes) throws IOException {
+			if (bandwidth != null) {
+				bandwidth.take(bytes);
+			}
+		}
+
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				finish();
+			}
+		}
+
+		private void finish() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			release(priority);
+		}
+	}
+
+	/**
+	 * Allows a number of bytes per second, in bursts of up to a second's
+	 * worth; takers exceeding it sleep until their bytes have been earned.
+	 */
+	static final class TokenBucket {
+		private final long bytesPerSecond;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+
+		TokenBucket(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.tokens = bytesPerSecond;
+		}
+
+		void take(long bytes) throws IOException {
+			long waitNanos;
+			synchronized (this) {
+				long now = System.nanoTime();
+				tokens = Math.min(bytesPerSecond, tokens + (now - refilledAt) * (double) bytesPerSecond / 1e9);
+				refilledAt = now;
+				tokens -= bytes;
+				waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+			}
+			if (waitNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while limiting bandwidth");
+				}
+			}
+		}
+	}
+}
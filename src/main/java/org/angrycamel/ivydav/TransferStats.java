@@ -0,0 +1,69 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+/**
+ * Aggregate figures for a bulk transfer of many files.
+ */
+public final class TransferStats {
+
+	private final long files;
+	private final long skipped;
+	private final long bytes;
+	private final long elapsedMillis;
+
+	TransferStats(long files, long skipped, long bytes, long elapsedMillis) {
+		this.files = files;
+		this.skipped = skipped;
+		this.bytes = bytes;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * @return number of files transferred
+	 */
+	public long getFiles() {
+		return files;
+	}
+
+	/**
+	 * @return number of files left alone because they were already present
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	public double getBytesPerSecond() {
+		return bytes * 1000.0 / Math.max(elapsedMillis, 1);
+	}
+
+	public double getFilesPerSecond() {
+		return files * 1000.0 / Math.max(elapsedMillis, 1);
+	}
+
+	public String toString() {
+		return files + " files (" + bytes + " bytes, " + skipped + " skipped) in " + elapsedMillis + "ms: "
+				+ Math.round(getFilesPerSecond()) + " files/s, " + Math.round(getBytesPerSecond() / 1024) + " KB/s";
+	}
+}
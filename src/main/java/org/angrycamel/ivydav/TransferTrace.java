@@ -0,0 +1,154 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Timing of one request to the server. Time queued for a thread or a
+ * connection comes before the timing starts; the time to first byte is then
+ * how long the server took to start answering, and the rest of the total is
+ * spent transferring content, so a slow request can be put down to server
+ * latency or to throughput. Time the reader paused between reads, such as
+ * when paced by a bandwidth cap, is part of the total but not of the
+ * transfer.
+ */
+public final class TransferTrace {
+
+	private final String method;
+	private final String url;
+	private final long startedAt;
+	private final long queuedMillis;
+	private final long timeToFirstByteMillis;
+	private final long totalMillis;
+	private final long pausedMillis;
+	private final long bytes;
+	private final int statusCode;
+	private final String error;
+
+	TransferTrace(String method, String url, long startedAt, long queuedMillis, long timeToFirstByteMillis,
+			long totalMillis, long pausedMillis, long bytes, int statusCode, String error) {
+		this.method = method;
+		this.url = url;
+		this.startedAt = startedAt;
+		this.queuedMillis = queuedMillis;
+		this.timeToFirstByteMillis = timeToFirstByteMillis;
+		this.totalMillis = totalMillis;
+		this.pausedMillis = pausedMillis;
+		this.bytes = bytes;
+		this.statusCode = statusCode;
+		this.error = error;
+	}
+
+	/**
+	 * @return the HTTP method, e.g. <code>GET</code> or <code>PROPFIND</code>
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return when the request was made, in milliseconds since the epoch
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	/**
+	 * @return time the request waited for a thread or a connection before it
+	 *         was sent
+	 */
+	public long getQueuedMillis() {
+		return queuedMillis;
+	}
+
+	/**
+	 * @return time from sending the request until the response started, or
+	 *         -1 if not known (uploads)
+	 */
+	public long getTimeToFirstByteMillis() {
+		return timeToFirstByteMillis;
+	}
+
+	/**
+	 * @return time from sending the request until it completed, including
+	 *         reading the response content
+	 */
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	/**
+	 * @return time within the total that the reader spent between reads of
+	 *         the response content
+	 */
+	public long getPausedMillis() {
+		return pausedMillis;
+	}
+
+	/**
+	 * @return content bytes sent or received
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the error status of a failed request, or 0 if it succeeded or
+	 *         failed without a response
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return why the request failed, or null if it succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	public boolean isSucceeded() {
+		return error == null;
+	}
+
+	/**
+	 * @return content throughput after the first byte, leaving out pauses, in
+	 *         bytes per second
+	 */
+	public double getBytesPerSecond() {
+		long transferMillis = totalMillis - Math.max(timeToFirstByteMillis, 0) - pausedMillis;
+		return bytes * 1000.0 / Math.max(transferMillis, 1);
+	}
+
+	/**
+	 * One tab separated line: start time, method, status ("ok", a status code
+	 * or "error"), bytes, time to first byte and total time in milliseconds,
+	 * URL, error if any, and then time queued and time paused in
+	 * milliseconds.
+	 */
+	public String toString() {
+		return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(new Date(startedAt)) + "\t" + method
+				+ "\t" + (error == null ? "ok" : statusCode > 0 ? String.valueOf(statusCode) : "error")
+				+ "\t" + bytes + "\t" + timeToFirstByteMillis + "\t" + totalMillis + "\t" + url
+				+ "\t" + (error == null ? "" : error) + "\t" + queuedMillis + "\t" + pausedMillis;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AsyncLimiterTest {
+
+	@Test
+	public void testOperationsBeyondTheLimitWaitForASlot() {
+		AsyncLimiter limiter = new AsyncLimiter(1);
+		final CompletableFuture<String> first = new CompletableFuture<String>();
+		final AtomicInteger started = new AtomicInteger();
+		limiter.submit(() -> first);
+		CompletableFuture<String> second = limiter.submit(() -> {
+			started.incrementAndGet();
+			return CompletableFuture.completedFuture("second");
+		});
+		assertEquals("queued", 0, started.get());
+
+		first.complete("first");
+		assertEquals("started once the first completed", 1, started.get());
+		assertEquals("second", second.join());
+	}
+
+	@Test
+	public void testLongQueueOfImmediateOperationsDoesNotNest() throws Exception {
+		AsyncLimiter limiter = new AsyncLimiter(1);
+		final CompletableFuture<Void> first = new CompletableFuture<Void>();
+		limiter.submit(() -> first);
+		final AtomicInteger completed = new AtomicInteger();
+		CompletableFuture<Void> last = null;
+		for (int i = 0; i < 100000; i++) {
+			// e.g. offline mirror hits, or requests past their deadline
+			last = limiter.<Void>submit(() -> CompletableFuture.completedFuture(null))
+					.thenRun(() -> completed.incrementAndGet());
+		}
+		first.complete(null);
+		// a start overflowing the stack is swallowed, leaving the rest unstarted
+		last.get(30, TimeUnit.SECONDS);
+		assertEquals("all run", 100000, completed.get());
+	}
+}
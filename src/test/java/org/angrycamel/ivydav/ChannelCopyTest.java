@@ -0,0 +1,132 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.ivy.util.CopyProgressEvent;
+import org.apache.ivy.util.CopyProgressListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelCopyTest {
+
+	private final byte[] content = new byte[ChannelCopy.CHUNK * 2 + 17];
+	private File source;
+	private File destination;
+	private long progressed;
+	private long ended = -1;
+
+	private final CopyProgressListener listener = new CopyProgressListener() {
+		public void start(CopyProgressEvent evt) {
+		}
+
+		public void progress(CopyProgressEvent evt) {
+			progressed += evt.getReadBytes();
+		}
+
+		public void end(CopyProgressEvent evt) {
+			ended = evt.getTotalReadBytes();
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		new Random(42).nextBytes(content);
+		source = File.createTempFile("ivydav", ".jar");
+		FileOutputStream fos = new FileOutputStream(source);
+		fos.write(content);
+		fos.close();
+		destination = new File(source.getPath() + ".copy");
+	}
+
+	@After
+	public void tearDown() {
+		source.delete();
+		destination.delete();
+	}
+
+	@Test
+	public void testStreamCopiedWithProgress() throws IOException {
+		// larger than the existing destination, which is truncated
+		Files.write(destination.toPath(), new byte[content.length * 2]);
+		long copied = ChannelCopy.copy(new ByteArrayInputStream(content), destination, listener);
+
+		assertEquals("copied", content.length, copied);
+		assertTrue("content", Arrays.equals(content, Files.readAllBytes(destination.toPath())));
+		assertEquals("progress of every chunk", content.length, progressed);
+		assertEquals("total at the end", content.length, ended);
+	}
+
+	@Test
+	public void testConcurrentCopiesBeyondThePoolKeepTheirOwnBuffers() throws Exception {
+		List<Future<byte[]>> copies = new ArrayList<Future<byte[]>>();
+		ExecutorService executor = Executors.newFixedThreadPool(ChannelCopy.POOLED * 2);
+		try {
+			for (int i = 0; i < ChannelCopy.POOLED * 2; i++) {
+				final File copy = new File(destination.getPath() + i);
+				final byte[] own = Arrays.copyOf(content, content.length - i);
+				copies.add(executor.submit(() -> {
+					try {
+						ChannelCopy.copy(new ByteArrayInputStream(own), copy, null);
+						return Files.readAllBytes(copy.toPath());
+					} finally {
+						copy.delete();
+					}
+				}));
+			}
+			for (int i = 0; i < copies.size(); i++) {
+				assertTrue("content of copy " + i,
+						Arrays.equals(Arrays.copyOf(content, content.length - i), copies.get(i).get()));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLocalFileTransferredFromWhereItWasRead() throws IOException {
+		InputStream is = new FileInputStream(source);
+		try {
+			assertEquals("skipped", 17, is.skip(17));
+			long copied = ChannelCopy.copy(is, destination, listener);
+
+			assertEquals("copied", content.length - 17, copied);
+			assertTrue("content", Arrays.equals(Arrays.copyOfRange(content, 17, content.length),
+					Files.readAllBytes(destination.toPath())));
+			assertEquals("progress reported", content.length - 17, progressed);
+			assertEquals("stream at the end", -1, is.read());
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class DavMirrorTest {
+
+	private Mockery mockery = new JUnit4Mockery();
+
+	private final DavTransport sourceTransport = mockery.mock(DavTransport.class, "source");
+	private final DavTransport targetTransport = mockery.mock(DavTransport.class, "target");
+	private final DavRepository source = new DavRepository("webdav://src", sourceTransport);
+	private final DavRepository target = new DavRepository("webdav://dst", targetTransport);
+
+	private File checkpoint;
+	private DavMirror mirror;
+
+	@Before
+	public void setUp() throws IOException {
+		checkpoint = File.createTempFile("ivydav", ".checkpoint");
+		checkpoint.delete();
+		mirror = new DavMirror(source, target, checkpoint);
+		mirror.setParallelism(1);
+	}
+
+	@After
+	public void tearDown() {
+		checkpoint.delete();
+	}
+
+	private static CompletableFuture<List<DavTransport.Entry>> listing(DavTransport.Entry... entries) {
+		return CompletableFuture.completedFuture(Arrays.asList(entries));
+	}
+
+	private static DavTransport.Entry directory(String url, boolean current) {
+		WebserverData data = new WebserverData();
+		data.contentType = DavRepository.DIRECTORY_CONTENT_TYPE;
+		return new DavTransport.Entry(url, current, data);
+	}
+
+	private static DavTransport.Entry file(String url, long length, long modifiedAt) {
+		WebserverData data = new WebserverData();
+		data.contentType = "application/java-archive";
+		data.contentLength = length;
+		data.modifiedAt = modifiedAt;
+		return new DavTransport.Entry(url, false, data);
+	}
+
+	@Test
+	public void testCopiesOnlyChangedResources() throws IOException {
+		mockery.checking(new Expectations() {{
+			oneOf(sourceTransport).propfind("http://src/", 1);
+				will(returnValue(listing(directory("http://src/", true), directory("http://src/org/", false))));
+			oneOf(targetTransport).propfind("http://dst/", 1);
+				will(returnValue(listing(directory("http://dst/", true), directory("http://dst/org/", false))));
+			oneOf(sourceTransport).propfind("http://src/org/", 1);
+				will(returnValue(listing(directory("http://src/org/", true),
+						file("http://src/org/a.jar", 3, 2000), file("http://src/org/b.jar", 3, 1000))));
+			oneOf(targetTransport).propfind("http://dst/org/", 1);
+				will(returnValue(listing(directory("http://dst/org/", true), file("http://dst/org/b.jar", 3, 1500))));
+
+			oneOf(sourceTransport).get("http://src/org/a.jar");
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[3]))));
+			oneOf(targetTransport).put(with(equal("http://dst/org/a.jar")), with(any(InputStream.class)));
+				will(returnValue(CompletableFuture.completedFuture(null)));
+		}});
+		TransferStats stats = mirror.run();
+		assertEquals("copied", 1, stats.getFiles());
+		assertEquals("unchanged", 1, stats.getSkipped());
+		assertEquals("bytes", 3, stats.getBytes());
+		assertFalse("checkpoint removed after a complete run", checkpoint.exists());
+	}
+
+	@Test
+	public void testResumesAfterCheckpointWithoutRevisitingEarlierSubtrees() throws IOException {
+		Properties props = new Properties();
+		props.setProperty("source", "webdav://src/");
+		props.setProperty("target", "webdav://dst/");
+		props.setProperty("directory", "org/a");
+		FileOutputStream fos = new FileOutputStream(checkpoint);
+		props.store(fos, null);
+		fos.close();
+
+		mockery.checking(new Expectations() {{
+			// ancestors of the checkpoint are listed only to find what follows it
+			oneOf(sourceTransport).propfind("http://src/", 1);
+				will(returnValue(listing(directory("http://src/", true),
+						directory("http://src/com/", false), directory("http://src/org/", false))));
+			oneOf(sourceTransport).propfind("http://src/org/", 1);
+				will(returnValue(listing(directory("http://src/org/", true),
+						directory("http://src/org/a/", false), directory("http://src/org/b/", false))));
+			oneOf(sourceTransport).propfind("http://src/org/a/", 1);
+				will(returnValue(listing(directory("http://src/org/a/", true))));
+			never(sourceTransport).propfind("http://src/com/", 1);
+
+			oneOf(sourceTransport).propfind("http://src/org/b/", 1);
+				will(returnValue(listing(directory("http://src/org/b/", true), file("http://src/org/b/x.jar", 3, 1000))));
+			oneOf(targetTransport).propfind("http://dst/org/b/", 1);
+				will(returnValue(DavRepository.failed(new DavException("http://dst/org/b/", 404, "Not Found"))));
+			oneOf(targetTransport).mkcol("http://dst/org/b/");
+				will(returnValue(CompletableFuture.completedFuture(null)));
+			oneOf(sourceTransport).get("http://src/org/b/x.jar");
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[3]))));
+			oneOf(targetTransport).put(with(equal("http://dst/org/b/x.jar")), with(any(InputStream.class)));
+				will(returnValue(CompletableFuture.completedFuture(null)));
+		}});
+		TransferStats stats = mirror.run();
+		assertEquals("copied", 1, stats.getFiles());
+	}
+
+	@Test
+	public void testCollectionsAreListedConcurrently() throws Exception {
+		final CountDownLatch listing = new CountDownLatch(2);
+		final CompletableFuture<List<DavTransport.Entry>> a = new CompletableFuture<List<DavTransport.Entry>>();
+		final CompletableFuture<List<DavTransport.Entry>> b = new CompletableFuture<List<DavTransport.Entry>>();
+		mockery.checking(new Expectations() {{
+			oneOf(sourceTransport).propfind("http://src/", 1);
+				will(returnValue(listing(directory("http://src/", true),
+						directory("http://src/a/", false), directory("http://src/b/", false))));
+			oneOf(targetTransport).propfind("http://dst/", 1);
+				will(returnValue(listing(directory("http://dst/", true),
+						directory("http://dst/a/", false), directory("http://dst/b/", false))));
+			oneOf(sourceTransport).propfind("http://src/a/", 1); will(doAll(countDown(listing), returnValue(a)));
+			oneOf(sourceTransport).propfind("http://src/b/", 1); will(doAll(countDown(listing), returnValue(b)));
+			oneOf(targetTransport).propfind("http://dst/a/", 1);
+				will(returnValue(listing(directory("http://dst/a/", true))));
+			oneOf(targetTransport).propfind("http://dst/b/", 1);
+				will(returnValue(listing(directory("http://dst/b/", true))));
+		}});
+		mirror.setParallelism(4);
+		FutureTask<TransferStats> run = new FutureTask<TransferStats>(() -> mirror.run());
+		new Thread(run).start();
+		try {
+			assertTrue("second listed before the first answered", listing.await(10, TimeUnit.SECONDS));
+		} finally {
+			a.complete(Arrays.asList(directory("http://src/a/", true)));
+			b.complete(Arrays.asList(directory("http://src/b/", true)));
+		}
+		assertEquals("nothing to copy", 0, run.get(10, TimeUnit.SECONDS).getFiles());
+		assertFalse("checkpoint removed after a complete run", checkpoint.exists());
+	}
+
+	private static Action countDown(final CountDownLatch latch) {
+		return new CustomAction("count down") {
+			public Object invoke(Invocation invocation) {
+				latch.countDown();
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void testComparePreOrder() {
+		assertTrue("parent first", DavMirror.comparePreOrder("org", "org/a") < 0);
+		assertTrue("subtree before next sibling", DavMirror.comparePreOrder("a/z", "a-b") < 0);
+		assertTrue("root first", DavMirror.comparePreOrder("", "a") < 0);
+		assertEquals("same", 0, DavMirror.comparePreOrder("org/a", "org/a"));
+	}
+}
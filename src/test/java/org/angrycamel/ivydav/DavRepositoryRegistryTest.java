@@ -0,0 +1,73 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class DavRepositoryRegistryTest {
+
+	private Mockery mockery = new JUnit4Mockery();
+
+	private final DavTransport transport = mockery.mock(DavTransport.class);
+
+	private final DavRepositoryRegistry.Factory factory = () -> new DavRepository("webdav://my.server/ivy", transport);
+
+	@Test
+	public void testSameKeySharesRepository() {
+		DavRepositoryRegistry.Key key = new DavRepositoryRegistry.Key("webdav://my.server/ivy", "user", "pass");
+		DavRepositoryRegistry.Key sameRoot = new DavRepositoryRegistry.Key("webdav://my.server/ivy/", "user", "pass");
+		DavRepository first = DavRepositoryRegistry.acquire(key, factory);
+		DavRepository second = DavRepositoryRegistry.acquire(sameRoot, factory);
+		assertSame("shared instance", first, second);
+		assertEquals("two references", 2, DavRepositoryRegistry.references(first));
+
+		mockery.checking(new Expectations() {{
+			oneOf(transport).close();
+		}});
+		DavRepositoryRegistry.release(first);
+		assertEquals("one reference left", 1, DavRepositoryRegistry.references(first));
+		DavRepositoryRegistry.release(second);
+		assertEquals("closed and unregistered", 0, DavRepositoryRegistry.references(first));
+	}
+
+	@Test
+	public void testDifferentCredentialsAreNotShared() {
+		DavRepository first = DavRepositoryRegistry.acquire(
+				new DavRepositoryRegistry.Key("webdav://my.server/ivy", "alice", "pass"), factory);
+		DavRepository second = DavRepositoryRegistry.acquire(
+				new DavRepositoryRegistry.Key("webdav://my.server/ivy", "bob", "pass"), factory);
+		assertNotSame("separate instances", first, second);
+
+		mockery.checking(new Expectations() {{
+			exactly(2).of(transport).close();
+		}});
+		DavRepositoryRegistry.release(first);
+		DavRepositoryRegistry.release(second);
+	}
+
+	@Test
+	public void testReleaseOfUnregisteredRepository() {
+		assertFalse("not from the registry", DavRepositoryRegistry.release(factory.create()));
+	}
+}
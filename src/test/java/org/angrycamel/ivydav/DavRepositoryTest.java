@@ -18,16 +18,21 @@ package org.angrycamel.ivydav;
 import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.angrycamel.ivydav.DavRepository.WebserverData;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.Sequence;
 import org.jmock.integration.junit4.JMock;
 import org.jmock.integration.junit4.JUnit4Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
@@ -47,10 +52,7 @@ public class DavRepositoryTest {
 	private final Sardine sardine = mockery.mock(Sardine.class);
 	private static final String ROOT = "webdav://my.server";
 
-	private DavRepository davRepository = new DavRepository(ROOT, null, null);
-	{
-		davRepository.sardine = sardine;
-	}
+	private DavRepository davRepository = new DavRepository(ROOT, new SardineTransport(sardine));
 	
 	private final InputStream contentStream = new ByteArrayInputStream(new byte[3]);
 	
@@ -115,6 +117,13 @@ public class DavRepositoryTest {
 		});
 		assertEquals("", expectedChildUris, childUris);
 	}
+	@Test
+	public void testHttpizeSecureRoot() {
+		assertEquals("webdavs maps to https", "https://my.server/ivy/", DavRepository.httpize("webdavs://my.server/ivy/"));
+		assertEquals("https maps back to webdavs", "webdavs://my.server/ivy/", DavRepository.unhttpize("https://my.server/ivy/"));
+		assertEquals("plain webdav unchanged", "http://my.server/ivy/", DavRepository.httpize("webdav://my.server/ivy/"));
+	}
+
 	@Test
 	public void testGetParentOf() {
 		final String uri = "/hello/world";
@@ -143,6 +152,220 @@ public class DavRepositoryTest {
 		assertEquals("", expected, data);
 	}
 	
+	@Test
+	public void testResourcesAreSharedUntilChanged() throws IOException {
+		final String uri = "/hello/world";
+		final com.googlecode.sardine.DavResource resource = new com.googlecode.sardine.DavResource(
+				"http://my.server/hello/", "world", new Date(0), new Date(0), "text/xml", 3L, false, null);
+		mockery.checking(new Expectations() {{
+			exactly(2).of(sardine).getResources("http://my.server/hello/world"); will(returnValue(Collections.singletonList(resource)));
+			oneOf(sardine).getResources("http://my.server/hello/"); will(returnValue(emptyDirectory("hello/")));
+			oneOf(sardine).put("http://my.server/hello/world", contentStream);
+		}});
+		DavResource shared = davRepository.getResource(uri);
+		assertSame("one resource per URI, whichever resolver asks", shared, new IvyRepository(davRepository).getResource(uri));
+		assertTrue("exists", shared.exists());
+		assertEquals("length from the same request", 3, shared.getContentLength());
+
+		davRepository.putResource(uri, contentStream);
+		assertEquals("asked again once changed", 3, shared.getContentLength());
+	}
+
+	@Test
+	public void testGetResourceMetadataAsyncForAbsentResource() throws Exception {
+		mockery.checking(new Expectations() {{
+			oneOf(sardine).getResources("http://my.server/hello/world"); will(throwException(notFoundException));
+		}});
+		CompletableFuture<WebserverData> future = davRepository.getResourceMetadataAsync("/hello/world");
+		assertNull("absent resource has no metadata", future.get());
+	}
+
+	@Test
+	public void testPrefetchedMetadataNeedsNoFurtherRequest() throws Exception {
+		final com.googlecode.sardine.DavResource resource = new com.googlecode.sardine.DavResource(
+				"http://my.server/org/mod/",
+				"ivy-1.0.xml",
+				new Date(0), new Date(0),
+				"text/xml", 1024L, false, null
+		);
+		mockery.checking(new Expectations() {{
+			oneOf(sardine).getResources("http://my.server/org/mod/ivy-1.0.xml"); will(returnValue(Collections.singletonList(resource)));
+			oneOf(sardine).getResources("http://my.server/org/mod/ivy-2.0.xml"); will(throwException(notFoundException));
+		}});
+		TransferStats stats = davRepository.prefetchAsync(
+				Arrays.asList("org/mod/ivy-1.0.xml", "org/mod/ivy-2.0.xml"), false, 2).get();
+		assertEquals("found", 1, stats.getFiles());
+		assertEquals("absent", 1, stats.getSkipped());
+
+		// answered from the prefetch
+		assertEquals("present", 1024L, davRepository.getResourceMetadata("/org/mod/ivy-1.0.xml").getContentLength());
+		assertNull("absence remembered too", davRepository.getResourceMetadata("org/mod/ivy-2.0.xml"));
+	}
+
+	@Test
+	public void testDeleteFileAsyncFailure() throws Exception {
+		mockery.checking(new Expectations() {{
+			oneOf(sardine).delete("http://my.server/hello/world"); will(throwException(new SardineException("", 403, "")));
+		}});
+		try {
+			DavRepository.await(davRepository.deleteFileAsync("/hello/world"));
+			fail("delete should have failed");
+		}
+		catch (IOException ex) {
+			assertEquals("status preserved", 403, ((DavException)ex.getCause()).getStatusCode());
+		}
+	}
+
+	@Test
+	public void testDeleteTreeFallsBackToWalkingTheCollection() throws IOException {
+		final List<com.googlecode.sardine.DavResource> snapshots = Arrays.asList(new com.googlecode.sardine.DavResource[] {
+			new com.googlecode.sardine.DavResource("http://my.server/snap/", "snap",
+					new Date(0), new Date(0), DavRepository.DIRECTORY_CONTENT_TYPE, 0L, true, null),
+			new com.googlecode.sardine.DavResource("http://my.server/snap/", "1.0",
+					new Date(0), new Date(0), DavRepository.DIRECTORY_CONTENT_TYPE, 0L, false, null),
+			new com.googlecode.sardine.DavResource("http://my.server/snap/", "ivy.xml",
+					new Date(0), new Date(0), "text/xml", 10L, false, null),
+		});
+		final List<com.googlecode.sardine.DavResource> revision = Arrays.asList(new com.googlecode.sardine.DavResource[] {
+			new com.googlecode.sardine.DavResource("http://my.server/snap/1.0/", "1.0",
+					new Date(0), new Date(0), DavRepository.DIRECTORY_CONTENT_TYPE, 0L, true, null),
+			new com.googlecode.sardine.DavResource("http://my.server/snap/1.0/", "mod.jar",
+					new Date(0), new Date(0), "application/java-archive", 10L, false, null),
+		});
+		// siblings may go in either order, but children always before their collection
+		final Sequence deletion = mockery.sequence("deletion");
+		final Sequence leaf = mockery.sequence("leaf");
+		mockery.checking(new Expectations() {{
+			oneOf(sardine).delete("http://my.server/snap/"); will(throwException(new SardineException("", 405, ""))); inSequence(deletion);
+			oneOf(sardine).getResources("http://my.server/snap/"); will(returnValue(snapshots)); inSequence(deletion); inSequence(leaf);
+			oneOf(sardine).getResources("http://my.server/snap/1.0/"); will(returnValue(revision)); inSequence(deletion);
+			oneOf(sardine).delete("http://my.server/snap/ivy.xml"); inSequence(leaf);
+			oneOf(sardine).delete("http://my.server/snap/1.0/mod.jar"); inSequence(deletion);
+			oneOf(sardine).delete("http://my.server/snap/1.0/"); inSequence(deletion);
+			oneOf(sardine).delete("http://my.server/snap/"); inSequence(deletion); inSequence(leaf);
+		}});
+		DavRepository.await(davRepository.deleteTreeAsync("/snap", new AsyncLimiter(1)));
+	}
+
+	@Test
+	public void testDeleteTreeForbiddenIsNotWalked() throws Exception {
+		mockery.checking(new Expectations() {{
+			oneOf(sardine).delete("http://my.server/snap/"); will(throwException(new SardineException("", 403, "")));
+			never(sardine).getResources(with(any(String.class)));
+		}});
+		try {
+			DavRepository.await(davRepository.deleteTreeAsync("/snap", new AsyncLimiter(1)));
+			fail("delete should have failed");
+		}
+		catch (IOException ex) {
+			assertEquals("status preserved", 403, ((DavException)ex.getCause()).getStatusCode());
+		}
+	}
+
+	@Test
+	public void testUploadTreeCreatesCollectionsOnceAndSkipsExistingFiles() throws IOException {
+		File tree = File.createTempFile("ivydav", "tree");
+		tree.delete();
+		new File(tree, "a/b").mkdirs();
+		writeFile(new File(tree, "z.xml"));
+		writeFile(new File(tree, "a/x.jar"));
+		writeFile(new File(tree, "a/b/y.jar"));
+
+		final List<com.googlecode.sardine.DavResource> seed = Arrays.asList(new com.googlecode.sardine.DavResource[] {
+			new com.googlecode.sardine.DavResource("http://my.server/seed/", "seed",
+					new Date(0), new Date(0), DavRepository.DIRECTORY_CONTENT_TYPE, 0L, true, null),
+			new com.googlecode.sardine.DavResource("http://my.server/seed/", "z.xml",
+					new Date(0), new Date(0), "text/xml", 3L, false, null),
+		});
+		final Sequence collections = mockery.sequence("collections");
+		mockery.checking(new Expectations() {{
+			// existence of the target, then its listing as it already existed
+			exactly(2).of(sardine).getResources("http://my.server/seed/"); will(returnValue(seed));
+			oneOf(sardine).createDirectory("http://my.server/seed/a/"); inSequence(collections);
+			oneOf(sardine).createDirectory("http://my.server/seed/a/b/"); inSequence(collections);
+			oneOf(sardine).put(with(equal("http://my.server/seed/a/x.jar")), with(any(InputStream.class)));
+			oneOf(sardine).put(with(equal("http://my.server/seed/a/b/y.jar")), with(any(InputStream.class)));
+		}});
+		try {
+			TransferStats stats = davRepository.uploadTree(tree, "/seed", false, 1);
+			assertEquals("files uploaded", 2, stats.getFiles());
+			assertEquals("existing file skipped", 1, stats.getSkipped());
+			assertEquals("bytes uploaded", 6, stats.getBytes());
+		} finally {
+			new File(tree, "a/b/y.jar").delete();
+			new File(tree, "a/b").delete();
+			new File(tree, "a/x.jar").delete();
+			new File(tree, "a").delete();
+			new File(tree, "z.xml").delete();
+			tree.delete();
+		}
+	}
+
+	@Test
+	public void testUploadTreeResendsPartialFilesAndSkipsLinkLoops() throws IOException {
+		File tree = File.createTempFile("ivydav", "tree");
+		tree.delete();
+		new File(tree, "a").mkdirs();
+		writeFile(new File(tree, "z.xml"));
+		File loop = new File(tree, "a/loop");
+		Files.createSymbolicLink(loop.toPath(), tree.toPath());
+
+		final List<com.googlecode.sardine.DavResource> seed = Arrays.asList(new com.googlecode.sardine.DavResource[] {
+			new com.googlecode.sardine.DavResource("http://my.server/seed/", "seed",
+					new Date(0), new Date(0), DavRepository.DIRECTORY_CONTENT_TYPE, 0L, true, null),
+			// cut short by an interrupted upload
+			new com.googlecode.sardine.DavResource("http://my.server/seed/", "z.xml",
+					new Date(0), new Date(0), "text/xml", 1L, false, null),
+		});
+		mockery.checking(new Expectations() {{
+			exactly(2).of(sardine).getResources("http://my.server/seed/"); will(returnValue(seed));
+			oneOf(sardine).createDirectory("http://my.server/seed/a/");
+			oneOf(sardine).put(with(equal("http://my.server/seed/z.xml")), with(any(InputStream.class)));
+		}});
+		try {
+			TransferStats stats = davRepository.uploadTree(tree, "/seed", false, 1);
+			assertEquals("partial file uploaded again", 1, stats.getFiles());
+			assertEquals("nothing skipped", 0, stats.getSkipped());
+		} finally {
+			loop.delete();
+			new File(tree, "a").delete();
+			new File(tree, "z.xml").delete();
+			tree.delete();
+		}
+	}
+
+	private static void writeFile(File f) throws IOException {
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(new byte[] { 1, 2, 3 });
+		fos.close();
+	}
+
+	@Test
+	public void testCopyCollection() throws IOException {
+		mockery.checking(new Expectations() {{
+			// parent of the destination:
+			oneOf(sardine).getResources("http://my.server/release/mod/"); will(returnValue(emptyDirectory("release/mod/")));
+			oneOf(sardine).copy("http://my.server/staging/mod/1.0/", "http://my.server/release/mod/1.0/");
+		}});
+		davRepository.copy("/staging/mod/1.0/", "/release/mod/1.0/", true);
+	}
+
+	@Test
+	public void testMoveWithoutOverwriteRefusesExistingDestination() throws IOException {
+		mockery.checking(new Expectations() {{
+			oneOf(sardine).getResources("http://my.server/release/"); will(returnValue(emptyDirectory("release/")));
+			oneOf(sardine).getResources("http://my.server/release/mod.jar"); will(returnValue(emptyDirectory("release/mod.jar")));
+			never(sardine).move(with(any(String.class)), with(any(String.class)));
+		}});
+		try {
+			davRepository.move("/staging/mod.jar", "/release/mod.jar", false);
+			fail("existing destination should not be overwritten");
+		}
+		catch (DavException ex) {
+			assertEquals("precondition failed", 412, ex.getStatusCode());
+		}
+	}
+
 	@Test
 	public void testGetResourceStream() throws IOException {
 		String uri = "/hello/world";
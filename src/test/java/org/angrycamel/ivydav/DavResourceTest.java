@@ -20,14 +20,19 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
 import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
 
 import org.angrycamel.ivydav.DavRepository.WebserverData;
 import org.apache.ivy.plugins.repository.Resource;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
 import org.jmock.integration.junit4.JMock;
 import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.junit.Before;
 import org.junit.Test;
@@ -134,6 +139,81 @@ public class DavResourceTest {
 		assertEquals("should be -1", -1, len);
 	}
 
+	@Test
+	public void testMetadataFetchedOnceForAllAccessors() throws IOException {
+		davResource.setURI("/hello/world");
+		mockery.checking(new Expectations() {{
+			oneOf(davRepo).getResourceMetadata("/hello/world"); will(returnValue(content));
+		}});
+		assertTrue("exists", davResource.exists());
+		assertEquals("length", STREAMLEN, davResource.getContentLength());
+		assertEquals("last modified", content.getModifiedAt(), davResource.getLastModified());
+		assertFalse("not a directory", davResource.isDirectory());
+	}
+
+	@Test
+	public void testWaiterPastItsDeadlineLeavesFetchToOthers() throws Exception {
+		davResource.setURI("/hello/world");
+		final CountDownLatch asked = new CountDownLatch(1);
+		final CountDownLatch answer = new CountDownLatch(1);
+		mockery.checking(new Expectations() {{
+			oneOf(davRepo).getResourceMetadata("/hello/world"); will(new CustomAction("slow answer") {
+				public Object invoke(Invocation invocation) throws Throwable {
+					asked.countDown();
+					answer.await();
+					return content;
+				}
+			});
+		}});
+		FutureTask<Boolean> patient = new FutureTask<Boolean>(() -> davResource.exists());
+		new Thread(patient).start();
+		asked.await();
+
+		Deadline.enter(new Deadline(50));
+		try {
+			assertEquals("gave up", -1, davResource.getContentLength());
+		} finally {
+			Deadline.exit(null);
+		}
+		answer.countDown();
+		assertTrue("fetch answered", patient.get());
+		assertEquals("answer kept for others", STREAMLEN, davResource.getContentLength());
+	}
+
+	@Test
+	public void testFetchFailingAtOneResolvesDeadlineIsRetriedByAnother() throws Exception {
+		davResource.setURI("/hello/world");
+		final CountDownLatch asked = new CountDownLatch(1);
+		final CountDownLatch fail = new CountDownLatch(1);
+		mockery.checking(new Expectations() {{
+			exactly(2).of(davRepo).getResourceMetadata("/hello/world"); will(onConsecutiveCalls(
+					new CustomAction("deadline passed") {
+						public Object invoke(Invocation invocation) throws Throwable {
+							asked.countDown();
+							fail.await();
+							throw new SocketTimeoutException("Resolve deadline exceeded");
+						}
+					},
+					returnValue(content)));
+		}});
+		// the resolve with the deadline makes the fetch
+		FutureTask<Boolean> hurried = new FutureTask<Boolean>(() -> davResource.exists());
+		new Thread(hurried).start();
+		asked.await();
+
+		// while another, without one, waits on it
+		FutureTask<Boolean> patient = new FutureTask<Boolean>(() -> davResource.exists());
+		Thread waiter = new Thread(patient);
+		waiter.start();
+		while (waiter.getState() != Thread.State.WAITING && waiter.getState() != Thread.State.TERMINATED) {
+			Thread.sleep(5);
+		}
+		fail.countDown();
+
+		assertFalse("deadline failed its own resolve", hurried.get());
+		assertTrue("other resolve asked again", patient.get());
+	}
+
 	@Test
 	public void testGetLastModifiedForAbsentResource() throws IOException {
 		davResource.setURI("/hello/world");
@@ -0,0 +1,231 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.FileUtil;
+
+/**
+ * Stand-in for a DAV server serving a local directory, for load tests. Like
+ * SardineTransport, requests block one of a fixed pool of threads, each for
+ * a simulated network latency on top of the file system work; requests are
+ * counted per method.
+ */
+class FileTransport implements DavTransport {
+
+	private final String rootUrl;
+	private final File root;
+	private final long latencyMillis;
+	private final ExecutorService executor;
+	private final Map<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+
+	interface FileCall<T> {
+		T call() throws IOException;
+	}
+
+	FileTransport(String rootUrl, File root, long latencyMillis, int threads) {
+		this.rootUrl = rootUrl.endsWith("/") ? rootUrl : rootUrl + "/";
+		this.root = root;
+		this.latencyMillis = latencyMillis;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ivydav-fake-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Requests made so far, by method, in method order.
+	 */
+	Map<String, Long> getRequestCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : requests.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	private <T> CompletableFuture<T> submit(String method, final String url, final FileCall<T> work) {
+		requests.computeIfAbsent(method, m -> new LongAdder()).increment();
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		executor.execute(() -> {
+			try {
+				if (latencyMillis > 0) {
+					Thread.sleep(latencyMillis);
+				}
+				future.complete(work.call());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		});
+		return future;
+	}
+
+	private File file(String url) throws IOException {
+		if (!url.startsWith(rootUrl)) {
+			throw new DavException(url, 502, "Not under " + rootUrl);
+		}
+		return new File(root, url.substring(rootUrl.length()));
+	}
+
+	private static DavException notFound(String url) {
+		return new DavException(url, 404, "Not Found");
+	}
+
+	private static Entry describe(String url, File file, boolean current) {
+		WebserverData data = new WebserverData();
+		data.modifiedAt = file.lastModified();
+		data.createdAt = file.lastModified();
+		if (file.isDirectory()) {
+			data.contentType = DavRepository.DIRECTORY_CONTENT_TYPE;
+		} else {
+			data.contentType = "application/octet-stream";
+			data.contentLength = file.length();
+		}
+		data.etag = "\"" + Long.toHexString(data.modifiedAt) + "-" + Long.toHexString(data.contentLength) + "\"";
+		return new Entry(url, current, data);
+	}
+
+	public CompletableFuture<List<Entry>> propfind(final String url, final int depth) {
+		return submit("PROPFIND", url, () -> {
+			File file = file(url);
+			if (!file.exists()) {
+				throw notFound(url);
+			}
+			List<Entry> entries = new ArrayList<Entry>();
+			entries.add(describe(url, file, true));
+			File[] children = depth > 0 ? file.listFiles() : null;
+			if (children != null) {
+				String base = url.endsWith("/") ? url : url + "/";
+				Arrays.sort(children);
+				for (File child : children) {
+					entries.add(describe(base + child.getName() + (child.isDirectory() ? "/" : ""), child, false));
+				}
+			}
+			return entries;
+		});
+	}
+
+	public CompletableFuture<InputStream> get(final String url) {
+		return submit("GET", url, () -> {
+			File file = file(url);
+			if (!file.isFile()) {
+				throw notFound(url);
+			}
+			return (InputStream) new FileInputStream(file);
+		});
+	}
+
+	public CompletableFuture<Void> put(final String url, final InputStream content) {
+		return submit("PUT", url, () -> {
+			File file = file(url);
+			if (!file.getParentFile().isDirectory()) {
+				throw new DavException(url, 409, "Conflict");
+			}
+			// readers never see a partial file
+			File tmp = File.createTempFile(file.getName(), ".part", file.getParentFile());
+			FileUtil.copy(content, tmp, null);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> put(String url, File content) {
+		try {
+			return put(url, new FileInputStream(content));
+		} catch (IOException ex) {
+			return DavRepository.failed(ex);
+		}
+	}
+
+	public CompletableFuture<Void> mkcol(final String url) {
+		return submit("MKCOL", url, () -> {
+			File file = file(url);
+			if (file.exists()) {
+				throw new DavException(url, 405, "Method Not Allowed");
+			}
+			if (!file.mkdir()) {
+				throw new DavException(url, 409, "Conflict");
+			}
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> delete(final String url) {
+		return submit("DELETE", url, () -> {
+			File file = file(url);
+			if (!file.exists()) {
+				throw notFound(url);
+			}
+			FileUtil.forceDelete(file);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> copy(final String url, final String destination, final boolean overwrite) {
+		return submit("COPY", url, () -> {
+			File from = file(url);
+			File to = file(destination);
+			if (!from.exists()) {
+				throw notFound(url);
+			}
+			if (to.exists() && !overwrite) {
+				throw new DavException(destination, 412, "Precondition Failed");
+			}
+			FileUtil.copy(from, to, null, true);
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> move(final String url, final String destination, final boolean overwrite) {
+		return submit("MOVE", url, () -> {
+			File from = file(url);
+			File to = file(destination);
+			if (!from.exists()) {
+				throw notFound(url);
+			}
+			if (to.exists() && !overwrite) {
+				throw new DavException(destination, 412, "Precondition Failed");
+			}
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return null;
+		});
+	}
+
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,264 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.hamcrest.text.StringStartsWith.startsWith;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.plugins.repository.Resource;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class IvyRepositoryTest {
+
+	private Mockery mockery = new JUnit4Mockery() {{
+		setImposteriser(ClassImposteriser.INSTANCE);
+	}};
+
+	private final DavRepository davRepo = mockery.mock(DavRepository.class);
+	private final IvyRepository repository = new IvyRepository(davRepo);
+
+	private File source;
+
+	@Before
+	public void setUp() throws IOException {
+		source = File.createTempFile("ivydav", ".jar");
+		FileOutputStream fos = new FileOutputStream(source);
+		fos.write(new byte[] { 1, 2, 3 });
+		fos.close();
+		mockery.checking(new Expectations() {{
+			allowing(davRepo).getResource(with(any(String.class))); will(new CustomAction("a resource") {
+				public Object invoke(Invocation invocation) {
+					DavResource resource = new DavResource();
+					resource.setRepository(davRepo);
+					resource.setURI((String) invocation.getParameter(0));
+					return resource;
+				}
+			});
+		}});
+	}
+
+	@After
+	public void tearDown() {
+		source.delete();
+	}
+
+	@Test
+	public void testCommonDirectory() {
+		assertEquals("revision directory", "org/mod/1.0/",
+				IvyRepository.commonDirectory(Arrays.asList("org/mod/1.0/a.jar", "org/mod/1.0/ivy.xml")));
+		assertEquals("module directory", "org/mod/",
+				IvyRepository.commonDirectory(Arrays.asList("org/mod/1.0/a.jar", "org/mod/ivy-1.0.xml")));
+		assertEquals("root", "",
+				IvyRepository.commonDirectory(Arrays.asList("org/a.jar", "com/b.jar")));
+	}
+
+	@Test
+	public void testSelectRevisionsToPurge() {
+		Map<String, WebserverData> entries = new LinkedHashMap<String, WebserverData>();
+		entries.put("org/mod/1.0/", revision(1000));
+		entries.put("org/mod/1.1/", revision(3000));
+		entries.put("org/mod/1.2/", revision(2000));
+		entries.put("org/mod/1.3/", revision(4000));
+		entries.put("org/mod/.ivydav-staging/", revision(0));
+		entries.put("org/mod/ivy-1.0.xml", new WebserverData());
+
+		assertEquals("all but the newest two", Arrays.asList("org/mod/1.2/", "org/mod/1.0/"),
+				IvyRepository.selectRevisionsToPurge(entries, 2, Long.MAX_VALUE));
+		assertEquals("only those older than the cutoff", Arrays.asList("org/mod/1.0/"),
+				IvyRepository.selectRevisionsToPurge(entries, 1, 1500));
+	}
+
+	@Test
+	public void testListingOfUnchangedModuleIsReused() throws IOException {
+		mockery.checking(new Expectations() {{
+			exactly(4).of(davRepo).getResourceMetadata("org/mod/");
+				will(onConsecutiveCalls(returnValue(module("\"1\"")), returnValue(module("\"1\"")),
+						returnValue(module("\"2\"")), returnValue(module("\"3\""))));
+			exactly(2).of(davRepo).getDirectoryResources("org/mod/");
+				will(onConsecutiveCalls(returnValue(Arrays.asList("org/mod/1.0/", "org/mod/ivy-1.0.xml")),
+						returnValue(Arrays.asList("org/mod/1.0/", "org/mod/1.1/", "org/mod/2.0/", "org/mod/ivy-1.0.xml"))));
+			oneOf(davRepo).getResourceMetadata("org/mod/2.0/mod.jar"); will(returnValue(null));
+			oneOf(davRepo).putResource(with(equal("org/mod/2.0/mod.jar")), with(any(InputStream.class)));
+		}});
+		List<String> first = repository.list("org/mod");
+		assertEquals("listed", Arrays.asList("org/mod/1.0/", "org/mod/ivy-1.0.xml"), first);
+		assertEquals("unchanged, so not listed again", first, repository.list("org/mod/"));
+
+		// our own publish is applied without a listing
+		repository.put(source, "org/mod/2.0/mod.jar", false);
+		assertEquals("published revision included", Arrays.asList("org/mod/1.0/", "org/mod/2.0/", "org/mod/ivy-1.0.xml"),
+				repository.list("org/mod"));
+
+		// while someone else's is found by listing again
+		assertEquals("other revision found", 4, repository.list("org/mod").size());
+	}
+
+	@Test
+	public void testPublishOfKnownContentIsCopied() throws IOException {
+		final WebserverData jar = new WebserverData();
+		jar.contentType = "application/java-archive";
+		jar.contentLength = 3;
+		jar.etag = "\"a\"";
+		final String entry = ContentIndex.entryPath(ContentIndex.digest(source));
+		mockery.checking(new Expectations() {{
+			exactly(3).of(davRepo).getResourceMetadata("org/a/1.0/a.jar");
+				will(onConsecutiveCalls(returnValue(null), returnValue(jar), returnValue(jar)));
+			oneOf(davRepo).getResourceStream(entry); will(throwException(new DavException(entry, 404, "Not Found")));
+			oneOf(davRepo).putResource(with(equal("org/a/1.0/a.jar")), with(any(InputStream.class)));
+			exactly(2).of(davRepo).putResource(with(equal(entry)), with(any(InputStream.class)));
+
+			exactly(2).of(davRepo).getResourceMetadata("org/b/1.0/b.jar");
+				will(onConsecutiveCalls(returnValue(null), returnValue(jar)));
+			oneOf(davRepo).copy("org/a/1.0/a.jar", "org/b/1.0/b.jar", true);
+		}});
+		repository.setDeduplication(1);
+		repository.put(source, "org/a/1.0/a.jar", false);
+		// the same bytes again are copied, not uploaded
+		repository.put(source, "org/b/1.0/b.jar", false);
+	}
+
+	private static WebserverData module(String etag) {
+		WebserverData data = revision(1000);
+		data.etag = etag;
+		return data;
+	}
+
+	private static WebserverData revision(long modifiedAt) {
+		WebserverData data = new WebserverData();
+		data.contentType = DavRepository.DIRECTORY_CONTENT_TYPE;
+		data.modifiedAt = modifiedAt;
+		return data;
+	}
+
+	@Test
+	public void testStagedPublishMovesNewRevisionInOneOperation() throws IOException {
+		final Sequence commit = mockery.sequence("commit");
+		mockery.checking(new Expectations() {{
+			allowing(davRepo).getResourceMetadata(with(any(String.class))); will(returnValue(null));
+			oneOf(davRepo).putResource(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(any(InputStream.class)));
+			oneOf(davRepo).putResource(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(any(InputStream.class)));
+
+			oneOf(davRepo).existsPath("org/mod/1.0/"); will(returnValue(false)); inSequence(commit);
+			oneOf(davRepo).move(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(equal("org/mod/1.0/")), with(equal(false))); inSequence(commit);
+			oneOf(davRepo).deleteDirectory(with(startsWith(IvyRepository.STAGING_ROOT + "/"))); inSequence(commit);
+		}});
+		repository.beginStaging(false);
+		repository.put(source, "org/mod/1.0/mod.jar", false);
+		repository.put(source, "/org/mod/1.0/ivy.xml", false);
+		repository.commitStaging();
+	}
+
+	@Test
+	public void testStagedPublishIntoExistingModuleMovesArtifactsBeforeDescriptor() throws IOException {
+		final Sequence commit = mockery.sequence("commit");
+		mockery.checking(new Expectations() {{
+			allowing(davRepo).getResourceMetadata(with(startsWith("org/mod/"))); will(returnValue(null));
+			exactly(2).of(davRepo).putResource(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(any(InputStream.class)));
+
+			oneOf(davRepo).existsPath("org/mod/"); will(returnValue(true)); inSequence(commit);
+			oneOf(davRepo).existsPath("org/mod/1.0/"); will(returnValue(false)); inSequence(commit);
+			oneOf(davRepo).move(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(equal("org/mod/1.0/")), with(equal(true))); inSequence(commit);
+			oneOf(davRepo).move(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(equal("org/mod/ivy-1.0.xml")), with(equal(true))); inSequence(commit);
+			oneOf(davRepo).deleteDirectory(with(startsWith(IvyRepository.STAGING_ROOT + "/"))); inSequence(commit);
+		}});
+		repository.beginStaging(true);
+		repository.put(source, "org/mod/ivy-1.0.xml", true);
+		repository.put(source, "org/mod/1.0/mod.jar", true);
+		repository.commitStaging();
+	}
+
+	@Test
+	public void testAbortDiscardsStagedResources() throws IOException {
+		mockery.checking(new Expectations() {{
+			allowing(davRepo).getResourceMetadata("org/mod/1.0/mod.jar"); will(returnValue(null));
+			oneOf(davRepo).putResource(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(any(InputStream.class)));
+			oneOf(davRepo).deleteDirectory(with(startsWith(IvyRepository.STAGING_ROOT + "/")));
+			never(davRepo).move(with(any(String.class)), with(any(String.class)), with(any(Boolean.class)));
+		}});
+		repository.beginStaging(false);
+		repository.put(source, "org/mod/1.0/mod.jar", false);
+		repository.abortStaging();
+	}
+
+	@Test
+	public void testFailedStagedUploadIsNotCommitted() throws IOException {
+		mockery.checking(new Expectations() {{
+			allowing(davRepo).getResourceMetadata("org/mod/1.0/mod.jar"); will(returnValue(null));
+			oneOf(davRepo).putResource(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(any(InputStream.class)));
+				will(throwException(new IOException("refused")));
+			never(davRepo).move(with(any(String.class)), with(any(String.class)), with(any(Boolean.class)));
+			oneOf(davRepo).deleteDirectory(with(startsWith(IvyRepository.STAGING_ROOT + "/")));
+		}});
+		repository.beginStaging(false);
+		try {
+			repository.put(source, "org/mod/1.0/mod.jar", false);
+			fail("upload failure should be reported");
+		} catch (IOException ex) {
+			assertEquals("refused", ex.getMessage());
+		}
+		repository.commitStaging();
+	}
+
+	@Test
+	public void testConcurrentStagedPublishesAreKeptApart() throws Exception {
+		mockery.checking(new Expectations() {{
+			allowing(davRepo).getResourceMetadata(with(any(String.class))); will(returnValue(null));
+			exactly(2).of(davRepo).putResource(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(any(InputStream.class)));
+			allowing(davRepo).existsPath(with(any(String.class))); will(returnValue(false));
+			oneOf(davRepo).move(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(equal("org/a/1.0/")), with(equal(false)));
+			oneOf(davRepo).move(with(startsWith(IvyRepository.STAGING_ROOT + "/")), with(equal("org/b/1.0/")), with(equal(false)));
+			exactly(2).of(davRepo).deleteDirectory(with(startsWith(IvyRepository.STAGING_ROOT + "/")));
+		}});
+		repository.beginStaging(false);
+		repository.put(source, "org/a/1.0/a.jar", false);
+		final IOException[] failure = new IOException[1];
+		Thread other = new Thread(() -> {
+			try {
+				repository.beginStaging(false);
+				repository.put(source, "org/b/1.0/b.jar", false);
+				repository.commitStaging();
+			} catch (IOException ex) {
+				failure[0] = ex;
+			}
+		});
+		other.start();
+		other.join();
+		assertNull("second publish staged alongside the first", failure[0]);
+		repository.commitStaging();
+	}
+}
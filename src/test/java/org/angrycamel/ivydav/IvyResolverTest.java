@@ -0,0 +1,121 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.junit.After;
+import org.junit.Test;
+
+public class IvyResolverTest {
+
+	private static final List<String> IVY_PATTERNS = Collections.singletonList(
+			"[organisation]/[module]/ivy-[revision].xml");
+	private static final List<String> ARTIFACT_PATTERNS = Collections.singletonList(
+			"[organisation]/[module]/[revision]/[artifact].[ext]");
+
+	private File file;
+
+	@After
+	public void tearDown() {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	private File write(String suffix, String content) throws IOException {
+		file = File.createTempFile("ivydav", suffix);
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(content.getBytes(StandardCharsets.UTF_8));
+		fos.close();
+		return file;
+	}
+
+	@Test
+	public void testParseCoordinates() throws IOException {
+		assertEquals("ivy notation", ModuleRevisionId.newInstance("org", "mod", "1.0"),
+				IvyResolver.parseCoordinates("org#mod;1.0"));
+		assertEquals("maven notation", ModuleRevisionId.newInstance("org", "mod", "1.0"),
+				IvyResolver.parseCoordinates("org:mod:1.0"));
+	}
+
+	@Test
+	public void testMalformedCoordinatesAreRejected() {
+		for (String line : Arrays.asList("org:mod", "org:mod:1.0:jar", "org#mod", "just-a-name")) {
+			try {
+				IvyResolver.parseCoordinates(line);
+				fail("accepted " + line);
+			} catch (IOException ex) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testCoordinatesFileYieldsDescriptors() throws IOException {
+		write(".txt", "# locked dependencies\n"
+				+ "org#mod;1.0\n"
+				+ "\n"
+				+ "  com.example:lib:2.1  \n");
+		assertEquals("descriptors only, in order",
+				Arrays.asList("org/mod/ivy-1.0.xml", "com.example/lib/ivy-2.1.xml"),
+				new ArrayList<String>(IvyResolver.prefetchURIs(file, IVY_PATTERNS, ARTIFACT_PATTERNS)));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedLineFailsCoordinatesFile() throws IOException {
+		write(".txt", "org#mod;1.0\norg:mod\n");
+		IvyResolver.prefetchURIs(file, IVY_PATTERNS, ARTIFACT_PATTERNS);
+	}
+
+	@Test
+	public void testReportYieldsDescriptorsAndArtifacts() throws IOException {
+		write(".xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<ivy-report version=\"1.0\">\n"
+				+ "  <info organisation=\"com.example\" module=\"app\" revision=\"working\" conf=\"default\""
+				+ " confs=\"default\" date=\"20110101120000\"/>\n"
+				+ "  <dependencies>\n"
+				+ "    <module organisation=\"org\" name=\"mod\">\n"
+				+ "      <revision name=\"1.0\" status=\"release\" pubdate=\"20110101120000\" resolver=\"dav\""
+				+ " artresolver=\"dav\" downloaded=\"false\" searched=\"false\" default=\"false\" conf=\"default\""
+				+ " position=\"0\">\n"
+				+ "        <artifacts>\n"
+				+ "          <artifact name=\"mod\" type=\"jar\" ext=\"jar\" status=\"no\" details=\"\" size=\"10\""
+				+ " time=\"0\"/>\n"
+				+ "          <artifact name=\"mod-sources\" type=\"source\" ext=\"jar\" status=\"no\" details=\"\""
+				+ " size=\"10\" time=\"0\"/>\n"
+				+ "        </artifacts>\n"
+				+ "      </revision>\n"
+				+ "    </module>\n"
+				+ "  </dependencies>\n"
+				+ "</ivy-report>\n");
+		List<String> uris = new ArrayList<String>(IvyResolver.prefetchURIs(file, IVY_PATTERNS, ARTIFACT_PATTERNS));
+		assertTrue("descriptor", uris.contains("org/mod/ivy-1.0.xml"));
+		assertTrue("artifact", uris.contains("org/mod/1.0/mod.jar"));
+		assertTrue("second artifact", uris.contains("org/mod/1.0/mod-sources.jar"));
+		assertEquals("nothing else", 3, uris.size());
+	}
+}
@@ -0,0 +1,229 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+public class JdkHttpTransportTest {
+
+	private static final String MULTISTATUS = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+			+ "<D:multistatus xmlns:D=\"DAV:\">"
+			+ "<D:response><D:href>/ivy/org/</D:href><D:propstat><D:prop>"
+			+ "<D:resourcetype><D:collection/></D:resourcetype>"
+			+ "<D:getlastmodified>Tue, 15 Nov 1994 12:45:26 GMT</D:getlastmodified>"
+			+ "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>"
+			+ "<D:response><D:href>/ivy/org/ivy-1.0.xml</D:href><D:propstat><D:prop>"
+			+ "<D:resourcetype/><D:getcontenttype>text/xml</D:getcontenttype>"
+			+ "<D:getcontentlength>1024</D:getcontentlength><D:getetag>\"abc\"</D:getetag>"
+			+ "</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat>"
+			+ "<D:propstat><D:prop><D:creationdate/></D:prop>"
+			+ "<D:status>HTTP/1.1 404 Not Found</D:status></D:propstat></D:response>"
+			+ "</D:multistatus>";
+
+	private HttpServer server;
+	private String root;
+	private final Map<String, byte[]> files = new ConcurrentHashMap<String, byte[]>();
+	private JdkHttpTransport transport = new JdkHttpTransport(null, null, null);
+	private volatile String lastTransfer;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> handle(exchange));
+		server.start();
+		root = "http://127.0.0.1:" + server.getAddress().getPort() + "/ivy/";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String method = exchange.getRequestMethod();
+		byte[] response = new byte[0];
+		int status;
+		if ("PUT".equals(method)) {
+			files.put(path, readAll(exchange.getRequestBody()));
+			status = 201;
+		} else if ("MKCOL".equals(method)) {
+			status = 201;
+		} else if ("COPY".equals(method) || "MOVE".equals(method)) {
+			lastTransfer = method + " " + path + " -> " + exchange.getRequestHeaders().getFirst("Destination")
+					+ " Overwrite: " + exchange.getRequestHeaders().getFirst("Overwrite")
+					+ " Depth: " + exchange.getRequestHeaders().getFirst("Depth");
+			status = 201;
+		} else if ("PROPFIND".equals(method) && path.equals("/ivy/org/")) {
+			response = MULTISTATUS.getBytes(StandardCharsets.UTF_8);
+			status = 207;
+		} else if ("GET".equals(method) && files.containsKey(path)) {
+			response = files.get(path);
+			status = 200;
+		} else {
+			status = 404;
+		}
+		exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+		if (response.length > 0) {
+			OutputStream os = exchange.getResponseBody();
+			os.write(response);
+		}
+		exchange.close();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = is.read(buf)) > 0) {
+			bos.write(buf, 0, n);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testCancelledRequestIsAborted() throws Exception {
+		ServerSocket stalling = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			CompletableFuture<Boolean> dropped = SardineTransportTest.stall(stalling);
+			CompletableFuture<?> request = transport.get("http://127.0.0.1:" + stalling.getLocalPort() + "/ivy/a.jar");
+			Thread.sleep(200);
+			request.cancel(true);
+			assertTrue("connection dropped", dropped.get(20, TimeUnit.SECONDS));
+		} finally {
+			stalling.close();
+		}
+	}
+
+	@Test
+	public void testParseMultistatus() throws IOException {
+		List<DavTransport.Entry> entries = JdkHttpTransport.parseMultistatus(
+				URI.create("http://my.server/ivy/org/"), MULTISTATUS.getBytes(StandardCharsets.UTF_8));
+		assertEquals("two entries", 2, entries.size());
+		assertTrue("collection first", entries.get(0).currentDirectory);
+		assertEquals("collection type", DavRepository.DIRECTORY_CONTENT_TYPE, entries.get(0).data.getContentType());
+		assertEquals("modified", 784903526000L, entries.get(0).data.getModifiedAt());
+
+		WebserverData file = entries.get(1).data;
+		assertEquals("absolute url", "http://my.server/ivy/org/ivy-1.0.xml", entries.get(1).url);
+		assertEquals("content type", "text/xml", file.getContentType());
+		assertEquals("length", 1024L, file.getContentLength());
+		assertEquals("etag", "\"abc\"", file.getEtag());
+		assertEquals("missing property ignored", 0L, file.getCreatedAt());
+	}
+
+	@Test
+	public void testListingThroughRepository() throws IOException {
+		DavRepository repo = new DavRepository(DavRepository.unhttpize(root), transport);
+		List<String> children = repo.getDirectoryResources("org");
+		assertEquals("one child", 1, children.size());
+		assertEquals("child uri", "org/ivy-1.0.xml", children.get(0));
+	}
+
+	@Test
+	public void testPutThenGet() throws IOException {
+		DavRepository repo = new DavRepository(DavRepository.unhttpize(root), transport);
+		// the parent listing of "org" succeeds, so no MKCOL is needed
+		repo.putResource("org/module.jar", new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		InputStream is = repo.getResourceStream("org/module.jar");
+		assertArrayEquals("round trip", new byte[] { 1, 2, 3 }, readAll(is));
+	}
+
+	@Test
+	public void testMissingResource() throws IOException {
+		DavRepository repo = new DavRepository(DavRepository.unhttpize(root), transport);
+		assertNull("no metadata for absent resource", repo.getResourceMetadata("org/absent.jar"));
+		try {
+			repo.getResourceStream("org/absent.jar");
+			fail("GET of absent resource should fail");
+		} catch (DavException ex) {
+			assertEquals("status", 404, ex.getStatusCode());
+		}
+	}
+
+	@Test
+	public void testCopyCollectionHeaders() throws IOException {
+		DavRepository repo = new DavRepository(DavRepository.unhttpize(root), transport);
+		repo.copy("org/mod/1.0/", "org/mod/1.0-final/", false);
+		assertEquals("COPY request", "COPY /ivy/org/mod/1.0/ -> " + root + "org/mod/1.0-final/"
+				+ " Overwrite: F Depth: infinity", lastTransfer);
+	}
+
+	private static String resourcePath(String name) throws URISyntaxException {
+		return new File(JdkHttpTransportTest.class.getResource("/" + name).toURI()).getPath();
+	}
+
+	@Test
+	public void testHttpsWithSelfSignedCertificate() throws Exception {
+		KeyStore serverKeys = KeyStore.getInstance("PKCS12");
+		InputStream ks = JdkHttpTransportTest.class.getResourceAsStream("/test-server.p12");
+		serverKeys.load(ks, "changeit".toCharArray());
+		ks.close();
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(serverKeys, "changeit".toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+
+		HttpsServer https = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		https.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+		https.createContext("/", exchange -> handle(exchange));
+		https.start();
+		try {
+			SSLContext clientContext = TlsSupport.createSSLContext(
+					resourcePath("test-truststore.p12"), "changeit", "PKCS12");
+			DavRepository repo = new DavRepository(
+					"webdavs://localhost:" + https.getAddress().getPort() + "/ivy/",
+					new JdkHttpTransport(null, null, clientContext));
+			List<String> children = repo.getDirectoryResources("org");
+			assertEquals("child uri over https", "org/ivy-1.0.xml", children.get(0));
+		} finally {
+			https.stop(0);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ivy.plugins.repository.Resource;
+import org.apache.ivy.util.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Concurrent resolves and publishes through IvyRepository, as a build daemon
+ * makes them, reporting throughput, latency percentiles, requests per method
+ * and heap allocation, and failing if they regress past the thresholds.
+ *
+ * Not part of the normal build; run with <code>mvn -Ploadtest test</code>.
+ * Every setting is a system property (see the constants below), e.g.
+ * <code>-Divydav.loadtest.threads=64</code>. By default the repository is
+ * a local directory behind a fake transport adding a fixed latency per
+ * request; set <code>ivydav.loadtest.root</code> to a webdav:// URL (and
+ * optionally <code>.transport</code>, <code>.user</code> and
+ * <code>.password</code>) to load a real server instead, seeding it first.
+ *
+ * A resolve picks the latest revision of a random module by listing it, as
+ * for latest.integration, then checks and downloads its descriptor and
+ * artifact. A publish uploads a new revision of a random module.
+ */
+public class LoadTest {
+
+	private static final String PREFIX = "ivydav.loadtest.";
+
+	private final int threads = Integer.getInteger(PREFIX + "threads", 32);
+	private final int seconds = Integer.getInteger(PREFIX + "seconds", 10);
+	private final int warmupSeconds = Integer.getInteger(PREFIX + "warmupSeconds", 2);
+	private final int modules = Integer.getInteger(PREFIX + "modules", 300);
+	private final int revisions = Integer.getInteger(PREFIX + "revisions", 5);
+	private final int artifactBytes = Integer.getInteger(PREFIX + "artifactBytes", 64 * 1024);
+	private final int publishPercent = Integer.getInteger(PREFIX + "publishPercent", 5);
+	private final long latencyMillis = Long.getLong(PREFIX + "latencyMillis", 2);
+	private final String root = System.getProperty(PREFIX + "root");
+
+	// thresholds; zero or less to skip the check
+	private final long maxResolveP99Millis = Long.getLong(PREFIX + "maxResolveP99Millis", 1000);
+	private final long minResolvesPerSecond = Long.getLong(PREFIX + "minResolvesPerSecond", 100);
+	private final long maxBytesAllocatedPerOperation = Long.getLong(PREFIX + "maxBytesAllocatedPerOperation",
+			1024 * 1024);
+
+	private File work;
+	private FileTransport fake;
+	private DavRepository davRepo;
+	private IvyRepository repository;
+
+	private final AtomicInteger published = new AtomicInteger();
+	private final AtomicLong errors = new AtomicLong();
+
+	@Before
+	public void setUp() throws IOException {
+		work = File.createTempFile("ivydav", "loadtest");
+		work.delete();
+		File tree = new File(work, "tree");
+		for (int m = 0; m < modules; m++) {
+			for (int r = 0; r < revisions; r++) {
+				String revision = "1." + r;
+				write(new File(tree, module(m) + "ivy-" + revision + ".xml"), 2048);
+				write(new File(tree, module(m) + revision + "/" + artifact(m)), artifactBytes);
+			}
+		}
+		DavTransport transport;
+		String davRoot;
+		if (root == null) {
+			davRoot = "webdav://loadtest/";
+			fake = new FileTransport("http://loadtest/", tree, latencyMillis, SardineTransport.DEFAULT_THREADS);
+			transport = fake;
+		} else {
+			davRoot = root;
+			transport = DavRepository.createTransport(System.getProperty(PREFIX + "transport"),
+					System.getProperty(PREFIX + "user"), System.getProperty(PREFIX + "password"), null);
+		}
+		davRepo = new DavRepository(davRoot, transport);
+		// as IvyResolver sets it up
+		davRepo.setTransferScheduler(new TransferScheduler(TransferScheduler.DEFAULT_MAX_CONCURRENT,
+				TransferScheduler.DEFAULT_MAX_BULK, 0));
+		repository = new IvyRepository(davRepo);
+		if (root != null) {
+			repository.importTree(tree, "", false, 16);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		if (repository != null) {
+			repository.close();
+		}
+		FileUtil.forceDelete(work);
+	}
+
+	private static String module(int m) {
+		return "org" + (m % 10) + "/mod" + m + "/";
+	}
+
+	private static String artifact(int m) {
+		return "mod" + m + ".jar";
+	}
+
+	private static void write(File file, int length) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(new byte[length]);
+		} finally {
+			fos.close();
+		}
+	}
+
+	// latencies in nanoseconds, per operation
+	private static final class Latencies {
+		private long[] values = new long[1024];
+		private int size;
+
+		synchronized void add(long nanos) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = nanos;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long percentile(double p) {
+			if (size == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			return sorted[Math.min(size - 1, (int) Math.ceil(p / 100 * size) - 1)];
+		}
+	}
+
+	@Test
+	public void testResolveAndPublishMix() throws Exception {
+		final Latencies resolves = new Latencies();
+		final Latencies publishes = new Latencies();
+		final long start = System.nanoTime();
+		final long measureFrom = start + warmupSeconds * 1000000000L;
+		final long end = measureFrom + seconds * 1000000000L;
+		// workers stay alive until their allocation has been counted
+		final CountDownLatch finished = new CountDownLatch(threads);
+		final CountDownLatch measured = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final File scratch = new File(work, "worker-" + i);
+			scratch.mkdirs();
+			Thread worker = new Thread(() -> {
+				while (System.nanoTime() < end) {
+					int m = ThreadLocalRandom.current().nextInt(modules);
+					boolean publish = ThreadLocalRandom.current().nextInt(100) < publishPercent;
+					long t0 = System.nanoTime();
+					try {
+						if (publish) {
+							publish(m, scratch);
+						} else {
+							resolve(m, scratch);
+						}
+					} catch (Exception ex) {
+						if (errors.getAndIncrement() == 0) {
+							ex.printStackTrace();
+						}
+						continue;
+					}
+					if (t0 >= measureFrom) {
+						(publish ? publishes : resolves).add(System.nanoTime() - t0);
+					}
+				}
+				finished.countDown();
+				try {
+					measured.await();
+				} catch (InterruptedException ex) {
+				}
+			}, "loadtest-" + i);
+			workers.add(worker);
+		}
+		Map<String, Long> requestsAtStart = null;
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		Thread.sleep(Math.max(0, (measureFrom - System.nanoTime()) / 1000000));
+		long allocatedAtStart = allocatedBytes();
+		if (fake != null) {
+			requestsAtStart = fake.getRequestCounts();
+		}
+		finished.await();
+		long allocated = allocatedBytes() - allocatedAtStart;
+		measured.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		double elapsedSeconds = (System.nanoTime() - measureFrom) / 1e9;
+		int operations = resolves.size() + publishes.size();
+
+		System.out.println("ivydav load test: " + threads + " threads, " + modules + " modules, "
+				+ (root == null ? latencyMillis + "ms simulated latency" : root));
+		report("resolve", resolves, elapsedSeconds);
+		report("publish", publishes, elapsedSeconds);
+		if (fake != null) {
+			StringBuilder requests = new StringBuilder("  requests:");
+			for (Map.Entry<String, Long> entry : fake.getRequestCounts().entrySet()) {
+				Long before = requestsAtStart.get(entry.getKey());
+				long count = entry.getValue() - (before == null ? 0 : before);
+				requests.append(String.format(" %s %d (%.1f/op)", entry.getKey(), count,
+						operations == 0 ? 0.0 : (double) count / operations));
+			}
+			System.out.println(requests);
+		}
+		long allocatedPerOperation = operations == 0 ? 0 : allocated / operations;
+		System.out.println(String.format("  allocated: %d MB, %d KB/op", allocated / (1024 * 1024),
+				allocatedPerOperation / 1024));
+		System.out.println("  errors: " + errors.get());
+
+		List<String> regressions = new ArrayList<String>();
+		if (errors.get() > 0) {
+			regressions.add(errors.get() + " operations failed");
+		}
+		long p99 = resolves.percentile(99) / 1000000;
+		if (maxResolveP99Millis > 0 && p99 > maxResolveP99Millis) {
+			regressions.add("resolve p99 " + p99 + "ms > " + maxResolveP99Millis + "ms");
+		}
+		double throughput = resolves.size() / elapsedSeconds;
+		if (minResolvesPerSecond > 0 && throughput < minResolvesPerSecond) {
+			regressions.add(String.format("%.1f resolves/s < %d", throughput, minResolvesPerSecond));
+		}
+		if (maxBytesAllocatedPerOperation > 0 && allocatedPerOperation > maxBytesAllocatedPerOperation) {
+			regressions.add(allocatedPerOperation + " bytes allocated per operation > " + maxBytesAllocatedPerOperation);
+		}
+		assertTrue("regressed: " + regressions, regressions.isEmpty());
+	}
+
+	private void resolve(int m, File scratch) throws IOException {
+		String module = module(m);
+		String latest = null;
+		for (String child : repository.list(module)) {
+			String name = child.substring(child.lastIndexOf('/', child.length() - 2) + 1);
+			if (name.startsWith("ivy-") && name.endsWith(".xml")) {
+				String revision = name.substring("ivy-".length(), name.length() - ".xml".length());
+				if (latest == null || compareRevisions(revision, latest) > 0) {
+					latest = revision;
+				}
+			}
+		}
+		if (latest == null) {
+			throw new IOException("No revisions of " + module);
+		}
+		Resource descriptor = repository.getResource(module + "ivy-" + latest + ".xml");
+		if (!descriptor.exists() || descriptor.getLastModified() == 0) {
+			throw new IOException(descriptor.getName() + " missing");
+		}
+		repository.get(descriptor.getName(), new File(scratch, "ivy.xml"));
+		Resource jar = repository.getResource(module + latest + "/" + artifact(m));
+		if (!jar.exists()) {
+			throw new IOException(jar.getName() + " missing");
+		}
+		repository.get(jar.getName(), new File(scratch, "artifact.jar"));
+	}
+
+	private void publish(int m, File scratch) throws IOException {
+		String revision = "2." + published.incrementAndGet();
+		File jar = new File(scratch, "publish.jar");
+		File descriptor = new File(scratch, "publish.xml");
+		write(jar, artifactBytes);
+		write(descriptor, 2048);
+		// artifacts first, so resolves never find a descriptor without them
+		repository.put(jar, module(m) + revision + "/" + artifact(m), false);
+		repository.put(descriptor, module(m) + "ivy-" + revision + ".xml", false);
+	}
+
+	static int compareRevisions(String a, String b) {
+		String[] as = a.split("\\.");
+		String[] bs = b.split("\\.");
+		for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+			int c = Long.compare(Long.parseLong(as[i]), Long.parseLong(bs[i]));
+			if (c != 0) {
+				return c;
+			}
+		}
+		return as.length - bs.length;
+	}
+
+	// by all live threads, including the transport's and the repository's
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long allocated : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+			if (allocated > 0) {
+				total += allocated;
+			}
+		}
+		return total;
+	}
+
+	private static void report(String name, Latencies latencies, double elapsedSeconds) {
+		System.out.println(String.format("  %s: %d ops, %.1f/s, p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms",
+				name, latencies.size(), latencies.size() / elapsedSeconds, latencies.percentile(50) / 1e6,
+				latencies.percentile(90) / 1e6, latencies.percentile(99) / 1e6, latencies.percentile(100) / 1e6));
+	}
+}
@@ -0,0 +1,155 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+
+	private long now = 100000;
+	private final MetadataCache cache = new MetadataCache(() -> now);
+
+	// each fetch is left pending until the test completes it
+	private final List<CompletableFuture<WebserverData>> fetches = new ArrayList<CompletableFuture<WebserverData>>();
+	private final Function<String, CompletableFuture<WebserverData>> loader = uri -> {
+		CompletableFuture<WebserverData> f = new CompletableFuture<WebserverData>();
+		fetches.add(f);
+		return f;
+	};
+
+	private static WebserverData modifiedAt(long time) {
+		WebserverData data = new WebserverData();
+		data.contentType = "text/xml";
+		data.modifiedAt = time;
+		return data;
+	}
+
+	@Test
+	public void testStaleEntryServedWhileRevalidating() throws Exception {
+		cache.addRule("**/*-SNAPSHOT/**", 300000);
+		CompletableFuture<WebserverData> first = cache.get("/org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		fetches.get(0).complete(modifiedAt(1));
+		assertEquals("fetched", 1, first.get().getModifiedAt());
+
+		now += 60000;
+		CompletableFuture<WebserverData> second = cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		assertTrue("answered without waiting", second.isDone());
+		assertEquals("stale answer", 1, second.get().getModifiedAt());
+		assertEquals("revalidation started", 2, fetches.size());
+
+		cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		assertEquals("single revalidation in flight", 2, fetches.size());
+
+		fetches.get(1).complete(modifiedAt(2));
+		assertEquals("new publish picked up", 2, cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader).get().getModifiedAt());
+	}
+
+	@Test
+	public void testTooStaleEntryIsFetchedSynchronously() throws Exception {
+		cache.addRule("**/*-SNAPSHOT/**", 300000);
+		cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		fetches.get(0).complete(modifiedAt(1));
+
+		now += 400000;
+		CompletableFuture<WebserverData> late = cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		assertFalse("waits for the server", late.isDone());
+		fetches.get(1).complete(modifiedAt(2));
+		assertEquals("fresh answer", 2, late.get().getModifiedAt());
+	}
+
+	@Test
+	public void testUnmatchedResourcesAreNotCached() throws Exception {
+		cache.addRule("**/*-SNAPSHOT/**", 300000);
+		cache.get("org/mod/1.0/ivy.xml", loader);
+		cache.get("org/mod/1.0/ivy.xml", loader);
+		assertEquals("every lookup goes to the server", 2, fetches.size());
+	}
+
+	@Test
+	public void testInvalidationDiscardsEntriesAndFetchesInFlight() throws Exception {
+		cache.addRule("**", 300000);
+		cache.get("org/mod/1.0/ivy.xml", loader);
+		cache.invalidate("org/mod/");
+		fetches.get(0).complete(modifiedAt(1));
+		cache.get("org/mod/1.0/ivy.xml", loader);
+		assertEquals("result from before the change not kept", 2, fetches.size());
+	}
+
+	@Test
+	public void testInvalidationSparesSiblingsWithLongerNames() throws Exception {
+		cache.addRule("**", 300000);
+		cache.get("org/module/1.0/ivy.xml", loader);
+		fetches.get(0).complete(modifiedAt(1));
+		cache.get("org/module/2.0/ivy.xml", loader);
+		cache.invalidate("org/mod");
+		fetches.get(1).complete(modifiedAt(2));
+
+		assertEquals("cached entry kept", 1, cache.get("org/module/1.0/ivy.xml", loader).get().getModifiedAt());
+		assertEquals("fetch in flight kept", 2, cache.get("org/module/2.0/ivy.xml", loader).get().getModifiedAt());
+		assertEquals("no further request", 2, fetches.size());
+	}
+
+	@Test
+	public void testPrefetchServesOneLookupOfUncachedResource() throws Exception {
+		cache.prefetch("org/mod/ivy-1.0.xml", loader);
+		fetches.get(0).complete(null);
+		assertNull("absence from the prefetch", cache.get("org/mod/ivy-1.0.xml", loader).get());
+		assertEquals("no request of its own", 1, fetches.size());
+
+		cache.get("/org/mod/ivy-1.0.xml", loader);
+		assertEquals("later lookups go to the server", 2, fetches.size());
+	}
+
+	@Test
+	public void testLookupWaitingForPrefetchUsesItUp() throws Exception {
+		cache.prefetch("org/mod/ivy-1.0.xml", loader);
+		CompletableFuture<WebserverData> waiting = cache.get("org/mod/ivy-1.0.xml", loader);
+		fetches.get(0).complete(modifiedAt(1));
+		assertEquals("answered by the prefetch", 1, waiting.get().getModifiedAt());
+
+		cache.get("org/mod/ivy-1.0.xml", loader);
+		assertEquals("next lookup goes to the server", 2, fetches.size());
+	}
+
+	@Test
+	public void testPrefetchOfCachedResourceFollowsItsRule() throws Exception {
+		cache.addRule("**/*-SNAPSHOT/**", 300000);
+		cache.prefetch("org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		fetches.get(0).complete(modifiedAt(1));
+		assertEquals("cached", 1, cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader).get().getModifiedAt());
+		assertEquals("cached", 1, cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader).get().getModifiedAt());
+		assertEquals("within its staleness", 1, fetches.size());
+
+		now += 400000;
+		CompletableFuture<WebserverData> late = cache.get("org/mod/1.0-SNAPSHOT/ivy.xml", loader);
+		assertFalse("too stale for its rule", late.isDone());
+	}
+
+	@Test
+	public void testParse() {
+		assertTrue("segment wildcard", MetadataCache.globToPattern("*/mod/ivy-*.xml").matcher("org/mod/ivy-1.0.xml").matches());
+		assertFalse("single segment only", MetadataCache.globToPattern("*/ivy.xml").matcher("org/mod/ivy.xml").matches());
+		MetadataCache.parse("**/*-SNAPSHOT/**=300, **/ivy-*.xml=60");
+	}
+}
@@ -0,0 +1,201 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class MetadataIndexTest {
+
+	private Mockery mockery = new JUnit4Mockery();
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("ivydav", ".index");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static WebserverData data(long length, String etag) {
+		WebserverData data = new WebserverData();
+		data.contentType = "application/java-archive";
+		data.contentLength = length;
+		data.modifiedAt = 1000;
+		data.createdAt = 500;
+		data.etag = etag;
+		return data;
+	}
+
+	@Test
+	public void testEntriesSurviveReopening() throws IOException {
+		MetadataIndex index = MetadataIndex.open(file);
+		index.put("webdav://my.server/release/a.jar", data(3, "\"abc\""));
+		index.put("webdav://my.server/release/b.jar", data(4, null));
+		index.remove("webdav://my.server/release/b.jar");
+		index.close();
+
+		index = MetadataIndex.open(file);
+		assertEquals("kept", data(3, "\"abc\""), index.get("webdav://my.server/release/a.jar"));
+		assertNull("removal kept", index.get("webdav://my.server/release/b.jar"));
+		index.close();
+	}
+
+	@Test
+	public void testRemovalStopsAtPathBoundaries() throws IOException {
+		MetadataIndex index = MetadataIndex.open(file);
+		index.put("webdav://my.server/release/org/mod/1.0", data(1, null));
+		index.put("webdav://my.server/release/org/mod/1.0/mod.jar", data(2, null));
+		index.put("webdav://my.server/release/org/mod/1.0.1/mod.jar", data(3, null));
+		index.put("webdav://my.server/release/org/mod/1.0-rc/mod.jar", data(4, null));
+		index.remove("webdav://my.server/release/org/mod/1.0");
+		index.close();
+
+		index = MetadataIndex.open(file);
+		assertNull("the resource", index.get("webdav://my.server/release/org/mod/1.0"));
+		assertNull("below it", index.get("webdav://my.server/release/org/mod/1.0/mod.jar"));
+		assertEquals("sibling kept", data(3, null), index.get("webdav://my.server/release/org/mod/1.0.1/mod.jar"));
+		assertEquals("sibling kept", data(4, null), index.get("webdav://my.server/release/org/mod/1.0-rc/mod.jar"));
+		index.close();
+	}
+
+	@Test
+	public void testTooLongToStoreIsSkipped() throws IOException {
+		MetadataIndex index = MetadataIndex.open(file);
+		char[] etag = new char[70000];
+		Arrays.fill(etag, 'x');
+		index.put("webdav://my.server/release/a.jar", data(3, new String(etag)));
+		index.put("webdav://my.server/release/b.jar", data(4, null));
+		assertNull("not kept", index.get("webdav://my.server/release/a.jar"));
+		index.close();
+
+		index = MetadataIndex.open(file);
+		assertEquals("what follows is readable", data(4, null), index.get("webdav://my.server/release/b.jar"));
+		index.close();
+	}
+
+	@Test
+	public void testIncompleteRecordIsDiscarded() throws IOException {
+		MetadataIndex index = MetadataIndex.open(file);
+		index.put("webdav://my.server/release/a.jar", data(3, null));
+		index.close();
+		long goodLength = file.length();
+		// a writer killed part way through its record
+		FileOutputStream fos = new FileOutputStream(file, true);
+		fos.write(new byte[] { 0, 0, 0, 40, 0, 0 });
+		fos.close();
+
+		index = MetadataIndex.open(file);
+		assertEquals("complete record kept", 1, index.size());
+		assertEquals("torn tail cut off", goodLength, file.length());
+		index.close();
+	}
+
+	@Test
+	public void testAppendFollowsFileReplacedByAnotherProcess() throws IOException {
+		MetadataIndex index = MetadataIndex.open(file);
+		index.put("webdav://my.server/release/a.jar", data(3, null));
+
+		// what another process compacting the file does
+		File compacted = new File(file.getPath() + ".other");
+		Files.copy(file.toPath(), compacted.toPath());
+		FileChannel old = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			MetadataIndex.markReplaced(old);
+		} finally {
+			old.close();
+		}
+
+		index.put("webdav://my.server/release/b.jar", data(4, null));
+		index.close();
+
+		index = MetadataIndex.open(file);
+		assertEquals("entry from before the replacement", data(3, null), index.get("webdav://my.server/release/a.jar"));
+		assertEquals("entry appended after it", data(4, null), index.get("webdav://my.server/release/b.jar"));
+		index.close();
+	}
+
+	@Test
+	public void testCompactionKeepsLiveEntries() throws IOException {
+		MetadataIndex index = MetadataIndex.open(file);
+		index.put("webdav://my.server/release/a.jar", data(3, null));
+		for (int i = 0; i < MetadataIndex.COMPACT_SLACK * 2; i++) {
+			index.put("webdav://my.server/release/b.jar", data(i, null));
+		}
+		index.close();
+		long logLength = file.length();
+
+		index = MetadataIndex.open(file);
+		assertTrue("rewritten", file.length() < logLength);
+		index.put("webdav://my.server/release/c.jar", data(5, null));
+		index.close();
+
+		index = MetadataIndex.open(file);
+		assertEquals("live entries", 3, index.size());
+		assertEquals("latest record", data(MetadataIndex.COMPACT_SLACK * 2 - 1, null), index.get("webdav://my.server/release/b.jar"));
+		index.close();
+	}
+
+	@Test
+	public void testImmutableMetadataServedFromIndexAcrossRepositories() throws IOException {
+		final DavTransport transport = mockery.mock(DavTransport.class);
+		final WebserverData jar = data(3, null);
+		mockery.checking(new Expectations() {{
+			oneOf(transport).propfind("http://my.server/release/a.jar", 0);
+				will(returnValue(CompletableFuture.completedFuture(
+						Collections.singletonList(new DavTransport.Entry("http://my.server/release/a.jar", true, jar)))));
+			allowing(transport).close();
+		}});
+		DavRepository first = new DavRepository("webdav://my.server", transport);
+		first.setMetadataIndex(MetadataIndex.open(file), "release/**");
+		assertEquals("fetched", jar, first.getResourceMetadata("release/a.jar"));
+		first.close();
+
+		// as in the next Ivy run: no request at all
+		DavRepository second = new DavRepository("webdav://my.server", transport);
+		second.setMetadataIndex(MetadataIndex.open(file), "release/**");
+		assertEquals("from the index", jar, second.getResourceMetadata("/release/a.jar"));
+		second.close();
+	}
+}
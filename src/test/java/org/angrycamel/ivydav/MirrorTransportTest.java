@@ -0,0 +1,233 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.angrycamel.ivydav.DavRepository.WebserverData;
+import org.apache.ivy.util.FileUtil;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class MirrorTransportTest {
+
+	private static final String ROOT = "http://my.server/ivy/";
+
+	private Mockery mockery = new JUnit4Mockery();
+
+	private final DavTransport server = mockery.mock(DavTransport.class);
+
+	private File mirror;
+
+	@Before
+	public void setUp() throws IOException {
+		mirror = File.createTempFile("ivydav", "mirror");
+		mirror.delete();
+		mirror.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.forceDelete(mirror);
+	}
+
+	private void writeLocal(String path, int length) throws IOException {
+		File f = new File(mirror, path);
+		f.getParentFile().mkdirs();
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(new byte[length]);
+		fos.close();
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		try {
+			return is.readAllBytes();
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testDownloadIsWrittenBackAndServedLocallyAfterwards() throws IOException {
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, "**/*.jar");
+		mockery.checking(new Expectations() {{
+			oneOf(server).get(ROOT + "org/mod/1.0/mod.jar");
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[] { 1, 2, 3 }))));
+		}});
+		assertEquals("downloaded", 3, readFully(DavRepository.await(transport.get(ROOT + "org/mod/1.0/mod.jar"))).length);
+		assertEquals("written back", 3, new File(mirror, "org/mod/1.0/mod.jar").length());
+
+		// no further request to the server
+		assertEquals("served from mirror", 3, readFully(DavRepository.await(transport.get(ROOT + "org/mod/1.0/mod.jar"))).length);
+		List<DavTransport.Entry> metadata = DavRepository.await(transport.propfind(ROOT + "org/mod/1.0/mod.jar", 0));
+		assertEquals("metadata from mirror", 3, metadata.get(0).data.getContentLength());
+	}
+
+	@Test
+	public void testChangingFileIsReadFromServerWhileOnline() throws IOException {
+		writeLocal("org/mod/1.0-SNAPSHOT/ivy.xml", 10);
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, "**/*.jar");
+		final WebserverData data = new WebserverData();
+		data.contentLength = 3;
+		mockery.checking(new Expectations() {{
+			oneOf(server).propfind(ROOT + "org/mod/1.0-SNAPSHOT/ivy.xml", 0);
+				will(returnValue(CompletableFuture.completedFuture(Arrays.asList(
+						new DavTransport.Entry(ROOT + "org/mod/1.0-SNAPSHOT/ivy.xml", false, data)))));
+			oneOf(server).get(ROOT + "org/mod/1.0-SNAPSHOT/ivy.xml");
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[] { 1, 2, 3 }))));
+		}});
+		assertEquals("metadata from server", 3, DavRepository.await(
+				transport.propfind(ROOT + "org/mod/1.0-SNAPSHOT/ivy.xml", 0)).get(0).data.getContentLength());
+		assertEquals("content from server", 3,
+				readFully(DavRepository.await(transport.get(ROOT + "org/mod/1.0-SNAPSHOT/ivy.xml"))).length);
+		assertEquals("mirrored copy refreshed", 3, new File(mirror, "org/mod/1.0-SNAPSHOT/ivy.xml").length());
+	}
+
+	@Test
+	public void testServerMetadataKeptWithMirroredCopy() throws IOException {
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, null);
+		final WebserverData data = new WebserverData();
+		data.contentType = "application/xml";
+		data.modifiedAt = 1234000;
+		data.createdAt = 1000000;
+		data.contentLength = 3;
+		data.etag = "\"abc\"";
+		mockery.checking(new Expectations() {{
+			oneOf(server).propfind(ROOT + "org/mod/ivy-1.0.xml", 0);
+				will(returnValue(CompletableFuture.completedFuture(Arrays.asList(
+						new DavTransport.Entry(ROOT + "org/mod/ivy-1.0.xml", false, data)))));
+			oneOf(server).get(ROOT + "org/mod/ivy-1.0.xml");
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[] { 1, 2, 3 }))));
+		}});
+		DavRepository.await(transport.propfind(ROOT + "org/mod/ivy-1.0.xml", 0));
+		readFully(DavRepository.await(transport.get(ROOT + "org/mod/ivy-1.0.xml")));
+
+		MirrorTransport offline = new MirrorTransport(server, ROOT, mirror, true, null);
+		assertEquals("as the server described it", data,
+				DavRepository.await(offline.propfind(ROOT + "org/mod/ivy-1.0.xml", 0)).get(0).data);
+		List<DavTransport.Entry> listing = DavRepository.await(offline.propfind(ROOT + "org/mod/", 1));
+		assertEquals("self and the file only", 2, listing.size());
+		assertEquals("listed as described", "application/xml", listing.get(1).data.getContentType());
+	}
+
+	@Test
+	public void testDownloadWithShortNameIsWrittenBack() throws IOException {
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, null);
+		mockery.checking(new Expectations() {{
+			oneOf(server).get(ROOT + "org/a");
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[] { 1, 2, 3 }))));
+		}});
+		assertEquals("downloaded", 3, readFully(DavRepository.await(transport.get(ROOT + "org/a"))).length);
+		assertEquals("written back", 3, new File(mirror, "org/a").length());
+	}
+
+	@Test
+	public void testListingFallsBackToMirrorWhenServerUnreachable() throws IOException {
+		writeLocal("org/mod/ivy-1.0.xml", 10);
+		new File(mirror, "org/mod/1.0").mkdirs();
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, null);
+		mockery.checking(new Expectations() {{
+			oneOf(server).propfind(ROOT + "org/mod/", 1);
+				will(returnValue(DavRepository.failed(new ConnectException("Connection refused"))));
+		}});
+		List<DavTransport.Entry> entries = DavRepository.await(transport.propfind(ROOT + "org/mod/", 1));
+		assertEquals("self and two children", 3, entries.size());
+		assertTrue("current directory first", entries.get(0).currentDirectory);
+		assertEquals("collection", ROOT + "org/mod/1.0/", entries.get(1).url);
+		assertEquals("file", ROOT + "org/mod/ivy-1.0.xml", entries.get(2).url);
+	}
+
+	@Test
+	public void testRevisionPublishedBehindMirrorIsListed() throws IOException {
+		writeLocal("org/mod/ivy-1.0.xml", 10);
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, null);
+		final DavTransport.Entry before = collection(ROOT + "org/mod/", "\"1\"", true);
+		final DavTransport.Entry after = collection(ROOT + "org/mod/", "\"2\"", true);
+		mockery.checking(new Expectations() {{
+			exactly(2).of(server).propfind(ROOT + "org/mod/", 0);
+				will(onConsecutiveCalls(returnValue(CompletableFuture.completedFuture(Arrays.asList(before))),
+						returnValue(CompletableFuture.completedFuture(Arrays.asList(after)))));
+			exactly(2).of(server).propfind(ROOT + "org/mod/", 1);
+				will(onConsecutiveCalls(
+						returnValue(CompletableFuture.completedFuture(Arrays.asList(before,
+								collection(ROOT + "org/mod/1.0/", null, false)))),
+						returnValue(CompletableFuture.completedFuture(Arrays.asList(after,
+								collection(ROOT + "org/mod/1.0/", null, false), collection(ROOT + "org/mod/2.0/", null, false))))));
+		}});
+		IvyRepository repository = new IvyRepository(new DavRepository("webdav://my.server/ivy", transport));
+		assertEquals("listed", Arrays.asList("org/mod/1.0/"), repository.list("org/mod/"));
+
+		// published by someone else: the mirrored collection is unchanged
+		assertEquals("found on the server", Arrays.asList("org/mod/1.0/", "org/mod/2.0/"),
+				repository.list("org/mod/"));
+	}
+
+	private static DavTransport.Entry collection(String url, String etag, boolean current) {
+		WebserverData data = new WebserverData();
+		data.contentType = DavRepository.DIRECTORY_CONTENT_TYPE;
+		data.etag = etag;
+		return new DavTransport.Entry(url, current, data);
+	}
+
+	@Test
+	public void testOfflineNeverContactsServer() throws IOException {
+		writeLocal("org/mod/ivy-1.0.xml", 10);
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, true, null);
+		// any call on the server mock fails the test
+		assertEquals("listing", 2, DavRepository.await(transport.propfind(ROOT + "org/mod/", 1)).size());
+		try {
+			DavRepository.await(transport.get(ROOT + "org/mod/ivy-2.0.xml"));
+			fail("not mirrored");
+		} catch (DavException ex) {
+			assertEquals("absent", 404, ex.getStatusCode());
+		}
+		try {
+			DavRepository.await(transport.put(ROOT + "org/mod/ivy-2.0.xml", new ByteArrayInputStream(new byte[1])));
+			fail("read only");
+		} catch (IOException ex) {
+		}
+	}
+
+	@Test
+	public void testPutDropsMirroredCopy() throws IOException {
+		writeLocal("org/mod/ivy-1.0.xml", 10);
+		MirrorTransport transport = new MirrorTransport(server, ROOT, mirror, false, null);
+		final InputStream content = new ByteArrayInputStream(new byte[1]);
+		mockery.checking(new Expectations() {{
+			oneOf(server).put(ROOT + "org/mod/ivy-1.0.xml", content);
+				will(returnValue(CompletableFuture.completedFuture(null)));
+		}});
+		DavRepository.await(transport.put(ROOT + "org/mod/ivy-1.0.xml", content));
+		assertFalse("stale copy removed", new File(mirror, "org/mod/ivy-1.0.xml").exists());
+	}
+}
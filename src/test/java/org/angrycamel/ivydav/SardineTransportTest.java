@@ -0,0 +1,79 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.junit.Test;
+
+public class SardineTransportTest {
+
+	@Test
+	public void testConnectionsPerServerMatchThreads() throws Exception {
+		SardineTransport transport = new SardineTransport(null, null, null);
+		ThreadSafeClientConnManager pool = (ThreadSafeClientConnManager) SardineTransport.client(transport.sardine)
+				.getConnectionManager();
+		try {
+			assertEquals("a connection per thread", SardineTransport.DEFAULT_THREADS, pool.getDefaultMaxPerRoute());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void testCancelledRequestIsAborted() throws Exception {
+		SardineTransport transport = new SardineTransport(null, null, null);
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			CompletableFuture<Boolean> dropped = stall(server);
+			CompletableFuture<?> request = transport.propfind("http://127.0.0.1:" + server.getLocalPort() + "/ivy/", 1);
+			Thread.sleep(200);
+			request.cancel(true);
+			assertTrue("connection dropped", dropped.get(20, TimeUnit.SECONDS));
+		} finally {
+			server.close();
+			transport.close();
+		}
+	}
+
+	// accepts one request and never answers; completes once the client drops it
+	static CompletableFuture<Boolean> stall(final ServerSocket server) {
+		return CompletableFuture.supplyAsync(() -> {
+			try (Socket socket = server.accept()) {
+				socket.setSoTimeout(10000);
+				InputStream in = socket.getInputStream();
+				while (in.read() >= 0) {
+				}
+				return true;
+			} catch (SocketTimeoutException ex) {
+				return false;
+			} catch (IOException ex) {
+				// reset
+				return true;
+			}
+		});
+	}
+}
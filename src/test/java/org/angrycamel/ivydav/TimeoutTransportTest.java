@@ -0,0 +1,150 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class TimeoutTransportTest {
+
+	private static final String URL = "http://my.server/org/mod/1.0/mod.jar";
+
+	private Mockery mockery = new JUnit4Mockery();
+
+	private final DavTransport server = mockery.mock(DavTransport.class);
+	private final TimeoutTransport transport = new TimeoutTransport(server, 50, 50, 0);
+
+	@After
+	public void leaveDeadline() {
+		Deadline.exit(null);
+	}
+
+	@Test
+	public void testHungRequestTimesOutAndIsCancelled() throws IOException {
+		final CompletableFuture<List<DavTransport.Entry>> hung = new CompletableFuture<List<DavTransport.Entry>>();
+		mockery.checking(new Expectations() {{
+			oneOf(server).propfind(URL, 0); will(returnValue(hung));
+		}});
+		try {
+			DavRepository.await(transport.propfind(URL, 0));
+			fail("timed out");
+		} catch (SocketTimeoutException ex) {
+			assertTrue("names the request", ex.getMessage().contains("PROPFIND " + URL));
+		}
+		assertTrue("request cancelled", hung.isCancelled());
+	}
+
+	@Test
+	public void testStalledDownloadTimesOut() throws IOException {
+		mockery.checking(new Expectations() {{
+			oneOf(server).get(URL); will(returnValue(CompletableFuture.completedFuture(new StalledStream())));
+		}});
+		InputStream is = DavRepository.await(transport.get(URL));
+		try {
+			is.read(new byte[16]);
+			fail("timed out");
+		} catch (SocketTimeoutException ex) {
+			assertTrue("read timeout", ex.getMessage().contains("read timed out"));
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testDeadlineCutsShortRequestsWithoutTheirOwnLimit() throws IOException {
+		final CompletableFuture<Void> hung = new CompletableFuture<Void>();
+		mockery.checking(new Expectations() {{
+			oneOf(server).delete(URL); will(returnValue(hung));
+		}});
+		Deadline.enter(new Deadline(50));
+		try {
+			DavRepository.await(transport.delete(URL));
+			fail("over the deadline");
+		} catch (SocketTimeoutException ex) {
+			assertTrue("deadline", ex.getMessage().contains("deadline"));
+		}
+		assertTrue("request cancelled", hung.isCancelled());
+
+		// no further requests reach the server
+		try {
+			DavRepository.await(transport.delete(URL));
+			fail("over the deadline");
+		} catch (SocketTimeoutException ex) {
+		}
+	}
+
+	@Test
+	public void testDeadlineOfOneCallerLeavesSharedLookupToOthers() throws Exception {
+		final CompletableFuture<List<DavTransport.Entry>> slow = new CompletableFuture<List<DavTransport.Entry>>();
+		final DavRepository.WebserverData data = new DavRepository.WebserverData();
+		data.contentType = "text/xml";
+		mockery.checking(new Expectations() {{
+			oneOf(server).propfind("http://my.server/org/mod/ivy-1.0.xml", 0); will(returnValue(slow));
+		}});
+		DavRepository repository = new DavRepository("webdav://my.server", server);
+		MetadataCache cache = new MetadataCache();
+		cache.addRule("**", 60000);
+		repository.setMetadataCache(cache);
+
+		// a resolve without a deadline, then one with, waiting for the same lookup
+		CompletableFuture<DavRepository.WebserverData> patient = repository.getResourceMetadataAsync("org/mod/ivy-1.0.xml");
+		Deadline.enter(new Deadline(50));
+		try {
+			repository.getResourceMetadata("org/mod/ivy-1.0.xml");
+			fail("over the deadline");
+		} catch (SocketTimeoutException ex) {
+			assertTrue("deadline", ex.getMessage().contains("deadline"));
+		} finally {
+			Deadline.exit(null);
+		}
+
+		slow.complete(Collections.singletonList(new DavTransport.Entry("http://my.server/org/mod/ivy-1.0.xml", true, data)));
+		assertEquals("other caller answered", data, DavRepository.await(patient));
+	}
+
+	// blocks reading until closed
+	private static final class StalledStream extends InputStream {
+		private final CountDownLatch closed = new CountDownLatch(1);
+
+		public int read() throws IOException {
+			try {
+				closed.await();
+			} catch (InterruptedException ex) {
+			}
+			throw new IOException("Stream closed");
+		}
+
+		public void close() {
+			closed.countDown();
+		}
+	}
+}
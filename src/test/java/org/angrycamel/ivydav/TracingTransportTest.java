@@ -0,0 +1,152 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JMock.class)
+public class TracingTransportTest {
+
+	private static final String URL = "http://my.server/org/mod/1.0/mod.jar";
+
+	private Mockery mockery = new JUnit4Mockery();
+
+	private final DavTransport server = mockery.mock(DavTransport.class);
+	private final TracingTransport transport = new TracingTransport(server, 0);
+	private final List<TransferTrace> traces = new ArrayList<TransferTrace>();
+
+	{
+		transport.addListener(trace -> traces.add(trace));
+	}
+
+	@Test
+	public void testDownloadTracedOnceReadAndClosed() throws IOException {
+		mockery.checking(new Expectations() {{
+			oneOf(server).get(URL);
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[] { 1, 2, 3 }))));
+		}});
+		InputStream is = DavRepository.await(transport.get(URL));
+		assertTrue("not before the content is read", traces.isEmpty());
+		assertEquals("content", 3, is.readAllBytes().length);
+		is.close();
+
+		assertEquals("traced once", 1, traces.size());
+		TransferTrace trace = traces.get(0);
+		assertEquals("method", "GET", trace.getMethod());
+		assertEquals("url", URL, trace.getUrl());
+		assertEquals("bytes", 3, trace.getBytes());
+		assertTrue("succeeded", trace.isSucceeded());
+		assertTrue("first byte within total", trace.getTimeToFirstByteMillis() <= trace.getTotalMillis());
+	}
+
+	@Test
+	public void testTimedFromDispatch() throws Exception {
+		final CompletableFuture<InputStream> response = new CompletableFuture<InputStream>();
+		final Runnable[] dispatched = new Runnable[1];
+		mockery.checking(new Expectations() {{
+			oneOf(server).get(URL);
+				will(new CustomAction("queue the request") {
+					public Object invoke(Invocation invocation) {
+						dispatched[0] = TracingTransport.dispatchListener();
+						return response;
+					}
+				});
+		}});
+		CompletableFuture<InputStream> download = transport.get(URL);
+		assertNotNull("told of dispatch", dispatched[0]);
+		assertNull("only while making the request", TracingTransport.dispatchListener());
+		Thread.sleep(100);
+		dispatched[0].run();
+		response.complete(new ByteArrayInputStream(new byte[] { 1 }));
+		DavRepository.await(download).close();
+
+		TransferTrace trace = traces.get(0);
+		assertTrue("queued", trace.getQueuedMillis() >= 100);
+		assertTrue("first byte after dispatch", trace.getTimeToFirstByteMillis() < 100);
+	}
+
+	@Test
+	public void testReaderPausesNotTransferTime() throws Exception {
+		mockery.checking(new Expectations() {{
+			oneOf(server).get(URL);
+				will(returnValue(CompletableFuture.completedFuture(new ByteArrayInputStream(new byte[] { 1, 2 }))));
+		}});
+		InputStream is = DavRepository.await(transport.get(URL));
+		is.read();
+		Thread.sleep(100);
+		is.read();
+		Thread.sleep(100);
+		assertEquals("end", -1, is.read());
+
+		TransferTrace trace = traces.get(0);
+		assertTrue("paused", trace.getPausedMillis() >= 200);
+		assertTrue("within the total", trace.getPausedMillis() <= trace.getTotalMillis());
+		assertTrue("line ends with queued and paused",
+				trace.toString().endsWith("\t\t" + trace.getQueuedMillis() + "\t" + trace.getPausedMillis()));
+	}
+
+	@Test
+	public void testFailureTracedWithStatus() {
+		mockery.checking(new Expectations() {{
+			oneOf(server).propfind(URL, 0);
+				will(returnValue(DavRepository.failed(new DavException(URL, 404, "Not Found"))));
+		}});
+		try {
+			DavRepository.await(transport.propfind(URL, 0));
+			fail("absent");
+		} catch (IOException ex) {
+		}
+		assertEquals("status", 404, traces.get(0).getStatusCode());
+		assertFalse("failed", traces.get(0).isSucceeded());
+		assertTrue("line shows status", traces.get(0).toString().contains("\tPROPFIND\t404\t"));
+	}
+
+	@Test
+	public void testTraceFileRollsOver() throws IOException {
+		File file = File.createTempFile("ivydav", ".trace");
+		RollingTraceFile traceFile = new RollingTraceFile(file, 10, 1);
+		try {
+			TransferTrace trace = new TransferTrace("GET", URL, 0, 0, 5, 10, 0, 3, 0, null);
+			traceFile.traced(trace);
+			traceFile.traced(trace);
+			traceFile.traced(trace);
+			traceFile.close();
+			assertTrue("rolled over", new File(file.getPath() + ".1").exists());
+			assertFalse("only one old file kept", new File(file.getPath() + ".2").exists());
+			assertEquals("one line in the current file", trace.toString().length() + 1, file.length());
+		} finally {
+			file.delete();
+			new File(file.getPath() + ".1").delete();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+   Copyright 2011 Ed Burcher
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.angrycamel.ivydav;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.angrycamel.ivydav.TransferScheduler.Priority;
+import org.junit.Test;
+
+public class TransferSchedulerTest {
+
+	// names of the operations started, in order
+	private final List<String> started = new ArrayList<String>();
+
+	private Supplier<CompletableFuture<InputStream>> get(final String name) {
+		return () -> {
+			started.add(name);
+			return CompletableFuture.completedFuture((InputStream) new ByteArrayInputStream(new byte[1]));
+		};
+	}
+
+	private Supplier<CompletableFuture<Void>> propfind(final String name, final CompletableFuture<Void> response) {
+		return () -> {
+			started.add(name);
+			return response;
+		};
+	}
+
+	@Test
+	public void testQueuedRequestsStartByPriority() throws Exception {
+		// four slots, one kept for metadata, one for artifacts
+		TransferScheduler scheduler = new TransferScheduler(4, 1, 0);
+		CompletableFuture<Void> firstPropfind = new CompletableFuture<Void>();
+		CompletableFuture<InputStream> artifact = scheduler.download(Priority.ARTIFACT, get("a1"));
+		scheduler.download(Priority.ARTIFACT, get("a2"));
+		CompletableFuture<InputStream> descriptor = scheduler.download(Priority.DESCRIPTOR, get("d1"));
+		scheduler.download(Priority.DESCRIPTOR, get("d2"));
+		scheduler.download(Priority.DESCRIPTOR, get("d3"));
+		scheduler.submit(Priority.METADATA, propfind("m1", firstPropfind));
+		scheduler.submit(Priority.METADATA, propfind("m2", new CompletableFuture<Void>()));
+		assertEquals("one bulk transfer, downloads leave a slot", list("a1", "d1", "d2", "m1"), started);
+
+		descriptor.get().close();
+		assertEquals("metadata first", list("a1", "d1", "d2", "m1", "m2"), started);
+		firstPropfind.complete(null);
+		assertEquals("then descriptors", list("a1", "d1", "d2", "m1", "m2", "d3"), started);
+		artifact.get().close();
+		assertEquals("then artifacts", list("a1", "d1", "d2", "m1", "m2", "d3", "a2"), started);
+	}
+
+	@Test
+	public void testQueuedRequestRunsWithinTheDeadlineOfItsCaller() throws Exception {
+		TransferScheduler scheduler = new TransferScheduler(2, 1, 0);
+		CompletableFuture<InputStream> first = scheduler.download(Priority.ARTIFACT, get("a1"));
+		final Deadline deadline = new Deadline(60000);
+		final Deadline[] startedWithin = new Deadline[1];
+		Deadline.enter(deadline);
+		try {
+			scheduler.download(Priority.ARTIFACT, () -> {
+				startedWithin[0] = Deadline.current();
+				return get("a2").get();
+			});
+		} finally {
+			Deadline.exit(null);
+		}
+		assertEquals("queued behind the first", list("a1"), started);
+
+		// started by this thread, which has no deadline
+		first.get().close();
+		assertEquals("started", list("a1", "a2"), started);
+		assertSame("caller's deadline", deadline, startedWithin[0]);
+		assertNull("left behind on the releasing thread", Deadline.current());
+	}
+
+	@Test
+	public void testSlotGivenUpAtEndOfContent() throws Exception {
+		// one slot for downloads
+		TransferScheduler scheduler = new TransferScheduler(2, 1, 0);
+		InputStream first = scheduler.download(Priority.DESCRIPTOR, get("d1")).get();
+		scheduler.download(Priority.DESCRIPTOR, get("d2"));
+		assertEquals("queued behind the first", list("d1"), started);
+
+		// read but never closed
+		assertEquals("content", 1, first.readAllBytes().length);
+		assertEquals("started", list("d1", "d2"), started);
+		first.close();
+	}
+
+	@Test
+	public void testChangesQueuedLastAndLimited() throws Exception {
+		// three slots for transfers, one of them for changes
+		TransferScheduler scheduler = new TransferScheduler(4, 1, 0);
+		CompletableFuture<Void> firstPut = new CompletableFuture<Void>();
+		scheduler.submit(Priority.WRITE, propfind("w1", firstPut));
+		scheduler.submit(Priority.WRITE, propfind("w2", new CompletableFuture<Void>()));
+		scheduler.download(Priority.DESCRIPTOR, get("d1"));
+		assertEquals("one change at a time, downloads go ahead", list("w1", "d1"), started);
+
+		firstPut.complete(null);
+		assertEquals("then the next change", list("w1", "d1", "w2"), started);
+	}
+
+	private static List<String> list(String... names) {
+		List<String> list = new ArrayList<String>();
+		for (String name : names) {
+			list.add(name);
+		}
+		return list;
+	}
+
+	@Test
+	public void testClassify() {
+		assertEquals("descriptor", Priority.DESCRIPTOR, TransferScheduler.classify("org/mod/ivy-1.0.xml"));
+		assertEquals("checksum", Priority.DESCRIPTOR, TransferScheduler.classify("org/mod/1.0/mod.jar.sha1"));
+		assertEquals("artifact", Priority.ARTIFACT, TransferScheduler.classify("org/mod/1.0/mod.jar"));
+	}
+
+	@Test
+	public void testBandwidthIsCapped() throws IOException {
+		TransferScheduler.TokenBucket bucket = new TransferScheduler.TokenBucket(10000);
+		long start = System.nanoTime();
+		// a second's worth is allowed at once, the rest waits its turn
+		bucket.take(10000);
+		bucket.take(5000);
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue("paced, took " + elapsedMillis + "ms", elapsedMillis >= 400);
+	}
+}